@@ -0,0 +1,182 @@
+import benchmarks.Pipeline;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.neo4j.driver.v1.AuthTokens;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.GraphDatabase;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The phases of SparQrawler over a generated graph, see benchmarks.Pipeline for why this is in the default package.
+ *
+ * The phases are run the way Main.execute runs them, with the options of Main, but without printing anything and
+ * without the adjacency cache (which would answer every query after the first iteration).
+ */
+public class BenchmarkPipeline implements Pipeline {
+
+    private GraphGenerator generator;
+
+    // the generated graph within the process, only created if the queries go to it
+    private Dataset dataset;
+    private LocalEndpoint endpoint;
+
+    private TermDictionary dictionary;
+    private AdjacencyStore store;
+    private HashSet<Group> groups;
+    private Driver neo4jDriver;
+
+
+    @Override
+    public void configure(String... args) {
+        Main.parseArguments(args);
+        if (Main.threads > 1 && Main.pool == null)
+            Main.pool = Workers.newPool(Main.threads);
+    }
+
+    @Override
+    public void generate(int nodes, int predicates, long seed) {
+        generator = new GraphGenerator(nodes, predicates, seed);
+    }
+
+    @Override
+    public void connect(String source, int latency) throws Exception {
+
+        if (!source.startsWith("http")) {
+            dataset = generator.toDataset();
+            if (source.equals("dataset")) {
+                Main.tripleSource = new DatasetTripleSource(dataset, "generated dataset");
+                return;
+            } else if (!source.equals("endpoint")) {
+                throw new IllegalArgumentException("Unknown source: " + source);
+            }
+            endpoint = new LocalEndpoint(dataset, Main.threads, latency);
+        }
+
+        // the same as in Main.main
+        String url = endpoint != null ? endpoint.getURL() : source;
+        Main.tripleSource = new GuardedTripleSource(
+                new RemoteTripleSource(url, Main.threads, Main.connectTimeout, Main.readTimeout, Main.requestTimeout, Main.resultFormats.split(",")),
+                Main.threads, Main.maxRetries);
+    }
+
+
+    @Override
+    public Object seedQuery() throws Exception {
+        TermDictionary seedDictionary = new TermDictionary();
+        Main.getNodesFromQuery(GraphGenerator.SEED_QUERY, seedDictionary, new FetchStatistics(), (from, to) -> { });
+        return seedDictionary;
+    }
+
+    @Override
+    public void prepareNodes() throws Exception {
+        dictionary = (TermDictionary) seedQuery();
+    }
+
+    @Override
+    public Object fetchRelations() throws Exception {
+
+        AdjacencyFetcher fetcher = new AdjacencyFetcher(Main.tripleSource, dictionary, new FetchStatistics(), null,
+                GraphGenerator.SEED_QUERY, Main.pushdown, Main.supernodeThreshold, Main.maxRows);
+        AdjacencyStore fetched = new AdjacencyStore(0);
+        Workers.Feed feed = new Workers.Feed(Main.batchSize, Main.pool, (from, to) -> fetched.fetch(fetcher, from, to));
+        Main.fetchAdjacencies(dictionary, fetcher, fetched, feed, new AtomicInteger());
+        return fetched;
+    }
+
+
+    @Override
+    public void prepareRelations() {
+
+        // the nodes of the seed query, in the order of the generator
+        Model model = ModelFactory.createDefaultModel();
+        dictionary = new TermDictionary();
+        for (int n = 0; n < generator.getNodeCount(); n++)
+            dictionary.encodeNode(model.asRDFNode(GraphGenerator.node(n)));
+
+        DumpReader reader = new DumpReader(dictionary, true);
+        generator.generate(reader);
+        store = reader.getStore();
+    }
+
+    @Override
+    public Object signatures() {
+        HashMap<NeighbourhoodSignature, Integer> index = new HashMap<NeighbourhoodSignature, Integer>();
+        for (int n = 0; n < dictionary.nodeCount(); n++)
+            index.putIfAbsent(store.get(n).toSignature(), index.size());
+        return index;
+    }
+
+    @Override
+    public Object hashMapNeighbourhoods() {
+        HashMap<HashMapNeighbourhood, Integer> index = new HashMap<HashMapNeighbourhood, Integer>();
+        for (int n = 0; n < dictionary.nodeCount(); n++)
+            index.putIfAbsent(new HashMapNeighbourhood(store.get(n)), index.size());
+        return index;
+    }
+
+    /**
+     * The neighbourhood as it was before the NeighbourhoodSignature: the count of each relation in a HashMap per
+     * direction. Kept here only as baseline for SignatureBenchmark
+     */
+    static class HashMapNeighbourhood {
+
+        HashMap<Integer, Integer> countRelationsIncoming = new HashMap<Integer, Integer>();
+        HashMap<Integer, Integer> countRelationsOutgoing = new HashMap<Integer, Integer>();
+
+        HashMapNeighbourhood(NodeAdjacency adjacency) {
+            for (int k = 0; k < adjacency.outgoingRelations.size(); k++)
+                countRelationsOutgoing.merge(adjacency.outgoingRelations.get(k), 1, Integer::sum);
+            for (int k = 0; k < adjacency.incomingRelations.size(); k++)
+                countRelationsIncoming.merge(adjacency.incomingRelations.get(k), 1, Integer::sum);
+        }
+
+        @Override
+        public int hashCode() {
+            return countRelationsIncoming.hashCode() + countRelationsOutgoing.hashCode() * 7;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return countRelationsIncoming.equals(((HashMapNeighbourhood) obj).countRelationsIncoming) &&
+                    countRelationsOutgoing.equals(((HashMapNeighbourhood) obj).countRelationsOutgoing);
+        }
+    }
+
+    @Override
+    public Object groupNodes() throws Exception {
+        return Main.generateGroups(dictionary, store);
+    }
+
+
+    @Override
+    public void prepareGroups(String url, String user, String password) throws Exception {
+        prepareRelations();
+        groups = Main.generateGroups(dictionary, store);
+        neo4jDriver = GraphDatabase.driver(url, AuthTokens.basic(user, password));
+    }
+
+    @Override
+    public Object persist() {
+        Neo4jWriter writer = new Neo4jWriter(neo4jDriver, Main.neo4jBatchSize, Main.neo4jSync);
+        writer.persist(groups);
+        return writer.getSummary();
+    }
+
+
+    @Override
+    public void close() {
+        if (endpoint != null)
+            endpoint.stop();
+        if (Main.tripleSource != null)
+            Main.tripleSource.close();
+        if (neo4jDriver != null)
+            neo4jDriver.close();
+        if (Main.pool != null)
+            Main.pool.shutdownNow();
+    }
+}
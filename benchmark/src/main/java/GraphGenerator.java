@@ -0,0 +1,188 @@
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.vocabulary.RDF;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+
+/**
+ * Generates a synthetic rdf graph which looks roughly like real linked data, for the benchmarks. The same size and
+ * seed always give the same graph:
+ *
+ * - each node is typed as NODE_CLASS, so that SEED_QUERY selects all of them (and every node has one relation to a
+ *   node outside of the node set, like rdf:type in real data)
+ * - the number of outgoing relations of a node follows a power law: most nodes have a handful of relations, a few
+ *   have thousands
+ * - the predicates are zipf distributed: a few of them (like rdfs:label or foaf:knows) are very common, most are rare
+ * - the objects are chosen by preferential attachment: half of them are copied from an earlier relation, so nodes
+ *   which are objects already become objects again more likely, which gives power law distributed incoming relations
+ * - some of the relations point to a literal, which is not part of the node set either
+ *
+ * Also runs on its own, to write the graph as N-Triples, e.g. for loading it into a triplestore:
+ *
+ * java -cp benchmarks.jar GraphGenerator [nodes] [predicates] [seed] [file]
+ *
+ * experimentable : the exponents and shares below
+ */
+public class GraphGenerator {
+
+    public static final String NAMESPACE = "http://example.org/";
+    public static final String NODE_CLASS = NAMESPACE + "Node";
+
+    /**
+     * The user query of the benchmarks, which selects all generated nodes
+     */
+    public static final String SEED_QUERY = "SELECT ?n WHERE { ?n a <" + NODE_CLASS + "> }";
+
+    // pareto distributed degree, i.e. the share of nodes with degree above d falls with d^-1.1
+    private static final double DEGREE_EXPONENT = 1.1;
+    private static final int MAX_DEGREE = 10000;
+
+    private static final double PREDICATE_EXPONENT = 1.1;
+
+    private static final double LITERAL_SHARE = 0.2;
+    private static final double COPY_SHARE = 0.5;
+
+    private int nodeCount;
+    private int predicateCount;
+    private long seed;
+
+
+    /**
+     * @param nodeCount : the number of nodes selected by SEED_QUERY
+     * @param predicateCount : the number of different predicates between the nodes
+     * @param seed : the seed of the random numbers
+     */
+    public GraphGenerator(int nodeCount, int predicateCount, long seed) {
+        this.nodeCount = nodeCount;
+        this.predicateCount = predicateCount;
+        this.seed = seed;
+    }
+
+
+    /**
+     * Sends all triples of the graph to the output, node by node with all relations of a node one after the other
+     *
+     * @param output : e.g. a writer, a graph or a DumpReader
+     */
+    public void generate(StreamRDF output) {
+
+        Random random = new Random(seed);
+
+        // cumulative zipf distribution over the predicates
+        double[] cumulative = new double[predicateCount];
+        double sum = 0;
+        for (int p = 0; p < predicateCount; p++) {
+            sum += 1.0 / Math.pow(p + 1, PREDICATE_EXPONENT);
+            cumulative[p] = sum;
+        }
+
+        Node[] predicates = new Node[predicateCount];
+        for (int p = 0; p < predicateCount; p++)
+            predicates[p] = NodeFactory.createURI(NAMESPACE + "p" + p);
+        Node type = RDF.type.asNode();
+        Node nodeClass = NodeFactory.createURI(NODE_CLASS);
+
+        // the objects of all relations so far, for the preferential attachment
+        IntList objects = new IntList();
+
+        output.start();
+        for (int n = 0; n < nodeCount; n++) {
+
+            Node subject = node(n);
+            output.triple(Triple.create(subject, type, nodeClass));
+
+            int degree = powerLawDegree(random);
+            for (int k = 0; k < degree; k++) {
+                Node predicate = predicates[zipf(cumulative, sum, random)];
+                if (random.nextDouble() < LITERAL_SHARE) {
+                    output.triple(Triple.create(subject, predicate, NodeFactory.createLiteral("v" + random.nextInt(100))));
+                    continue;
+                }
+                int object = !objects.isEmpty() && random.nextDouble() < COPY_SHARE ?
+                        objects.get(random.nextInt(objects.size())) : random.nextInt(nodeCount);
+                objects.add(object);
+                output.triple(Triple.create(subject, predicate, node(object)));
+            }
+        }
+        output.finish();
+    }
+
+    /**
+     * @return Dataset : a new in-memory dataset with the graph as its default graph
+     */
+    public Dataset toDataset() {
+        Dataset dataset = DatasetFactory.createTxnMem();
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            generate(StreamRDFLib.graph(dataset.getDefaultModel().getGraph()));
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
+        return dataset;
+    }
+
+    /**
+     * writes the graph as N-Triples into the file
+     */
+    public void write(String file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            generate(StreamRDFWriter.getWriterStream(out, Lang.NTRIPLES));
+        }
+    }
+
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return Node : the generated node with the given number
+     */
+    public static Node node(int n) {
+        return NodeFactory.createURI(NAMESPACE + "n" + n);
+    }
+
+    private static int powerLawDegree(Random random) {
+        return (int) Math.min(MAX_DEGREE, Math.pow(1 - random.nextDouble(), -1 / DEGREE_EXPONENT) - 1);
+    }
+
+    private static int zipf(double[] cumulative, double sum, Random random) {
+        double value = random.nextDouble() * sum;
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) / 2;
+            if (cumulative[middle] < value)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+
+    public static void main(String[] args) throws IOException {
+
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int predicateCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        String file = args.length > 3 ? args[3] : "generated.nt";
+
+        new GraphGenerator(nodeCount, predicateCount, seed).write(file);
+        System.out.println("written " + nodeCount + " nodes with " + predicateCount + " predicates into " + file);
+    }
+}
@@ -0,0 +1,202 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.resultset.ResultSetLang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * A minimal sparql endpoint over a jena Dataset, as stand-in for virtuoso or fuseki in the benchmarks, so that the
+ * whole way over HTTP is measured (RemoteTripleSource, GuardedTripleSource, the result parsing) without a triplestore
+ * to set up. It runs on the JDK's own HTTP server on localhost, on a free port.
+ *
+ * Only what RemoteTripleSource needs is supported: select queries over GET or POST (form or plain query), the result
+ * formats of RemoteTripleSource.FORMATS chosen by the Accept header, and gzip if asked for.
+ *
+ * The endpoint answers within microseconds, unlike a triplestore somewhere in the network. So for measuring how the
+ * threads hide the waiting for the answers (see FetchBenchmark), each answer can be delayed by a fixed latency.
+ *
+ * experimentable : a real fuseki (jena-fuseki-main) would also measure its own overhead, the generated graph can be
+ * loaded into it with GraphGenerator.main
+ */
+public class LocalEndpoint {
+
+    // the result formats by their mime type, in the order they are chosen if the Accept header allows several
+    private static final Object[][] FORMATS = {
+            { WebContent.contentTypeResultsThrift, ResultSetLang.SPARQLResultSetThrift },
+            { WebContent.contentTypeTextTSV, ResultSetLang.SPARQLResultSetTSV },
+            { WebContent.contentTypeResultsJSON, ResultSetLang.SPARQLResultSetJSON },
+            { WebContent.contentTypeResultsXML, ResultSetLang.SPARQLResultSetXML }
+    };
+
+    private Dataset dataset;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    // milliseconds each answer is delayed by, see the class comment
+    private int latency;
+
+
+    /**
+     * Starts the endpoint
+     *
+     * @param dataset : the dataset the queries go to
+     * @param threads : the number of queries answered at the same time
+     */
+    public LocalEndpoint(Dataset dataset, int threads) throws IOException {
+        this(dataset, threads, 0);
+    }
+
+    /**
+     * Starts the endpoint
+     *
+     * @param dataset : the dataset the queries go to
+     * @param threads : the number of queries answered at the same time
+     * @param latency : the milliseconds each answer is delayed by, 0 for none
+     */
+    public LocalEndpoint(Dataset dataset, int threads, int latency) throws IOException {
+
+        this.dataset = dataset;
+        this.latency = latency;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "local-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/sparql", exchange -> {
+            try {
+                answer(exchange);
+            } catch (RuntimeException e) {
+                byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(400, message.length);
+                exchange.getResponseBody().write(message);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+
+    private void answer(HttpExchange exchange) throws IOException {
+
+        String queryString = queryString(exchange);
+        if (queryString == null) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        Object[] format = format(exchange.getRequestHeaders().getFirst("Accept"));
+        if (format == null) {
+            exchange.sendResponseHeaders(406, -1);
+            return;
+        }
+
+        String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = encoding != null && encoding.contains("gzip");
+        exchange.getResponseHeaders().set("Content-Type", (String) format[0]);
+        if (gzip)
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+
+        // the query has to be evaluated before the status is sent, so that an error in it still gives a 400
+        dataset.begin(ReadWrite.READ);
+        try {
+            QueryExecution qexec = QueryExecutionFactory.create(queryString, dataset);
+            try {
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+                ResultSetMgr.write(result, qexec.execSelect(), (Lang) format[1]);
+
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = gzip ? new GZIPOutputStream(exchange.getResponseBody()) : exchange.getResponseBody();
+                result.writeTo(out);
+                out.close();
+            } finally {
+                qexec.close();
+            }
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * @return String : the query of a GET or POST request, or null if there is none
+     */
+    private static String queryString(HttpExchange exchange) throws IOException {
+
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (exchange.getRequestMethod().equals("POST") && contentType != null && contentType.startsWith(WebContent.contentTypeSPARQLQuery))
+            return read(exchange.getRequestBody());
+
+        String parameters = exchange.getRequestMethod().equals("POST") ?
+                read(exchange.getRequestBody()) : exchange.getRequestURI().getRawQuery();
+        if (parameters == null)
+            return null;
+        for (String parameter : parameters.split("&")) {
+            if (parameter.startsWith("query="))
+                return URLDecoder.decode(parameter.substring("query=".length()), "UTF-8");
+        }
+        return null;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int count; (count = in.read(buffer)) > 0; )
+            bytes.write(buffer, 0, count);
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Object[] : the most compact format which the Accept header allows, xml for * / *, null for none
+     */
+    private static Object[] format(String accept) {
+        if (accept == null)
+            return FORMATS[FORMATS.length - 1];
+        for (Object[] format : FORMATS) {
+            if (accept.contains((String) format[0]))
+                return format;
+        }
+        return accept.contains("*/*") ? FORMATS[FORMATS.length - 1] : null;
+    }
+
+
+    /**
+     * @return String : the URL of the endpoint for RemoteTripleSource
+     */
+    public String getURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/sparql";
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
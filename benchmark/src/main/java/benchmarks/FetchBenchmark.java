@@ -0,0 +1,67 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * phase 2, the relations of all nodes, queried in batches by several threads (see Main.fetchAdjacencies)
+ *
+ * With '-p latency=<ms>' each answer of the local endpoint is delayed, like from a remote triplestore, which shows
+ * how the time goes down with the number of threads (see the scaling in the README)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FetchBenchmark {
+
+    @Param({ "10000" })
+    public int nodes;
+
+    @Param({ "200" })
+    public int predicates;
+
+    @Param({ "dataset", "endpoint" })
+    public String source;
+
+    @Param({ "50", "200" })
+    public int batchSize;
+
+    @Param({ "1", "4", "16", "64" })
+    public int threads;
+
+    @Param({ "0" })
+    public int latency;
+
+    @Param({ "false" })
+    public boolean pushdown;
+
+    private Pipeline pipeline;
+
+
+    @Setup
+    public void setUp() throws Exception {
+        pipeline = Pipeline.create();
+        if (pushdown)
+            pipeline.configure("--pushdown");
+        pipeline.configure("--batch-size", String.valueOf(batchSize), "--threads", String.valueOf(threads));
+        pipeline.generate(nodes, predicates, 42);
+        pipeline.connect(source, latency);
+        pipeline.prepareNodes();
+    }
+
+    @Benchmark
+    public Object fetchRelations(NodeCounter counter) throws Exception {
+        counter.nodes += nodes;
+        return pipeline.fetchRelations();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.close();
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * phase 3, the grouping of the nodes by their neighbourhood and the counting of the relations between the groups
+ * (see Main.generateGroups), with the relations already in memory
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupingBenchmark {
+
+    @Param({ "100000" })
+    public int nodes;
+
+    @Param({ "200" })
+    public int predicates;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Param({ "0" })
+    public int partitions;
+
+    @Param({ "0", "2" })
+    public int refine;
+
+    private Pipeline pipeline;
+
+
+    @Setup
+    public void setUp() throws Exception {
+        pipeline = Pipeline.create();
+        pipeline.configure("--threads", String.valueOf(threads), "--partitions", String.valueOf(partitions),
+                "--refine", String.valueOf(refine));
+        pipeline.generate(nodes, predicates, 42);
+        pipeline.prepareRelations();
+    }
+
+    @Benchmark
+    public Object groupNodes(NodeCounter counter) throws Exception {
+        counter.nodes += nodes;
+        return pipeline.groupNodes();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.close();
+    }
+}
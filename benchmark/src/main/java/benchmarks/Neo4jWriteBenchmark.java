@@ -0,0 +1,69 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * phase 4, writing the groups into neo4j (see Neo4jWriter). Needs a running neo4j, whose data is replaced! Run it on
+ * its own with e.g.
+ *
+ * java -jar benchmarks.jar Neo4jWriteBenchmark -p url=bolt://127.0.0.1:7687 -p user=neo4j -p password=secret
+ *
+ * With sync, all iterations after the first find the same groups in neo4j already, so they measure a re-run of the
+ * same query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class Neo4jWriteBenchmark {
+
+    @Param({ "10000" })
+    public int nodes;
+
+    @Param({ "200" })
+    public int predicates;
+
+    @Param({ "1000" })
+    public int neo4jBatchSize;
+
+    @Param({ "false", "true" })
+    public boolean sync;
+
+    @Param({ "bolt://127.0.0.1:7687" })
+    public String url;
+
+    @Param({ "neo4j" })
+    public String user;
+
+    @Param({ "neo4j" })
+    public String password;
+
+    private Pipeline pipeline;
+
+
+    @Setup
+    public void setUp() throws Exception {
+        pipeline = Pipeline.create();
+        if (sync)
+            pipeline.configure("--neo4j-sync");
+        pipeline.configure("--neo4j-batch-size", String.valueOf(neo4jBatchSize));
+        pipeline.generate(nodes, predicates, 42);
+        pipeline.prepareGroups(url, user, password);
+    }
+
+    @Benchmark
+    public Object persist(NodeCounter counter) throws Exception {
+        counter.nodes += nodes;
+        return pipeline.persist();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.close();
+    }
+}
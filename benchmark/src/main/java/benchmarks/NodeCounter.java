@@ -0,0 +1,17 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Counts the nodes which went through a phase, so that JMH also reports the throughput in nodes per time unit next
+ * to the operations, which makes runs over graphs of different sizes comparable
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class NodeCounter {
+
+    public long nodes;
+}
@@ -0,0 +1,105 @@
+package benchmarks;
+
+
+/**
+ * The phases of SparQrawler as the benchmarks run them, over a generated graph.
+ *
+ * JMH only takes benchmarks which are within a package, but SparQrawler is in the default package, which can not be
+ * imported from any other package. So the benchmarks only know this interface, and the implementation
+ * (BenchmarkPipeline) is in the default package next to SparQrawler and is looked up by its name. The benchmarks call
+ * it through the interface only, so the lookup costs nothing within the measurement.
+ *
+ * The phases return what they produced, for the Blackhole of the benchmark.
+ */
+public interface Pipeline {
+
+    /**
+     * @return Pipeline : a new pipeline, see BenchmarkPipeline
+     */
+    static Pipeline create() throws ReflectiveOperationException {
+        return (Pipeline) Class.forName("BenchmarkPipeline").getConstructor().newInstance();
+    }
+
+
+    /**
+     * Sets the options of SparQrawler, with the command line arguments of Main (e.g. "--threads", "4")
+     */
+    void configure(String... args);
+
+    /**
+     * Generates the graph, see GraphGenerator
+     */
+    void generate(int nodes, int predicates, long seed);
+
+    /**
+     * Sets where the queries go to
+     *
+     * @param source : "dataset" for an in-memory dataset within the process, "endpoint" for a local endpoint over
+     *               HTTP (see LocalEndpoint), or the URL of an endpoint which has the generated graph loaded
+     */
+    default void connect(String source) throws Exception {
+        connect(source, 0);
+    }
+
+    /**
+     * Sets where the queries go to
+     *
+     * @param source : see connect(String)
+     * @param latency : only for "endpoint", the milliseconds the local endpoint waits before each answer, like the
+     *                round trip to and the work of a remote triplestore, 0 for none
+     */
+    void connect(String source, int latency) throws Exception;
+
+
+    /**
+     * phase 1, the seed query
+     */
+    Object seedQuery() throws Exception;
+
+    /**
+     * phase 2, the relations of the nodes of the seed query, which has to be run once before with prepareNodes
+     */
+    Object fetchRelations() throws Exception;
+
+    void prepareNodes() throws Exception;
+
+    /**
+     * the neighbourhood signatures of all nodes with their group index, the relations of which have to be there
+     * from prepareRelations
+     */
+    Object signatures();
+
+    /**
+     * the same as signatures, with the HashMap based neighbourhood which the NeighbourhoodSignature replaced as key,
+     * only as baseline
+     */
+    Object hashMapNeighbourhoods();
+
+    /**
+     * phase 3, the grouping, the relations of which have to be there from prepareRelations
+     */
+    Object groupNodes() throws Exception;
+
+    /**
+     * reads the relations of the nodes right from the generated graph, without any queries
+     */
+    void prepareRelations() throws Exception;
+
+    /**
+     * phase 4, writing the groups into neo4j, which have to be there from prepareGroups
+     */
+    Object persist() throws Exception;
+
+    /**
+     * groups the nodes and connects to neo4j
+     *
+     * @param url : e.g. bolt://127.0.0.1:7687
+     */
+    void prepareGroups(String url, String user, String password) throws Exception;
+
+
+    /**
+     * stops the endpoint, the threads and the connection to neo4j
+     */
+    void close();
+}
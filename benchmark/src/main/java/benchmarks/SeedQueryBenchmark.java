@@ -0,0 +1,52 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * phase 1, the seed query which selects all nodes of the graph, at once or in pages (see Main.getNodesFromQuery)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SeedQueryBenchmark {
+
+    @Param({ "100000" })
+    public int nodes;
+
+    @Param({ "200" })
+    public int predicates;
+
+    @Param({ "dataset", "endpoint" })
+    public String source;
+
+    @Param({ "0", "10000" })
+    public int seedPageSize;
+
+    private Pipeline pipeline;
+
+
+    @Setup
+    public void setUp() throws Exception {
+        pipeline = Pipeline.create();
+        pipeline.configure("--seed-page-size", String.valueOf(seedPageSize));
+        pipeline.generate(nodes, predicates, 42);
+        pipeline.connect(source);
+    }
+
+    @Benchmark
+    public Object seedQuery(NodeCounter counter) throws Exception {
+        counter.nodes += nodes;
+        return pipeline.seedQuery();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.close();
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * the neighbourhood signature of each node and the lookup of its group by it, which is the innermost part of the
+ * grouping (see NeighbourhoodSignature), on a single thread. hashMapNeighbourhoods does the same with the HashMap based
+ * neighbourhood which the signature replaced, as baseline
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+    @Param({ "100000" })
+    public int nodes;
+
+    @Param({ "20", "200" })
+    public int predicates;
+
+    private Pipeline pipeline;
+
+
+    @Setup
+    public void setUp() throws Exception {
+        pipeline = Pipeline.create();
+        pipeline.generate(nodes, predicates, 42);
+        pipeline.prepareRelations();
+    }
+
+    @Benchmark
+    public Object signatures(NodeCounter counter) {
+        counter.nodes += nodes;
+        return pipeline.signatures();
+    }
+
+    @Benchmark
+    public Object hashMapNeighbourhoods(NodeCounter counter) {
+        counter.nodes += nodes;
+        return pipeline.hashMapNeighbourhoods();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.close();
+    }
+}
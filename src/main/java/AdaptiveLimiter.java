@@ -0,0 +1,124 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * Controls how many queries are sent to the endpoint at the same time, so that the crawler goes as fast as the
+ * endpoint allows without knocking it over. The limit follows the AIMD scheme of TCP:
+ *
+ * - additive increase : each query which comes back in time raises the limit by 1 / limit, i.e. by one per round of
+ *   queries. Until the first sign of congestion (slow start), each query raises it by one, so the limit quickly gets
+ *   to where it should be
+ * - multiplicative decrease : a failed query, or a query which took more than LATENCY_TOLERANCE times the median
+ *   latency, halves the limit. At most once per median latency, so that the queries which were already in flight at
+ *   the time do not halve it over and over again
+ *
+ * The limit never goes below 1 nor above the maximum (the number of threads, since there are no more queries than that
+ * anyway). The latencies of the last WINDOW queries are kept for the median and for the percentiles which are shown
+ * while running. Sorting the window for the median on each query would cost more than the limiter saves, so the
+ * median is only computed anew every MEDIAN_INTERVAL queries, which is fresh enough for a window of WINDOW queries.
+ *
+ * experimentable : LATENCY_TOLERANCE, WINDOW and MEDIAN_INTERVAL, also a gradient based limit (like netflix' concurrency-limits) would
+ * react more smoothly to the latency than a fixed tolerance
+ */
+public class AdaptiveLimiter {
+
+    public static final double LATENCY_TOLERANCE = 2.0;
+    public static final int WINDOW = 1024;
+    public static final int MEDIAN_INTERVAL = 32;
+
+    private final int maxLimit;
+
+    private double limit = 1;
+    private boolean slowStart = true;
+    private int inFlight;
+
+    private long lastDecrease;
+
+    // ring buffer of the latest latencies in nanoseconds
+    private final long[] latencies = new long[WINDOW];
+    private int latencyCount;
+    private int latencyNext;
+
+    // the median of the window as of the last MEDIAN_INTERVAL queries, see release
+    private long median;
+    private int sinceMedian;
+
+
+    /**
+     * @param maxLimit : the highest number of queries at the same time
+     */
+    public AdaptiveLimiter(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+
+    /**
+     * Waits until one more query may be sent. Must be followed by exactly one call of release
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit)
+            wait();
+        inFlight++;
+    }
+
+    /**
+     * @param latencyNanos : how long the query took
+     * @param success : false if the query failed, e.g. with a timeout or a server error
+     */
+    public synchronized void release(long latencyNanos, boolean success) {
+
+        inFlight--;
+
+        long median = this.median;
+        if (success) {
+            latencies[latencyNext] = latencyNanos;
+            latencyNext = (latencyNext + 1) % WINDOW;
+            latencyCount = Math.min(latencyCount + 1, WINDOW);
+
+            // while the window is small, sorting it is cheap and each latency changes the median a lot
+            if (++sinceMedian >= MEDIAN_INTERVAL || latencyCount <= MEDIAN_INTERVAL) {
+                this.median = percentile(0.5);
+                sinceMedian = 0;
+            }
+        }
+
+        boolean congested = !success || (median > 0 && latencyNanos > LATENCY_TOLERANCE * median);
+        long now = System.nanoTime();
+        if (congested) {
+            if (now - lastDecrease > median) {
+                limit = Math.max(1, limit / 2);
+                slowStart = false;
+                lastDecrease = now;
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + (slowStart ? 1 : 1 / limit));
+        }
+
+        notifyAll();
+    }
+
+
+    /**
+     * @param fraction : e.g. 0.9 for the 90th percentile
+     * @return long : the percentile of the latest latencies in nanoseconds, 0 if there are none yet
+     */
+    public synchronized long percentile(double fraction) {
+        if (latencyCount == 0)
+            return 0;
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(latencyCount - 1, Math.floor(fraction * latencyCount))];
+    }
+
+    public synchronized double getLimit() {
+        return limit;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "limit: %.1f, in flight: %d, latency p50/p90/p99: %d/%d/%d ms",
+                limit, inFlight, percentile(0.5) / 1000000, percentile(0.9) / 1000000, percentile(0.99) / 1000000);
+    }
+}
@@ -0,0 +1,241 @@
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.sparql.util.FmtUtils;
+import org.apache.jena.sparql.util.NodeFactoryExtra;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Keeps the outgoing relations of rdf nodes across the queries of one session, so that a node which already showed up
+ * in an earlier query does not need to be fetched from the endpoint again.
+ *
+ * Unlike the AdjacencyStore, which only holds the relations within the node set of one query, the cache holds all
+ * outgoing relations of a node as they came from the endpoint (the endpoint sends them all anyway, the filtering to the
+ * node set happens on our side). So a cached node can serve any later query, whatever its node set.
+ *
+ * The cache is bounded by the number of relations it holds, when it grows beyond that the least recently used nodes
+ * are evicted. It can be saved to and loaded from a file per endpoint, see save and load.
+ *
+ * experimentable : the cache never notices when the data in the triplestore changes, that's what the ':invalidate'
+ * command of the REPL is for.
+ */
+public class AdjacencyCache {
+
+    /**
+     * The outgoing relations of a single node, relations[k] points to objects[k]
+     */
+    public static class Entry {
+
+        final RDFNode[] relations;
+        final RDFNode[] objects;
+
+        Entry(RDFNode[] relations, RDFNode[] objects) {
+            this.relations = relations;
+            this.objects = objects;
+        }
+
+        // a node without relations still takes up one unit, so that the bound also holds for many empty nodes
+        int weight() {
+            return relations.length + 1;
+        }
+    }
+
+
+    // in access order, so that the first entry is always the least recently used one
+    private LinkedHashMap<RDFNode, Entry> entries;
+
+    // the maximum number of relations held, and the number currently held
+    private long capacity;
+    private long weight;
+
+    // counting variables: nodes served from the cache, nodes not found in it, nodes evicted
+    private long hits;
+    private long misses;
+    private long evictions;
+
+
+    /**
+     * @param capacity : the maximum number of relations held by the cache
+     */
+    public AdjacencyCache(long capacity) {
+        this.entries = new LinkedHashMap<RDFNode, Entry>(16, 0.75f, true);
+        this.capacity = capacity;
+    }
+
+
+    /**
+     * @param node : a rdf node
+     * @return Entry : the outgoing relations of the node, or null if they are not cached
+     */
+    public synchronized Entry get(RDFNode node) {
+        Entry entry = entries.get(node);
+        if (entry == null) {
+            misses++;
+            Metrics.CACHE_MISSES.increment();
+        } else {
+            hits++;
+            Metrics.CACHE_HITS.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * puts all outgoing relations of a node into the cache, and evicts the least recently used nodes if the cache
+     * holds too many relations by then
+     */
+    public synchronized void put(RDFNode node, RDFNode[] relations, RDFNode[] objects) {
+
+        Entry entry = new Entry(relations, objects);
+        Entry previous = entries.put(node, entry);
+        weight += entry.weight() - (previous == null ? 0 : previous.weight());
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (weight > capacity && iterator.hasNext()) {
+            weight -= iterator.next().weight();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * removes everything from the cache, e.g. after the data in the triplestore has changed
+     */
+    public synchronized void invalidate() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+
+    /**
+     * The file of an endpoint within the cache directory. Its name is derived from the endpoint URL, so that the
+     * relations of different endpoints never get mixed up.
+     *
+     * @param cacheDir : the cache directory
+     * @param endpointURL : the URL of the endpoint
+     * @return File : the cache file of the endpoint
+     */
+    public static File fileFor(String cacheDir, String endpointURL) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(endpointURL.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder("adjacency-");
+            for (int k = 0; k < 8; k++)
+                name.append(String.format("%02x", hash[k]));
+            return new File(cacheDir, name.append(".tsv.gz").toString());
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads the nodes saved by an earlier run, if there is a file for this endpoint. The least recently used nodes of
+     * the earlier run come first, so should the capacity be smaller now these are the ones which are evicted.
+     *
+     * @param file : the cache file, see fileFor
+     * @param endpointURL : the URL of the endpoint, the file is ignored if it was saved for another one
+     * @throws IOException
+     */
+    public void load(File file, String endpointURL) throws IOException {
+
+        if (!file.exists())
+            return;
+
+        Model model = ModelFactory.createDefaultModel();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8));
+        try {
+            if (!("# endpoint\t" + endpointURL).equals(reader.readLine()))
+                return;
+
+            // one line per node: the node, then each relation and its object, all separated by tabs
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] terms = line.split("\t");
+                RDFNode[] relations = new RDFNode[terms.length / 2];
+                RDFNode[] objects = new RDFNode[terms.length / 2];
+                for (int k = 0; k < relations.length; k++) {
+                    relations[k] = model.asRDFNode(NodeFactoryExtra.parseNode(terms[2 * k + 1]));
+                    objects[k] = model.asRDFNode(NodeFactoryExtra.parseNode(terms[2 * k + 2]));
+                }
+                put(model.asRDFNode(NodeFactoryExtra.parseNode(terms[0])), relations, objects);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Saves all cached nodes into the file, so that the next run against the same endpoint can start with them.
+     *
+     * Blank nodes are not saved: their labels are only valid as long as the endpoint keeps them, so a node which is
+     * or points to a blank node is left out.
+     *
+     * @param file : the cache file, see fileFor
+     * @param endpointURL : the URL of the endpoint, written into the file
+     * @throws IOException
+     */
+    public synchronized void save(File file, String endpointURL) throws IOException {
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+
+        // written into a temporary file first, so that a crash while saving does not destroy the previous file
+        File temporary = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(temporary)), StandardCharsets.UTF_8));
+        try {
+            writer.write("# endpoint\t" + endpointURL + "\n");
+            for (Map.Entry<RDFNode, Entry> node : entries.entrySet()) {
+                if (hasBlankNode(node.getKey(), node.getValue()))
+                    continue;
+                StringBuilder line = new StringBuilder(FmtUtils.stringForNode(node.getKey().asNode()));
+                for (int k = 0; k < node.getValue().relations.length; k++) {
+                    line.append('\t').append(FmtUtils.stringForNode(node.getValue().relations[k].asNode()));
+                    line.append('\t').append(FmtUtils.stringForNode(node.getValue().objects[k].asNode()));
+                }
+                writer.write(line.append('\n').toString());
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!temporary.renameTo(file)) {
+            file.delete();
+            if (!temporary.renameTo(file))
+                throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static boolean hasBlankNode(RDFNode node, Entry entry) {
+        if (node.isAnon())
+            return true;
+        for (RDFNode object : entry.objects) {
+            if (object.isAnon())
+                return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "cached nodes: " + entries.size() + ", cached relations: " + (weight - entries.size()) +
+                ", cache hits: " + hits + ", cache misses: " + misses + ", evicted: " + evictions;
+    }
+}
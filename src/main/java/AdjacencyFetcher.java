@@ -0,0 +1,711 @@
+import org.apache.jena.query.*;
+import org.apache.jena.rdf.model.RDFNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+
+/**
+ * Fetches the relations of rdf nodes from the triplestore (or whichever TripleSource). Instead of sending one sparql query per node, the nodes are
+ * handed over in batches and injected into a single query as a VALUES block, so that the adjacency of hundreds of nodes
+ * is resolved within one round-trip.
+ *
+ * Endpoints cut off large results at their row cap without any error (virtuoso at 10000 rows by default), so a
+ * result which reaches the cap is not taken as it is, but the batch is split and queried again, see selectComplete.
+ *
+ * experimentable : very large batches could hit the query length limit of some endpoints, and batches which reach
+ * the row cap cost a query for nothing. So the batch size should be chosen according to the endpoint and the degree
+ * of the nodes.
+ *
+ * By default all outgoing relations of a node are sent by the endpoint and those leaving the node set are dropped
+ * here. With the pushdown (see inducedSubgraphPattern) the endpoint only sends the relations within the node set,
+ * which can also be done for the supernodes only (see fetch).
+ */
+public class AdjacencyFetcher {
+
+    private TripleSource source;
+
+    // the node set of the user query, relations whose other end is not in this set are dropped right away
+    private TermDictionary dictionary;
+
+    private FetchStatistics statistics;
+
+    // if not null, all outgoing relations of each fetched node are put into it, also those leaving the node set
+    private AdjacencyCache cache;
+
+    // the pattern which restricts the objects to the node set on the endpoint, see inducedSubgraphPattern. Only built
+    // if it is used, i.e. with the pushdown or for the supernodes
+    private String inducedSubgraphPattern;
+
+    // the same for the subjects of the incoming relations, see fetchIncoming
+    private String inducedSubjectPattern;
+
+    // if true, all relations are fetched with the inducedSubgraphPattern
+    private boolean pushdown;
+
+    // nodes with more outgoing relations than this are supernodes, see fetch. 0 if there are none
+    private int supernodeThreshold;
+
+    // the most rows the endpoint sends for a single query, 0 if it sends them all. A result with this many rows might
+    // be cut off, see selectComplete
+    private int maxRows;
+
+    // false while the nodes of the user query are still coming in, see setNodeSetComplete
+    private volatile boolean nodeSetComplete = true;
+
+    // the relations whose object was not part of the node set yet when they were fetched, see resolvePending
+    private ArrayList<Pending> pending = new ArrayList<Pending>();
+
+    // whether the warning about blank nodes without relations was printed already, see checkBlankNodes
+    private AtomicBoolean blankNodeWarning = new AtomicBoolean();
+
+
+    /**
+     * a relation which could not be filtered yet, since the node set was not complete at the time
+     */
+    private static class Pending {
+
+        final int subject;
+        final RDFNode relation;
+        final RDFNode object;
+
+        Pending(int subject, RDFNode relation, RDFNode object) {
+            this.subject = subject;
+            this.relation = relation;
+            this.object = object;
+        }
+    }
+
+
+    /**
+     * @param source : where the relations are queried from
+     * @param dictionary : contains the node set
+     * @param statistics : counts the requests and rows
+     * @param cache : the cache of earlier queries, or null
+     * @param userQuery : the query which produced the node set
+     * @param pushdown : if true, the user query is embedded into each query, so that the endpoint only returns
+     *                 relations within the node set
+     * @param supernodeThreshold : the number of outgoing relations above which a node is fetched on its own and with
+     *                           the user query embedded, 0 for not probing the number of relations at all
+     * @param maxRows : the row cap of the endpoint, i.e. the most rows it sends for a single query, 0 for no cap
+     */
+    public AdjacencyFetcher(TripleSource source, TermDictionary dictionary, FetchStatistics statistics, AdjacencyCache cache,
+                            String userQuery, boolean pushdown, int supernodeThreshold, int maxRows) {
+        this.source = source;
+        this.dictionary = dictionary;
+        this.statistics = statistics;
+        this.cache = cache;
+        this.pushdown = pushdown;
+        this.supernodeThreshold = supernodeThreshold;
+        this.maxRows = maxRows;
+        if (pushdown || supernodeThreshold > 0) {
+            this.inducedSubgraphPattern = inducedSubgraphPattern(userQuery);
+            this.inducedSubjectPattern = inducedSubgraphPattern(userQuery, "nSubject");
+        }
+    }
+
+
+    /**
+     * Builds a group graph pattern which binds ?nObject to every node of the node set, i.e. to every value of every
+     * variable of the user query. Joined with '?n ?nRelObject ?nObject' the endpoint then only returns the relations
+     * whose object is part of the node set too, which is the induced subgraph of the node set. For nodes which are
+     * connected to hubs, or have lots of literals, most rows are dropped on our side otherwise.
+     *
+     * The user query is embedded as subquery, each result row is turned into one row per variable by a VALUES block
+     * over the column numbers, and the DISTINCT leaves one row per node:
+     *
+     * { SELECT (?member AS ?nObject) WHERE { { SELECT DISTINCT ?member WHERE {
+     *     { user query }
+     *     VALUES ?column { 0 1 }
+     *     BIND (IF(?column = 0, ?a, IF(?column = 1, ?b, ?unbound)) AS ?member)
+     *     FILTER (BOUND(?member))
+     * } } } }
+     *
+     * experimentable : the endpoint evaluates the user query once more for each batch, so this pays off for cheap
+     * user queries with a small result over nodes with many relations, and less so the other way round. Also, the
+     * user query should give the same result each time, a LIMIT without ORDER BY might not.
+     *
+     * @param userQueryString : the select query of the user
+     * @return String : the group graph pattern
+     */
+    static String inducedSubgraphPattern(String userQueryString) {
+        return inducedSubgraphPattern(userQueryString, "nObject");
+    }
+
+    /**
+     * @param userQueryString : the select query of the user
+     * @param variable : the variable which is bound to the nodes, instead of ?nObject
+     * @return String : the group graph pattern
+     */
+    static String inducedSubgraphPattern(String userQueryString, String variable) {
+
+        Query userQuery = QueryFactory.create(userQueryString);
+        List<String> variables = userQuery.getResultVars();
+
+        // FROM is not allowed within a subquery, so the user query is sent to the same default graph as the fetch query
+        Query subquery = userQuery.cloneQuery();
+        subquery.getGraphURIs().clear();
+        subquery.getNamedGraphURIs().clear();
+
+        // the prefixes are not allowed within a subquery either, without them the IRIs are written out in full
+        subquery.getPrefixMapping().clearNsPrefixMap();
+
+        // the helper variables are renamed should the user query happen to use the same names
+        String member = freshVariable("member", variables);
+        String column = freshVariable("column", variables);
+
+        String choice = "?" + freshVariable("unbound", variables);
+        for (int k = variables.size() - 1; k >= 0; k--)
+            choice = "IF(?" + column + " = " + k + ", ?" + variables.get(k) + ", " + choice + ")";
+
+        StringBuilder columns = new StringBuilder();
+        for (int k = 0; k < variables.size(); k++)
+            columns.append(k).append(" ");
+
+        return "{ SELECT (?" + member + " AS ?" + variable + ") WHERE { { SELECT DISTINCT ?" + member + " WHERE {\n" +
+                "{ " + subquery.serialize() + " }\n" +
+                "VALUES ?" + column + " { " + columns + "}\n" +
+                "BIND (" + choice + " AS ?" + member + ")\n" +
+                "FILTER (BOUND(?" + member + "))\n" +
+                "} } } }";
+    }
+
+    private static String freshVariable(String name, List<String> variables) {
+        while (variables.contains(name))
+            name += "_";
+        return name;
+    }
+
+
+    /**
+     * While the result of the user query is still coming in page by page (see Main.getNodesFromQuery), nodes can
+     * already be fetched whose objects are not part of the node set yet, but will be once a later page arrives. So as
+     * long as the node set is not complete, such relations are not dropped but kept aside, and only filtered once the
+     * node set is complete (see resolvePending).
+     *
+     * @param complete : false before the first node of the user query is encoded, true after the last one
+     */
+    public void setNodeSetComplete(boolean complete) {
+        this.nodeSetComplete = complete;
+    }
+
+    /**
+     * Adds the relations which were kept aside while the node set was not complete to the store, as far as their
+     * object turned out to be part of the node set after all. Must be called once after the node set is complete and
+     * all fetches are done.
+     *
+     * @param store : the store which holds the nodes of the relations
+     * @return int : the number of relations added
+     */
+    public int resolvePending(AdjacencyStore store) {
+
+        int resolved = 0;
+        synchronized (pending) {
+            for (Pending relation : pending) {
+                int nObject = dictionary.lookupNode(relation.object);
+                if (nObject >= 0) {
+                    store.addOutgoing(relation.subject, dictionary.encodeRelation(relation.relation), nObject);
+                    resolved++;
+                }
+            }
+            pending.clear();
+        }
+        return resolved;
+    }
+
+    /**
+     * adds a relation of the node to its adjacency, if the object is part of the node set (or might still become
+     * part of it)
+     */
+    private void addRelation(NodeAdjacency adjacency, int id, RDFNode relation, RDFNode object) {
+
+        // read before the lookup: if the node set was complete by then, a failed lookup is final
+        boolean complete = nodeSetComplete;
+
+        int nObject = dictionary.lookupNode(object);
+        if (nObject >= 0) {
+            adjacency.addOutgoing(dictionary.encodeRelation(relation), nObject);
+        } else if (!complete) {
+            synchronized (pending) {
+                pending.add(new Pending(id, relation, object));
+            }
+        }
+    }
+
+
+    /**
+     * Looks up the relations of a node in the cache, instead of querying them
+     *
+     * @param id : the id of the node
+     * @return NodeAdjacency : the relations of the node within the node set, or null if the node is not cached
+     */
+    public NodeAdjacency fetchCached(int id) {
+
+        if (cache == null)
+            return null;
+
+        AdjacencyCache.Entry entry = cache.get(dictionary.decodeNode(id));
+        if (entry == null)
+            return null;
+
+        // the same filtering as for the rows of a query
+        NodeAdjacency adjacency = new NodeAdjacency();
+        for (int k = 0; k < entry.relations.length; k++)
+            addRelation(adjacency, id, entry.relations[k], entry.objects[k]);
+        return adjacency;
+    }
+
+
+    /**
+     * Queries the outgoing relations of all nodes of the given batch with one single sparql query.
+     *
+     * The node variable ?n is bound by a VALUES block, so that each result row tells to which node of the batch it
+     * belongs. Incoming relations are not queried at all: an incoming relation of a node only counts if its subject is
+     * part of the node set too, and then it is already among the outgoing relations of that subject. So the incoming
+     * relations are derived from the outgoing ones (see AdjacencyStore.deriveIncoming), and each relation between two
+     * nodes of the node set goes over the wire only once instead of twice.
+     *
+     * Supernodes, e.g. popular classes or shared objects, can have millions of relations of which only very few
+     * lead to the node set. So with a supernode threshold the number of relations of each node of the batch is
+     * probed first with a GROUP BY query on the endpoint, which only returns one small row per node. The nodes below
+     * the threshold are then fetched as batch as usual, while each supernode is fetched on its own with the user
+     * query embedded (see inducedSubgraphPattern), so that only the relations within the node set are sent. This
+     * also keeps a single supernode from pushing the whole batch over the result size cap of the endpoint.
+     *
+     * Since the number of relations of each node is known then anyway, the nodes below the threshold are not sent as
+     * one batch of however many rows, but packed into batches of less than maxRows relations together (see
+     * packByDegree). So a batch with a few busy nodes is split before it is queried, instead of reaching the row cap
+     * and being split and queried again afterwards (see selectComplete).
+     *
+     * Counting the relations on the endpoint is all which can be done there: every relation within the node set is
+     * needed later anyway, not only for the neighbourhood but also for wiring the groups.
+     *
+     * If there is a cache (and no pushdown), the unfiltered relations of each node of the batch are put into it, so
+     * that later queries with a different node set can still use them.
+     *
+     * @param ids : the ids of the nodes of the batch, in ascending order
+     * @return NodeAdjacency[] : the relations of each node of the batch, at the same index as in ids
+     */
+    public NodeAdjacency[] fetch(int[] ids) {
+
+        NodeAdjacency[] adjacencies = new NodeAdjacency[ids.length];
+        for (int k = 0; k < ids.length; k++)
+            adjacencies[k] = new NodeAdjacency();
+
+        if (ids.length == 0)
+            return adjacencies;
+
+        if (supernodeThreshold <= 0 || pushdown) {
+            fetchBatch(ids, adjacencies, pushdown);
+            return adjacencies;
+        }
+
+        long[] degrees = probeDegrees(ids, false);
+
+        IntList batch = new IntList(ids.length);
+        for (int k = 0; k < ids.length; k++) {
+            if (degrees[k] > supernodeThreshold) {
+                statistics.countSupernode();
+                NodeAdjacency[] supernode = { adjacencies[k] };
+                fetchBatch(new int[] { ids[k] }, supernode, true);
+            } else {
+                batch.add(ids[k]);
+            }
+        }
+
+        for (int[] batchIds : packByDegree(batch, ids, degrees)) {
+            NodeAdjacency[] batchAdjacencies = new NodeAdjacency[batchIds.length];
+            for (int k = 0; k < batchIds.length; k++)
+                batchAdjacencies[k] = adjacencies[Arrays.binarySearch(ids, batchIds[k])];
+            fetchBatch(batchIds, batchAdjacencies, false);
+        }
+        return adjacencies;
+    }
+
+
+    /**
+     * Like fetch, but the nodes which are in the cache are taken from there instead of being queried, see fetchCached
+     *
+     * @param ids : the ids of the nodes of the batch, in ascending order
+     * @return NodeAdjacency[] : the relations of each node of the batch, at the same index as in ids
+     */
+    public NodeAdjacency[] fetchOrCached(int[] ids) {
+
+        NodeAdjacency[] adjacencies = new NodeAdjacency[ids.length];
+        IntList missing = new IntList(ids.length);
+        for (int k = 0; k < ids.length; k++) {
+            adjacencies[k] = fetchCached(ids[k]);
+            if (adjacencies[k] == null)
+                missing.add(ids[k]);
+        }
+
+        if (!missing.isEmpty()) {
+            int[] missingIds = missing.toArray();
+            NodeAdjacency[] fetched = fetch(missingIds);
+            for (int k = 0; k < missingIds.length; k++)
+                adjacencies[Arrays.binarySearch(ids, missingIds[k])] = fetched[k];
+        }
+        return adjacencies;
+    }
+
+
+    /**
+     * Queries the incoming relations of the nodes of the batch, for the preview (see GroupPreview).
+     *
+     * For the grouping of all nodes, the incoming relations are derived from the outgoing ones (see fetch), since the
+     * subject of each incoming relation within the node set is fetched as well. The preview only fetches a sample of
+     * the nodes though, so most incoming relations of a sampled node come from nodes which are not fetched at all.
+     * So they are queried here as '?nSubject ?nRelSubject ?n', and only those whose subject is part of the node set
+     * are kept.
+     *
+     * Only the number of incoming relations of each kind is needed for the neighbourhood, not their subjects. So
+     * where the endpoint can restrict the subjects to the node set itself (with the pushdown, or for the nodes with
+     * more incoming relations than the supernode threshold, e.g. a popular class), it also counts them and only
+     * sends one row per node and relation, instead of one per subject.
+     *
+     * @param ids : the ids of the nodes of the batch, in ascending order
+     * @return IntList[] : the relation ids of the incoming relations of each node, with repetitions, at the same index
+     * as in ids
+     */
+    public IntList[] fetchIncoming(int[] ids) {
+
+        IntList[] incoming = new IntList[ids.length];
+        for (int k = 0; k < ids.length; k++)
+            incoming[k] = new IntList();
+
+        if (ids.length == 0)
+            return incoming;
+
+        if (supernodeThreshold <= 0 || pushdown) {
+            fetchIncomingBatch(ids, incoming, pushdown);
+            return incoming;
+        }
+
+        long[] degrees = probeDegrees(ids, true);
+
+        IntList batch = new IntList(ids.length);
+        IntList supernodes = new IntList();
+        for (int k = 0; k < ids.length; k++) {
+            if (degrees[k] > supernodeThreshold) {
+                statistics.countSupernode();
+                supernodes.add(ids[k]);
+            } else {
+                batch.add(ids[k]);
+            }
+        }
+
+        // the supernodes all together, since they only send one row per relation, the others packed by their number
+        // of relations like in fetch
+        if (!supernodes.isEmpty())
+            fetchIncomingPart(supernodes.toArray(), ids, incoming, true);
+        for (int[] partIds : packByDegree(batch, ids, degrees))
+            fetchIncomingPart(partIds, ids, incoming, false);
+        return incoming;
+    }
+
+    /**
+     * fetchIncomingBatch for a part of the batch
+     */
+    private void fetchIncomingPart(int[] partIds, int[] ids, IntList[] incoming, boolean counted) {
+        IntList[] partIncoming = new IntList[partIds.length];
+        for (int k = 0; k < partIds.length; k++)
+            partIncoming[k] = incoming[Arrays.binarySearch(ids, partIds[k])];
+        fetchIncomingBatch(partIds, partIncoming, counted);
+    }
+
+    /**
+     * Splits the nodes of a batch into batches whose probed number of relations adds up to less than maxRows, so that
+     * their result stays below the row cap of the endpoint (a result of exactly maxRows rows counts as cut off). The nodes are taken in their order, so each batch stays in
+     * ascending order. A node with more relations than maxRows gets a batch of its own, which is then queried in
+     * pages (see selectComplete).
+     *
+     * experimentable : the nodes are packed in their order, sorting them by their number of relations first would
+     * fill the batches more evenly, but needs the ids sorted again within each batch
+     *
+     * @param batch : the ids of the nodes to pack, in ascending order
+     * @param ids : all ids of the batch, in ascending order
+     * @param degrees : the number of relations of each node, at the same index as in ids
+     * @return ArrayList<int[]> : the ids of each batch, in ascending order, a single one if there is no maxRows
+     */
+    private ArrayList<int[]> packByDegree(IntList batch, int[] ids, long[] degrees) {
+
+        ArrayList<int[]> batches = new ArrayList<int[]>();
+        if (batch.isEmpty())
+            return batches;
+        if (maxRows <= 0) {
+            batches.add(batch.toArray());
+            return batches;
+        }
+
+        IntList current = new IntList();
+        long rows = 0;
+        for (int k = 0; k < batch.size(); k++) {
+            long degree = degrees[Arrays.binarySearch(ids, batch.get(k))];
+            if (!current.isEmpty() && rows + degree >= maxRows) {
+                batches.add(current.toArray());
+                current = new IntList();
+                rows = 0;
+            }
+            current.add(batch.get(k));
+            rows += degree;
+        }
+        batches.add(current.toArray());
+        return batches;
+    }
+
+    /**
+     * @param ids : the ids of the nodes of the batch, in ascending order
+     * @param incoming : the relation ids of the incoming relations of each node are added here, at the same index as
+     *                 in ids
+     * @param counted : if true, the endpoint restricts the subjects to the node set and counts them
+     */
+    private void fetchIncomingBatch(int[] ids, IntList[] incoming, boolean counted) {
+
+        Function<int[], String> query = part -> {
+            ParameterizedSparqlString pss = new ParameterizedSparqlString();
+            pss.append(counted ? "SELECT ?n ?nRelSubject (COUNT(*) AS ?count) WHERE { " : "SELECT * WHERE { ");
+            appendValues(pss, part);
+            pss.append("?nSubject ?nRelSubject ?n");
+            if (counted)
+                pss.append(" .\n" + inducedSubjectPattern + " } GROUP BY ?n ?nRelSubject");
+            else
+                pss.append(" }");
+            return pss.toString();
+        };
+
+        selectComplete(ids, query, counted ? "?nRelSubject" : "?nRelSubject ?nSubject", (part, qs) -> {
+
+            int id = part.length == 1 ? part[0] : dictionary.lookupNode(qs.get("?n"));
+            int index = id < 0 ? -1 : Arrays.binarySearch(ids, id);
+            if (index < 0 || !counted && dictionary.lookupNode(qs.get("?nSubject")) < 0)
+                return;
+
+            int relation = dictionary.encodeRelation(qs.get("?nRelSubject"));
+            long count = counted ? qs.getLiteral("?count").getLong() : 1;
+            for (long c = 0; c < count; c++)
+                incoming[index].add(relation);
+        });
+    }
+
+
+    /**
+     * Counts the outgoing (or incoming) relations of each node of the batch on the endpoint
+     *
+     * @param ids : the ids of the nodes of the batch, in ascending order
+     * @param incoming : if true, the incoming relations are counted
+     * @return long[] : the number of relations of each node, at the same index as in ids
+     */
+    private long[] probeDegrees(int[] ids, boolean incoming) {
+
+        ParameterizedSparqlString pss = new ParameterizedSparqlString();
+        pss.append("SELECT ?n (COUNT(*) AS ?degree) WHERE { ");
+        appendValues(pss, ids);
+        pss.append(incoming ? "?nSubject ?nRelSubject ?n } GROUP BY ?n" : "?n ?nRelObject ?nObject } GROUP BY ?n");
+
+        long[] degrees = new long[ids.length];
+
+        source.select(pss.toString(), statistics, qs -> {
+
+            int id = ids.length == 1 ? ids[0] : dictionary.lookupNode(qs.get("?n"));
+            int index = id < 0 ? -1 : Arrays.binarySearch(ids, id);
+            if (index >= 0)
+                degrees[index] = qs.getLiteral("?degree").getLong();
+        });
+        return degrees;
+    }
+
+
+    /**
+     * injects all nodes of the batch into a VALUES block for ?n
+     *
+     * Blank nodes are not allowed in a VALUES block, and there is no standard way to refer to a blank node of the
+     * endpoint. So they are sent as IRI in the notation of the endpoint which is known from its label (the labels
+     * are kept as the endpoint sent them, see RemoteTripleSource):
+     * - virtuoso labels its blank nodes 'nodeID://b1234' and takes them back as <nodeID://b1234>
+     * - everything else in jena's <_:label> notation, which is what jena and fuseki understand
+     * Any other endpoint takes them as plain IRIs, which match nothing, see checkBlankNodes
+     */
+    private void appendValues(ParameterizedSparqlString pss, int[] ids) {
+
+        pss.append("VALUES ?n { ");
+        for (int id : ids) {
+            RDFNode n = dictionary.decodeNode(id);
+            if (n.isAnon()) {
+                String label = n.asNode().getBlankNodeLabel();
+                pss.appendIri(label.startsWith("nodeID://") ? label : "_:" + label);
+            } else {
+                pss.appendNode(n);
+            }
+            pss.append(" ");
+        }
+        pss.append("} ");
+    }
+
+    /**
+     * Warns about the blank nodes of a batch which did not get a single row. Either they have no outgoing relations
+     * at all, or the endpoint did not know them by the way they were sent (see appendValues), which would silently
+     * put them all into the group of nodes without outgoing relations otherwise. With a restricted query, no rows
+     * can also mean no relations within the node set, so the number of all their relations is probed first.
+     *
+     * @param ids : the ids of the nodes of the batch, in ascending order
+     * @param rows : the number of rows of each node, at the same index as in ids
+     * @param restricted : if true, the rows were restricted to the node set
+     */
+    private void checkBlankNodes(int[] ids, int[] rows, boolean restricted) {
+
+        IntList silent = new IntList();
+        for (int k = 0; k < ids.length; k++) {
+            if (rows[k] == 0 && dictionary.decodeNode(ids[k]).isAnon())
+                silent.add(ids[k]);
+        }
+        if (silent.isEmpty())
+            return;
+
+        int[] silentIds = silent.toArray();
+        long[] degrees = restricted ? probeDegrees(silentIds, false) : new long[silentIds.length];
+        for (int k = 0; k < silentIds.length; k++) {
+            if (degrees[k] > 0)
+                continue;
+            statistics.countSilentBlankNode();
+            if (blankNodeWarning.compareAndSet(false, true))
+                System.out.println("warning: the blank node _:" + dictionary.decodeNode(silentIds[k]).asNode().getBlankNodeLabel() +
+                        " got no relations at all from the endpoint. Either it has none, or the endpoint does not know blank nodes by" +
+                        " their label (only virtuoso's nodeID:// labels and jena's labels can be sent back), then all blank nodes are" +
+                        " grouped as if they had no outgoing relations");
+        }
+    }
+
+
+    /**
+     * Queries the outgoing relations of all nodes of the given batch with one single sparql query
+     *
+     * @param ids : the ids of the nodes of the batch, in ascending order
+     * @param adjacencies : the relations of each node of the batch are added here, at the same index as in ids
+     * @param restricted : if true, the endpoint only returns the relations within the node set
+     */
+    private void fetchBatch(int[] ids, NodeAdjacency[] adjacencies, boolean restricted) {
+
+        // query preparation, injecting all nodes of the batch (or of a part of it, see selectComplete) into the
+        // VALUES block
+        Function<int[], String> query = part -> {
+            ParameterizedSparqlString pss = new ParameterizedSparqlString();
+            pss.append("SELECT * WHERE { ");
+            appendValues(pss, part);
+            pss.append("?n ?nRelObject ?nObject");
+            if (restricted)
+                pss.append(" .\n" + inducedSubgraphPattern);
+            pss.append(" }");
+            return pss.toString();
+        };
+
+        // the unfiltered relations and objects of each node of the batch, at the same index as in ids.
+        // Restricted relations are filtered already, so they are of no use for other queries
+        boolean caching = cache != null && !restricted;
+        ArrayList<ArrayList<RDFNode>> cacheRelations = new ArrayList<ArrayList<RDFNode>>();
+        ArrayList<ArrayList<RDFNode>> cacheObjects = new ArrayList<ArrayList<RDFNode>>();
+        if (caching) {
+            for (int k = 0; k < ids.length; k++) {
+                cacheRelations.add(new ArrayList<RDFNode>());
+                cacheObjects.add(new ArrayList<RDFNode>());
+            }
+        }
+
+        // the number of rows of each node of the batch, also of those which are dropped, see checkBlankNodes
+        int[] rows = new int[ids.length];
+
+        selectComplete(ids, query, "?nRelObject ?nObject", (part, qs) -> {
+
+            // with a single node there is no doubt to whom the row belongs, otherwise the row is matched by ?n.
+            // Should the endpoint return ?n in a different lexical form than it was sent, the row is skipped
+            int id = part.length == 1 ? part[0] : dictionary.lookupNode(qs.get("?n"));
+            int index = id < 0 ? -1 : Arrays.binarySearch(ids, id);
+            if (index < 0)
+                return;
+            rows[index]++;
+
+            if (caching) {
+                cacheRelations.get(index).add(qs.get("?nRelObject"));
+                cacheObjects.get(index).add(qs.get("?nObject"));
+            }
+
+            // also when restricted, the endpoint might return a node in a different lexical form
+            addRelation(adjacencies[index], id, qs.get("?nRelObject"), qs.get("?nObject"));
+        });
+
+        checkBlankNodes(ids, rows, restricted);
+
+        // only put into the cache once the whole result has arrived, a failed request must not leave half a node there.
+        // Blank nodes without rows are left out, since it is not sure that they really have no relations
+        if (caching) {
+            for (int k = 0; k < ids.length; k++) {
+                if (rows[k] == 0 && dictionary.decodeNode(ids[k]).isAnon())
+                    continue;
+                cache.put(dictionary.decodeNode(ids[k]),
+                        cacheRelations.get(k).toArray(new RDFNode[0]), cacheObjects.get(k).toArray(new RDFNode[0]));
+            }
+        }
+    }
+
+
+    /**
+     * Sends the query for the rows of a batch, and only hands the rows to the consumer once it is sure that they are
+     * all there.
+     *
+     * The endpoint cuts off a result at its row cap without any error, e.g. a batch of 200 nodes with 50 relations
+     * each already has more rows than virtuoso sends by default. The nodes whose rows were cut off would silently get
+     * a wrong neighbourhood and end up in wrong groups. So a result which reaches maxRows counts as cut off, and the
+     * batch is split in halves which are queried again, down to a single node, whose rows are then queried in pages
+     * (see selectPaged).
+     *
+     * @param ids : the ids of the nodes of the batch, in ascending order
+     * @param query : builds the query for (a part of) the batch
+     * @param order : the variables which put the rows of a single node into a total order, for the pages
+     * @param consumer : called for each row, together with the ids of the part of the batch the row was queried with
+     */
+    private void selectComplete(int[] ids, Function<int[], String> query, String order,
+                                BiConsumer<int[], QuerySolution> consumer) {
+
+        ArrayList<QuerySolution> rows = new ArrayList<QuerySolution>();
+        source.select(query.apply(ids), statistics, rows::add);
+
+        if (maxRows <= 0 || rows.size() < maxRows) {
+            for (QuerySolution row : rows)
+                consumer.accept(ids, row);
+            return;
+        }
+
+        statistics.countCapped();
+        if (ids.length == 1) {
+            selectPaged(ids, query.apply(ids), order, consumer);
+            return;
+        }
+        int half = ids.length / 2;
+        selectComplete(Arrays.copyOfRange(ids, 0, half), query, order, consumer);
+        selectComplete(Arrays.copyOfRange(ids, half, ids.length), query, order, consumer);
+    }
+
+    /**
+     * Queries the rows of a single node which has more of them than the endpoint sends at once, in pages of maxRows
+     * rows. The rows are sorted within a subquery and the pages are cut from it outside, since virtuoso refuses to
+     * sort for a page which lies beyond its row cap otherwise.
+     *
+     * experimentable : like the pages of the user query (see Main.getNodesFromQuery), the pages are only consistent
+     * as long as the data does not change in between
+     */
+    private void selectPaged(int[] ids, String query, String order, BiConsumer<int[], QuerySolution> consumer) {
+
+        for (long offset = 0; ; offset += maxRows) {
+            ArrayList<QuerySolution> rows = new ArrayList<QuerySolution>();
+            source.select("SELECT * WHERE { { " + query + " ORDER BY " + order + " } } LIMIT " + maxRows + " OFFSET " + offset,
+                    statistics, rows::add);
+            for (QuerySolution row : rows)
+                consumer.accept(ids, row);
+            if (rows.size() < maxRows)
+                return;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Holds the relations of every node of the node set for the duration of one run, indexed by node id. Each node's
+ * relations are fetched from the triplestore at most once, all later reads (for the neighbourhood of the node as
+ * subject and for the relations of its group) are served from here.
+ *
+ * Only the outgoing relations are fetched (or read from a dump), the incoming relations are derived from them once
+ * all nodes are known, see deriveIncoming.
+ *
+ * The store can grow while it is being filled, when the nodes come in page by page (see Main.getNodesFromQuery), so
+ * all accesses while fetching go through the lock of the store. Each access only puts or takes a whole node, the
+ * queries themselves run outside of the lock.
+ *
+ * With a SpillGrouping, the relations are not kept here at all but written to disk as soon as a node is put into the
+ * store, only the fact that the node is done is kept. The incoming relations are then derived while sorting, see
+ * SpillGrouping, and the relations can not be read from the store.
+ */
+public class AdjacencyStore {
+
+    private NodeAdjacency[] adjacencies;
+
+    // the number of nodes, the array may already have room for more
+    private int size;
+
+    // if not null, the relations go to disk, see SpillGrouping
+    private SpillGrouping spill;
+
+    // the placeholder for the nodes whose relations are on disk
+    private static final NodeAdjacency SPILLED = new NodeAdjacency();
+
+    // counting variables: reads served by the store, nodes fetched from the endpoint, nodes taken from the cache
+    // of earlier queries, incoming relations derived
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong fetched = new AtomicLong();
+    private AtomicLong cached = new AtomicLong();
+    private long derived;
+
+
+    public AdjacencyStore(int nodeCount) {
+        this(nodeCount, null);
+    }
+
+    /**
+     * @param nodeCount : the number of nodes known so far
+     * @param spill : the grouping on disk which takes the relations, or null for keeping them here
+     */
+    public AdjacencyStore(int nodeCount, SpillGrouping spill) {
+        this.adjacencies = new NodeAdjacency[nodeCount];
+        this.size = nodeCount;
+        this.spill = spill;
+    }
+
+
+    /**
+     * makes room for the nodes up to the given count, the nodes already in the store are kept
+     *
+     * @param nodeCount : the number of nodes of the node set so far
+     */
+    public synchronized void grow(int nodeCount) {
+        if (nodeCount > adjacencies.length)
+            adjacencies = Arrays.copyOf(adjacencies, Math.max(nodeCount, adjacencies.length + adjacencies.length / 2));
+        size = Math.max(size, nodeCount);
+    }
+
+
+    /**
+     * Fetches the outgoing relations of those nodes between from (inclusive) and to (exclusive) which are not in the
+     * store yet, all with one query. Nodes which are in the cache of the fetcher are taken from there and not
+     * queried at all. Different threads may fetch different ranges at the same time.
+     *
+     * @param fetcher : the fetcher which queries the triplestore
+     * @param from : the first node id
+     * @param to : the id after the last node
+     */
+    public void fetch(AdjacencyFetcher fetcher, int from, int to) {
+
+        IntList missing = new IntList(to - from);
+        for (int id = from; id < to; id++) {
+            synchronized (this) {
+                if (adjacencies[id] != null)
+                    continue;
+            }
+            NodeAdjacency adjacency = fetcher.fetchCached(id);
+            if (adjacency == null) {
+                missing.add(id);
+            } else {
+                put(id, adjacency);
+                cached.incrementAndGet();
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            int[] ids = missing.toArray();
+            NodeAdjacency[] fetchedAdjacencies = fetcher.fetch(ids);
+            synchronized (this) {
+                for (int k = 0; k < ids.length; k++)
+                    put(ids[k], fetchedAdjacencies[k]);
+            }
+            fetched.addAndGet(ids.length);
+        }
+    }
+
+    /**
+     * puts the relations of a node into the store which did not come from the endpoint (e.g. from a dump)
+     */
+    public synchronized void put(int node, NodeAdjacency adjacency) {
+        if (spill == null) {
+            adjacencies[node] = adjacency;
+            return;
+        }
+        for (int k = 0; k < adjacency.outgoingRelations.size(); k++)
+            spill.addEdge(node, adjacency.outgoingRelations.get(k), adjacency.outgoingObjects.get(k));
+        adjacencies[node] = SPILLED;
+    }
+
+    /**
+     * adds an outgoing relation to a node which is already in the store, see AdjacencyFetcher.resolvePending
+     */
+    public synchronized void addOutgoing(int subject, int relation, int object) {
+        if (spill != null)
+            spill.addEdge(subject, relation, object);
+        else
+            adjacencies[subject].addOutgoing(relation, object);
+    }
+
+    /**
+     * @param node : a node id
+     * @return NodeAdjacency : the relations of the node
+     */
+    public NodeAdjacency get(int node) {
+        if (spill != null)
+            throw new IllegalStateException("The relations are on disk, see SpillGrouping");
+        hits.incrementAndGet();
+        return adjacencies[node];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return SpillGrouping : the grouping on disk which holds the relations, or null if they are kept here
+     */
+    public SpillGrouping getSpill() {
+        return spill;
+    }
+
+
+    /**
+     * Adds to each node its incoming relations, which are the outgoing relations of the other nodes pointing to it.
+     * Must be called once after the outgoing relations of all nodes are in the store. Does nothing if the relations
+     * are on disk, then the SpillGrouping derives them.
+     */
+    public void deriveIncoming() {
+
+        if (spill != null)
+            return;
+
+        for (int subject = 0; subject < size; subject++) {
+            NodeAdjacency adjacency = adjacencies[subject];
+            for (int k = 0; k < adjacency.outgoingObjects.size(); k++) {
+                adjacencies[adjacency.outgoingObjects.get(k)].addIncoming(subject, adjacency.outgoingRelations.get(k));
+                derived++;
+            }
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "store hits: " + hits.get() + ", nodes fetched from endpoint: " + fetched.get() +
+                ", nodes from cache: " + cached.get() + ", incoming relations derived locally: " + derived +
+                (spill != null ? ", " + spill : "");
+    }
+}
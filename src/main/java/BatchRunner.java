@@ -0,0 +1,428 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The headless mode (command line argument '--config <file>'): the queries are not typed in, but run as jobs, several
+ * of them at the same time, e.g. hundreds of queries over night. See Main.runBatch.
+ *
+ * All jobs share what is expensive to set up and worth keeping warm: the triple source with its pool of kept-alive
+ * connections and its adaptive limit (so the endpoint sees at most 'threads' queries at the same time, over all jobs),
+ * the adjacency cache, the worker threads and the neo4j driver. Everything else belongs to the job, like its
+ * dictionary, store and groups (see Main.execute).
+ *
+ * A failing job only fails itself: its error is kept with the job and the other jobs go on. Each job writes its
+ * groups into neo4j with a label of its own ('Group_' and the name of the job, see Neo4jWriter), so that the jobs do
+ * not delete each others groups, and its output into a log file of its own, so that the output of the jobs running at
+ * the same time does not get mixed up on the console. The work a job hands over to other threads (the chunks on the
+ * worker threads, the micro-batches of the streaming mode) takes the log of the job along, see withJobLog. What the
+ * shared parts print goes into the log of the job whose query made them print it, e.g. when the circuit breaker
+ * opens or the endpoint refuses the result formats, even though it concerns all jobs. Only the progress line (see
+ * Metrics.startProgress) is printed onto the console, over all jobs, without the phases of the single jobs.
+ *
+ * experimentable : the jobs are run in the order they are submitted. Cheap queries first would give results earlier.
+ */
+public class BatchRunner {
+
+    /**
+     * A query run as job, with its state. The state is only written by the thread running the job, and read by
+     * anyone (e.g. the JobServer)
+     */
+    public static class Job {
+
+        private final String name;
+        private final String query;
+        private final File log;
+
+        private volatile String state = "queued";
+        private volatile String error;
+        private volatile int groups;
+        private volatile long startTime;
+        private volatile long endTime;
+
+        private Job(String name, String query, File log) {
+            this.name = name;
+            this.query = query;
+            this.log = log;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * @return String : the label of the groups of this job in neo4j
+         */
+        public String getLabel() {
+            return "Group_" + name;
+        }
+
+        public File getLog() {
+            return log;
+        }
+
+        /**
+         * @return String : queued, running, done or failed
+         */
+        public String getState() {
+            return state;
+        }
+
+        /**
+         * @return String : why the job failed, null if it did not
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return int : the number of groups, once the job is done
+         */
+        public int getGroups() {
+            return groups;
+        }
+
+        /**
+         * @return long : milliseconds the job has been running, or took, 0 while queued
+         */
+        public long getElapsed() {
+            return startTime == 0 ? 0 : (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + state + (error != null ? " (" + error + ")" : "") +
+                    (state.equals("done") ? ", number of groups: " + groups : "") + ", time elapsed: " + getElapsed();
+        }
+    }
+
+
+    // the keys of the config file which are no command line arguments
+    private static final List<String> CONNECTION_KEYS = Arrays.asList("endpoint", "neo4j.url", "neo4j.user", "neo4j.password");
+
+    private ExecutorService executor;
+    private File logDir;
+
+    // all jobs by their name, in the order they were submitted
+    private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<String, Job>();
+    private final ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+    // the log of the job the current thread is running or working for, null for the console. Static like System.out,
+    // so that the threads of the pool can take it over, see withJobLog
+    private static final ThreadLocal<PrintStream> currentLog = new ThreadLocal<PrintStream>();
+    private final PrintStream console;
+
+
+    /**
+     * Creates the runner and routes System.out by thread from now on: the threads running a job print into the log
+     * of the job, all other threads onto the console
+     *
+     * @param parallelJobs : the number of jobs running at the same time
+     * @param logDir : the directory of the log files of the jobs, created if not there
+     */
+    public BatchRunner(int parallelJobs, String logDir) throws IOException {
+
+        this.logDir = new File(logDir);
+        Files.createDirectories(this.logDir.toPath());
+
+        this.executor = Executors.newFixedThreadPool(parallelJobs, runnable -> new Thread(runnable, "job"));
+
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                target().write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                target().write(bytes, offset, length);
+            }
+
+            @Override
+            public void flush() {
+                target().flush();
+            }
+
+            private PrintStream target() {
+                PrintStream log = currentLog.get();
+                return log != null ? log : console;
+            }
+        }, true));
+    }
+
+
+    /**
+     * Wraps a task which the current thread hands over to another thread (e.g. to the worker pool), so that what the
+     * task prints goes where the current thread prints to: into the log of its job, or onto the console. Outside of
+     * the headless mode the task is returned as it is.
+     *
+     * @param task : the task to hand over
+     * @return Callable<T> : the task, which sets the log while it runs
+     */
+    public static <T> Callable<T> withJobLog(Callable<T> task) {
+
+        PrintStream log = currentLog.get();
+        if (log == null)
+            return task;
+
+        return () -> {
+            PrintStream previous = currentLog.get();
+            currentLog.set(log);
+            try {
+                return task.call();
+            } finally {
+                currentLog.set(previous);
+            }
+        };
+    }
+
+    /**
+     * withJobLog for a task which returns nothing, e.g. for a timer
+     */
+    public static Runnable withJobLog(Runnable task) {
+
+        PrintStream log = currentLog.get();
+        if (log == null)
+            return task;
+
+        return () -> {
+            PrintStream previous = currentLog.get();
+            currentLog.set(log);
+            try {
+                task.run();
+            } finally {
+                currentLog.set(previous);
+            }
+        };
+    }
+
+
+    /**
+     * Queues a query as job
+     *
+     * @param name : the name of the job, only letters, digits and '_' are kept, and a number is appended should there
+     *             be a job of that name already
+     * @param query : the sparql query
+     * @return Job : the job, whose state changes as it runs
+     */
+    public synchronized Job submit(String name, String query) {
+
+        String base = name.replaceAll("[^A-Za-z0-9_]", "_");
+        if (base.isEmpty())
+            base = "job";
+        String unique = base;
+        for (int n = 2; jobs.containsKey(unique); n++)
+            unique = base + "_" + n;
+
+        Job job = new Job(unique, query, new File(logDir, unique + ".log"));
+        jobs.put(unique, job);
+        futures.add(executor.submit(() -> run(job)));
+        return job;
+    }
+
+    private void run(Job job) {
+
+        job.startTime = System.currentTimeMillis();
+        job.state = "running";
+        console.println("job " + job.name + " started");
+
+        try (PrintStream log = new PrintStream(new FileOutputStream(job.log), true, "UTF-8")) {
+            currentLog.set(log);
+            try {
+                job.groups = Main.previewFraction > 0 ? Main.executePreview(job.query) : Main.execute(job.query, job.getLabel());
+                job.state = "done";
+            } catch (Throwable e) {
+                // also errors like a StackOverflowError over a huge query only fail this job. The whole stack trace
+                // goes into the log, the job keeps the first line
+                e.printStackTrace(log);
+                job.error = e.toString().split("\n", 2)[0];
+                job.state = "failed";
+            } finally {
+                currentLog.set(null);
+            }
+        } catch (IOException e) {
+            job.error = "Could not write the log: " + e;
+            job.state = "failed";
+        }
+
+        job.endTime = System.currentTimeMillis();
+        console.println("job " + job);
+        writeMetrics();
+    }
+
+    /**
+     * The metrics are not reset between the jobs, so the report is over all jobs so far, see Main.startMetrics
+     */
+    private synchronized void writeMetrics() {
+        if (Main.metricsFile == null)
+            return;
+        try {
+            Metrics.writeReport(Main.metricsFile, "batch: " + getSummary());
+        } catch (IOException e) {
+            console.println("Could not write the metrics: " + e);
+        }
+    }
+
+
+    /**
+     * waits until all jobs submitted so far are finished
+     *
+     * @return int : the number of failed jobs
+     */
+    public int awaitAll() throws InterruptedException {
+
+        ArrayList<Future<?>> waitFor;
+        synchronized (this) {
+            waitFor = new ArrayList<Future<?>>(futures);
+        }
+        for (Future<?> future : waitFor) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                // can not happen, run catches everything
+            }
+        }
+
+        int failed = 0;
+        for (Job job : getJobs()) {
+            if (job.getState().equals("failed"))
+                failed++;
+        }
+        return failed;
+    }
+
+    public synchronized List<Job> getJobs() {
+        return new ArrayList<Job>(jobs.values());
+    }
+
+    /**
+     * @return Job : the job of this name, or null
+     */
+    public synchronized Job getJob(String name) {
+        return jobs.get(name);
+    }
+
+    /**
+     * @return String : how many jobs are in which state
+     */
+    public synchronized String getSummary() {
+        int[] counts = new int[4];
+        List<String> states = Arrays.asList("queued", "running", "done", "failed");
+        for (Job job : jobs.values())
+            counts[states.indexOf(job.getState())]++;
+        return "jobs: " + jobs.size() + ", queued: " + counts[0] + ", running: " + counts[1] + ", done: " + counts[2] + ", failed: " + counts[3];
+    }
+
+    /**
+     * stops the running jobs and gives System.out back to the console
+     */
+    public void close() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        System.setOut(console);
+    }
+
+
+    /**
+     * Reads the config file of the batch mode, a properties file, e.g.
+     *
+     * endpoint = http://localhost:8890/sparql
+     * neo4j.url = bolt://127.0.0.1:7687
+     * neo4j.user = neo4j
+     * neo4j.password = secret
+     * queries = queries/
+     * jobs = 4
+     * threads = 16
+     * pushdown = true
+     *
+     * Besides endpoint and the neo4j keys, each key is a command line argument without its '--', see toArguments
+     */
+    public static Properties loadConfig(String file) throws IOException {
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            config.load(in);
+        }
+        return config;
+    }
+
+    /**
+     * @return String[] : the keys of the config file which are command line arguments, as command line arguments for
+     * Main.parseArguments. 'true' stands for a flag (e.g. 'pushdown = true' for '--pushdown'), flags with 'false' are
+     * left out
+     */
+    public static String[] toArguments(Properties config) {
+        ArrayList<String> args = new ArrayList<String>();
+        for (String key : config.stringPropertyNames()) {
+            String value = config.getProperty(key).trim();
+            if (CONNECTION_KEYS.contains(key) || value.equals("false"))
+                continue;
+            args.add("--" + key);
+            if (!value.equals("true"))
+                args.add(value);
+        }
+        return args.toArray(new String[0]);
+    }
+
+    /**
+     * Reads the queries of the batch, either
+     * - a directory, each file of which ending with .rq or .sparql is one query, named after the file
+     * - a file with several queries, each ended by ';' in a single line like when they are typed in, named after
+     *   the file and their number
+     *
+     * @return List<String[]> : the name and the query of each query, in the order of the file names or of the file
+     */
+    public static List<String[]> readQueries(String path) throws IOException {
+
+        ArrayList<String[]> queries = new ArrayList<String[]>();
+        File file = new File(path);
+
+        if (file.isDirectory()) {
+            File[] files = file.listFiles((dir, name) -> name.endsWith(".rq") || name.endsWith(".sparql"));
+            Arrays.sort(files);
+            for (File queryFile : files) {
+                String name = queryFile.getName();
+                queries.add(new String[] { name.substring(0, name.lastIndexOf('.')),
+                        new String(Files.readAllBytes(queryFile.toPath()), StandardCharsets.UTF_8) });
+            }
+            return queries;
+        }
+
+        String name = file.getName().contains(".") ? file.getName().substring(0, file.getName().lastIndexOf('.')) : file.getName();
+        String query = "";
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            if (line.trim().equals(";")) {
+                queries.add(new String[] { name + "_" + (queries.size() + 1), query });
+                query = "";
+            } else {
+                query += line + "\n";
+            }
+        }
+        // the last query may come without ';'
+        if (!query.trim().isEmpty())
+            queries.add(new String[] { name + "_" + (queries.size() + 1), query });
+        return queries;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Stops the crawler from hammering an endpoint which is down or overloaded. After FAILURE_THRESHOLD failed queries in
+ * a row the breaker opens, and no query is sent for a cooldown period. Then a single trial query is let through
+ * (half open): if it succeeds the breaker closes again, otherwise it stays open for twice the cooldown, up to
+ * MAX_COOLDOWN.
+ *
+ * Unlike the usual circuit breaker, the queries are not failed while the breaker is open, but wait: the whole run
+ * depends on them, so failing them would only end the run. Each query still gives up after its retries, see
+ * GuardedTripleSource.
+ *
+ * experimentable : the thresholds and cooldowns
+ */
+public class CircuitBreaker {
+
+    public static final int FAILURE_THRESHOLD = 5;
+    public static final long COOLDOWN = 1000;
+    public static final long MAX_COOLDOWN = 60000;
+
+    private int consecutiveFailures;
+
+    // the time in milliseconds until which the breaker is open, 0 if it is closed
+    private long openUntil;
+    private long cooldown = COOLDOWN;
+
+    // true while the trial query of the half open breaker is on its way
+    private boolean trial;
+
+
+    /**
+     * Waits while the breaker is open, or while the trial query of the half open breaker has not come back yet
+     *
+     * @return boolean : true if the caller sends the trial query. Then it must end with success, failure or, if the
+     *                   query is not sent after all, cancelTrial, otherwise all the other queries wait forever
+     */
+    public synchronized boolean await() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (openUntil == 0)
+                return false;
+            if (now < openUntil) {
+                wait(openUntil - now);
+            } else if (!trial) {
+                trial = true;
+                return true;
+            } else {
+                wait();
+            }
+        }
+    }
+
+    public synchronized void success() {
+        consecutiveFailures = 0;
+        if (openUntil != 0) {
+            System.out.println("circuit breaker closed, the endpoint answers again");
+            openUntil = 0;
+            cooldown = COOLDOWN;
+            trial = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The trial query was not sent after all (e.g. the thread was interrupted), so the next query waiting becomes the
+     * trial instead
+     */
+    public synchronized void cancelTrial() {
+        if (trial) {
+            trial = false;
+            notifyAll();
+        }
+    }
+
+    public synchronized void failure() {
+        consecutiveFailures++;
+        if (trial) {
+            // the trial query failed, so the endpoint gets a longer break
+            trial = false;
+            cooldown = Math.min(MAX_COOLDOWN, cooldown * 2);
+            open();
+        } else if (openUntil == 0 && consecutiveFailures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    private void open() {
+        openUntil = System.currentTimeMillis() + cooldown;
+        System.out.println("circuit breaker open for " + cooldown + " ms after " + consecutiveFailures + " failed queries in a row");
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "breaker: " + (openUntil == 0 ? "closed" : trial ? "half open" : "open");
+    }
+}
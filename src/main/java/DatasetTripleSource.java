@@ -0,0 +1,97 @@
+import org.apache.jena.query.*;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.tdb2.TDB2Factory;
+
+import java.util.function.Consumer;
+
+
+/**
+ * Queries a jena Dataset within this process, so there is no HTTP and no serialization of the results at all. The
+ * dataset is either loaded from a file into memory (see inMemory) or is a TDB2 database directory (see tdb2), whose
+ * files are memory mapped, so it also works for datasets larger than the heap.
+ *
+ * Each query runs within its own read transaction, so that several threads can query at the same time.
+ *
+ * experimentable : a TDB2 directory can be built from a dump with jena's tdb2.tdbloader, e.g.
+ * tdb2.tdbloader --loc=/data/tdb2 data.nt.gz
+ */
+public class DatasetTripleSource implements TripleSource {
+
+    private Dataset dataset;
+
+    private String name;
+
+
+    public DatasetTripleSource(Dataset dataset, String name) {
+        this.dataset = dataset;
+        this.name = name;
+    }
+
+
+    /**
+     * Loads a rdf file (N-Triples, Turtle, N-Quads, TriG, also gzipped) into a new in-memory dataset
+     *
+     * @param file : path of the rdf file
+     * @return DatasetTripleSource : the source over the loaded dataset
+     */
+    public static DatasetTripleSource inMemory(String file) {
+        Dataset dataset = DatasetFactory.createTxnMem();
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            RDFDataMgr.read(dataset, file);
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
+        return new DatasetTripleSource(dataset, "in-memory dataset " + file);
+    }
+
+    /**
+     * Connects to a TDB2 database directory, which is created empty if it does not exist
+     *
+     * @param directory : path of the TDB2 directory
+     * @return DatasetTripleSource : the source over the database
+     */
+    public static DatasetTripleSource tdb2(String directory) {
+        return new DatasetTripleSource(TDB2Factory.connectDataset(directory), "TDB2 " + directory);
+    }
+
+
+    @Override
+    public void select(String queryString, FetchStatistics statistics, Consumer<QuerySolution> consumer) {
+
+        statistics.countRequest();
+        long startTime = System.nanoTime();
+        dataset.begin(ReadWrite.READ);
+        try {
+            QueryExecution qexec = QueryExecutionFactory.create(queryString, dataset);
+            try {
+                ResultSet rs = qexec.execSelect();
+                while (rs.hasNext()) {
+                    statistics.countRow();
+                    consumer.accept(rs.next());
+                }
+            } finally {
+                qexec.close();
+            }
+        } finally {
+            dataset.end();
+            Metrics.SPARQL_LATENCY.record(System.nanoTime() - startTime);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getStatus() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        dataset.close();
+    }
+}
@@ -0,0 +1,189 @@
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.util.NodeFactoryExtra;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+
+/**
+ * Reads the relations of rdf nodes directly from a local rdf dump (N-Triples, Turtle, ..., also gzipped) instead of
+ * querying them from a triplestore. The dump is streamed through jena's parser, so it is never loaded as a whole and
+ * the adjacency of all nodes is built within one single pass over the file.
+ *
+ * The node set is either given in advance (see readNodeList), in which case only relations between these nodes are
+ * kept, or it is left empty, in which case every subject and object of the dump becomes a node and so the whole dump
+ * is compressed. In both cases the nodes end up in the TermDictionary.
+ *
+ * A triple which is in the dump more than once is only counted once, like from a triplestore, see
+ * NodeAdjacency.removeDuplicateOutgoing. Except with a SpillGrouping: the relations go right to disk there, so a
+ * duplicate triple is counted as often as it is in the dump.
+ *
+ * experimentable : the spilled relations could be sorted by subject, relation and object on disk first, which would
+ * drop the duplicates there as well, for one more sort
+ */
+public class DumpReader extends StreamRDFBase {
+
+    // only used for wrapping the parsed jena nodes into RDFNodes, no triples are ever added to it
+    private Model model;
+
+    // if true the node set is fixed, otherwise it grows with every triple
+    private boolean restricted;
+
+    private TermDictionary dictionary;
+
+    // the relations of each node, indexed by node id
+    private ArrayList<NodeAdjacency> adjacencies;
+
+    private AdjacencyStore store;
+
+    // if not null, the relations go right to disk instead of into adjacencies, see SpillGrouping
+    private SpillGrouping spill;
+
+    private long triples;
+
+    // the triples dropped because they were already in the dump before, see read
+    private long duplicates;
+
+
+    /**
+     * @param dictionary : the dictionary the nodes and relations are encoded into
+     * @param restricted : if true, the dictionary already contains the node set whose relations are read, otherwise
+     *                   all nodes of the dump are taken
+     */
+    public DumpReader(TermDictionary dictionary, boolean restricted) {
+        this(dictionary, restricted, null);
+    }
+
+    /**
+     * @param dictionary : the dictionary the nodes and relations are encoded into
+     * @param restricted : if true, the dictionary already contains the node set whose relations are read, otherwise
+     *                   all nodes of the dump are taken
+     * @param spill : the grouping on disk which takes the relations, or null for keeping them in memory
+     */
+    public DumpReader(TermDictionary dictionary, boolean restricted, SpillGrouping spill) {
+        this.spill = spill;
+        this.model = ModelFactory.createDefaultModel();
+        this.dictionary = dictionary;
+        this.restricted = restricted;
+        this.adjacencies = new ArrayList<NodeAdjacency>();
+        for (int id = 0; spill == null && id < dictionary.nodeCount(); id++)
+            adjacencies.add(new NodeAdjacency());
+    }
+
+
+    /**
+     * Streams the given file through the parser, the rdf syntax is guessed from the file extension
+     * (e.g. .nt, .nt.gz, .ttl, .ttl.gz)
+     *
+     * @param dumpFile : path of the rdf dump
+     */
+    public void read(String dumpFile) {
+        RDFDataMgr.parse(this, dumpFile);
+
+        // the same triple might be anywhere in the dump, so the duplicates are only dropped once it is read as a whole
+        for (NodeAdjacency adjacency : adjacencies)
+            duplicates += adjacency.removeDuplicateOutgoing();
+    }
+
+    @Override
+    public void triple(Triple triple) {
+
+        triples++;
+
+        RDFNode subjectNode = model.asRDFNode(triple.getSubject());
+        RDFNode objectNode = model.asRDFNode(triple.getObject());
+
+        int subject;
+        int object;
+        if (restricted) {
+            subject = dictionary.lookupNode(subjectNode);
+            object = dictionary.lookupNode(objectNode);
+            if (subject < 0 || object < 0)
+                return;
+        } else {
+            subject = dictionary.encodeNode(subjectNode);
+            object = dictionary.encodeNode(objectNode);
+            while (spill == null && adjacencies.size() < dictionary.nodeCount())
+                adjacencies.add(new NodeAdjacency());
+        }
+
+        // only the outgoing relation is saved, the incoming one of the object is derived later in the AdjacencyStore
+        int relation = dictionary.encodeRelation(model.asRDFNode(triple.getPredicate()));
+        if (spill != null)
+            spill.addEdge(subject, relation, object);
+        else
+            adjacencies.get(subject).addOutgoing(relation, object);
+    }
+
+    @Override
+    public void quad(Quad quad) {
+        // graph names are of no interest for the grouping, quads of N-Quads or TriG dumps are taken as plain triples
+        triple(quad.asTriple());
+    }
+
+    /**
+     * Must only be called after the dump has been read
+     *
+     * @return AdjacencyStore : the relations of each node, with the incoming relations derived
+     */
+    public AdjacencyStore getStore() {
+        if (store == null && spill != null) {
+            // the relations are on disk already, the store only needs to know the nodes
+            store = new AdjacencyStore(dictionary.nodeCount(), spill);
+        } else if (store == null) {
+            store = new AdjacencyStore(adjacencies.size());
+            for (int id = 0; id < adjacencies.size(); id++)
+                store.put(id, adjacencies.get(id));
+            store.deriveIncoming();
+        }
+        return store;
+    }
+
+    public long getTriples() {
+        return triples;
+    }
+
+    /**
+     * @return long : the triples within the node set which were in the dump more than once, and were dropped
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+
+    /**
+     * Reads a node set from a plain text file which contains one rdf term per line in N-Triples syntax,
+     * e.g. <http://example.org/a> or "some literal", and encodes it into the dictionary. Empty lines are skipped.
+     *
+     * @param nodesFile : path of the node list
+     * @param dictionary : the dictionary the nodes are encoded into
+     * @throws IOException
+     */
+    public static void readNodeList(String nodesFile, TermDictionary dictionary) throws IOException {
+
+        Model model = ModelFactory.createDefaultModel();
+
+        BufferedReader reader = new BufferedReader(new FileReader(nodesFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                Node node = NodeFactoryExtra.parseNode(line);
+                dictionary.encodeNode(model.asRDFNode(node));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A small data object which counts how many sparql requests were sent to the endpoint within a phase and how many
+ * result rows came back from them. Used for displaying the effect of the batch size on the number of round-trips.
+ *
+ * For a remote endpoint it also counts the bytes on the wire (compressed, if the endpoint compresses) and splits the
+ * time of the requests into waiting for the network and parsing the results, see RemoteTripleSource. With several
+ * threads these times are summed up over all threads, so they can be longer than the phase itself.
+ *
+ * Everything is also counted into the Metrics of the run.
+ */
+public class FetchStatistics {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong supernodes = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong capped = new AtomicLong();
+    private final AtomicLong silentBlankNodes = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong networkNanos = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+
+
+    public void countRequest() {
+        requests.incrementAndGet();
+        Metrics.SPARQL_REQUESTS.increment();
+    }
+
+    public void countRow() {
+        rows.incrementAndGet();
+        Metrics.SPARQL_ROWS.increment();
+    }
+
+    public void countSupernode() {
+        supernodes.incrementAndGet();
+    }
+
+    public void countRetry() {
+        retries.incrementAndGet();
+        Metrics.SPARQL_RETRIES.increment();
+    }
+
+    /**
+     * counts a result which reached the row cap of the endpoint and was queried again in parts, see AdjacencyFetcher
+     */
+    public void countCapped() {
+        capped.incrementAndGet();
+        Metrics.SPARQL_CAPPED.increment();
+    }
+
+    /**
+     * counts a blank node which got no relations at all from the endpoint, see AdjacencyFetcher.checkBlankNodes
+     */
+    public void countSilentBlankNode() {
+        silentBlankNodes.incrementAndGet();
+    }
+
+    /**
+     * @param bytes : the bytes of a response as they came over the wire
+     * @param networkNanos : the time spent waiting for the response and for its bytes
+     * @param parseNanos : the time spent parsing the response
+     */
+    public void countTransfer(long bytes, long networkNanos, long parseNanos) {
+        this.bytes.addAndGet(bytes);
+        this.networkNanos.addAndGet(networkNanos);
+        this.parseNanos.addAndGet(parseNanos);
+        Metrics.SPARQL_BYTES.add(bytes);
+        Metrics.SPARQL_NETWORK_NANOS.add(networkNanos);
+        Metrics.SPARQL_PARSE_NANOS.add(parseNanos);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getRows() {
+        return rows.get();
+    }
+
+    public long getSupernodes() {
+        return supernodes.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests issued: " + requests.get() + ", rows received: " + rows.get() +
+                (supernodes.get() > 0 ? ", supernodes: " + supernodes.get() : "") +
+                (retries.get() > 0 ? ", retries: " + retries.get() : "") +
+                (capped.get() > 0 ? ", results at the row cap queried again: " + capped.get() : "") +
+                (silentBlankNodes.get() > 0 ? ", blank nodes without any relations: " + silentBlankNodes.get() : "") +
+                (bytes.get() > 0 ? ", bytes received: " + bytes.get() +
+                        ", network time: " + networkNanos.get() / 1000000 + ", parse time: " + parseNanos.get() / 1000000 : "");
+    }
+}
@@ -1,72 +1,154 @@
-import org.apache.jena.rdf.model.RDFNode;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * The data object class which represents a group of rdf nodes and which saves a sume of all the outgoing relations of
  * its containing rdf nodes.
+ *
+ * The nodes and relations are the ids of the TermDictionary, which is only needed again for printing the group.
  */
 public class Group {
 
-    // The containing rdf nodes
-    public HashSet<RDFNode> nodes;
+    // The ids of the containing rdf nodes. Each node is only ever put into one group once, so a list is enough
+    public IntList nodes;
 
     // The neighbourhood this group represents
-    public Neighbourhood neighbourhood;
+    public NeighbourhoodSignature neighbourhood;
+
+    // The relations to other groups with the count of how often each relation points to the respective group
+    private GroupRelationCounts relationsAndCounts;
+
+    // The dictionary of the node and relation ids
+    private TermDictionary dictionary;
 
-    // A hashmap which has as key a GroupRelation and as value the count of how often this relation points to the respective group
-    private HashMap<GroupRelation, Integer> relationsAndCounts;
+    // The stable id of this group, calculated from its neighbourhood when it is first needed, see getId
+    private String id;
 
+    // The number of this group within the run, part of the keys of GroupRelationCounts
+    private final int number;
+    private static final AtomicInteger NUMBERS = new AtomicInteger();
 
-    public Group() {
-        this.nodes = new HashSet<RDFNode>();
-        this.relationsAndCounts = new HashMap<GroupRelation, Integer>();
-        this.neighbourhood = new Neighbourhood();
+
+    public Group(TermDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.nodes = new IntList();
+        this.relationsAndCounts = new GroupRelationCounts();
+        this.number = NUMBERS.getAndIncrement();
     }
 
 
     /**
-     * Takes as input a list of relations, checks all of its items if this groups already contains the same relation
-     * to the same objectGroup, and if it does, increases the counter, if not instantiates it to 1.
+     * Adds a rdf node to this group. Synchronized, since the nodes may be grouped by several threads at once
      *
+     * @param node : the id of the rdf node which has the neighbourhood of this group
+     */
+    public synchronized void addNode(int node) {
+        nodes.add(node);
+    }
+
+    /**
+     * Adds the rdf nodes of a partition to this group, see Main.generateGroups
      *
-     * @param newGroupRelations : A list of GroupRelation objects, see that class for more information on it
-     * @throws Exception
+     * @param partitionNodes : the ids of the rdf nodes which have the neighbourhood of this group
      */
-    public void addRelation( ArrayList<GroupRelation> newGroupRelations) throws Exception {
+    public synchronized void addNodes(IntList partitionNodes) {
+        nodes.addAll(partitionNodes);
+    }
 
-        for (GroupRelation newGroupRelation : newGroupRelations) {
 
-            Integer existingRelationCount = relationsAndCounts.get(newGroupRelation);
-            if (existingRelationCount == null) {
-                relationsAndCounts.put(newGroupRelation, 1);
-            } else {
-                relationsAndCounts.put(newGroupRelation, ++existingRelationCount);
-            }
-        }
+    /**
+     * Counts a relation of a node of this group to a node of the object group, or several relations at once.
+     *
+     * Synchronized, since the relations of different nodes of the same group may be added by several threads at once
+     *
+     * @param relation : the relation id of the TermDictionary
+     * @param groupObject : the group of the object of the relation
+     * @param count : the number of such relations
+     */
+    public synchronized void addRelation(int relation, Group groupObject, int count) {
+        relationsAndCounts.add(relation, groupObject, count);
+    }
+
+    /**
+     * Adds the relations which were already counted within a partition (see Main.generateGroups), so that the lock
+     * is only taken once per partition instead of once per node
+     *
+     * @param partitionCounts : the relations to the object groups with their counts
+     */
+    public synchronized void addRelationCounts(GroupRelationCounts partitionCounts) {
+        relationsAndCounts.addAll(partitionCounts);
     }
 
     public boolean hasRelations() {
         return relationsAndCounts.size() > 0;
     }
 
-    public HashMap<GroupRelation, Integer> getRelations() {
+    /**
+     * @return GroupRelationCounts : the relations to the object groups with their counts, see that class on how to
+     * iterate over them
+     */
+    public GroupRelationCounts getRelations() {
         return relationsAndCounts;
     }
 
+    /**
+     * @return int : the number of this group, unique within the run, unlike the id not stable across runs
+     */
+    public int getNumber() {
+        return number;
+    }
+
+
+    public TermDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return String : the id of this group, which is the same for the same neighbourhood in every run,
+     * see NeighbourhoodSignature.stableId
+     */
+    public synchronized String getId() {
+        if (id == null)
+            id = neighbourhood.stableId(dictionary);
+        return id;
+    }
+
+
+    /**
+     * sets the id of a group which was split off from the group of its neighbourhood, see NeighbourhoodRefinement
+     */
+    public synchronized void setId(String id) {
+        this.id = id;
+    }
+
+
+    /**
+     * @return String : the rdf nodes of this group, decoded from their ids, e.g. [http://a, http://b]
+     */
+    public String nodesToString() {
+
+        StringBuilder result = new StringBuilder("[");
+        for (int k = 0; k < nodes.size(); k++) {
+            if (k > 0)
+                result.append(", ");
+            result.append(dictionary.decodeNode(nodes.get(k)));
+        }
+        return result.append("]").toString();
+    }
+
 
     @Override
     public String toString() {
 
-        String result = "Group with " + Integer.toString(nodes.size()) + " nodes: " + nodes.toString();
+        String result = "Group with " + Integer.toString(nodes.size()) + " nodes: " + nodesToString();
 
-        for ( GroupRelation groupRelation : relationsAndCounts.keySet()) {
-            int count = relationsAndCounts.get(groupRelation);
+        for (int slot = 0; slot < relationsAndCounts.slots(); slot++) {
+            if (!relationsAndCounts.isUsed(slot))
+                continue;
+            int count = relationsAndCounts.getCount(slot);
+            Group groupObject = relationsAndCounts.getObject(slot);
 
-            result += "\n- " + groupRelation.relation + " (" + count + ") -> " + "Group with " + Integer.toString(groupRelation.groupObject.nodes.size()) + " nodes: " + groupRelation.groupObject.nodes;
+            result += "\n- " + dictionary.decodeRelation(relationsAndCounts.getRelation(slot)) + " (" + count + ") -> " + "Group with " + Integer.toString(groupObject.nodes.size()) + " nodes: " + groupObject.nodesToString();
 
         }
         result += "\n";
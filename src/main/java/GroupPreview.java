@@ -0,0 +1,309 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+
+/**
+ * The preview of the groups of a query (command line argument '--preview <fraction>'), from a random sample of its
+ * nodes instead of all of them, see Main.executePreview. Only the relations of the sampled nodes are fetched, so a
+ * preview of 5% of the nodes takes about a tenth of the queries (the outgoing and the incoming relations of each
+ * sampled node are queried, see AdjacencyFetcher.fetchIncoming).
+ *
+ * The neighbourhood of each sampled node is exact, it has all relations of the node within the whole node set. So
+ * each sampled node is in the same group as it would be in the grouping of all nodes, only the sizes of the groups
+ * and the counts of the relations between them are estimated from the sample, each with a 95% interval:
+ *
+ * - the size of a group from the share of the sample which is in it, with the Wilson interval for that share. As the
+ *   nodes are sampled without replacement, the sample counts as a bit larger than it is (finite population
+ *   correction), with a sample of all nodes the interval is exact.
+ * - the count of a relation between two groups from the relations whose subject and object are both sampled, i.e.
+ *   each such relation stands for 1 / (share of pairs of nodes which are both sampled) relations. The interval
+ *   assumes that the relations are sampled independently of each other, which they are not quite (a sampled node
+ *   brings all its relations along), so it is rather too narrow for relations which only a few nodes have. A
+ *   relation of a node to itself only needs this one node to be sampled, so it stands for 1 / (share of sampled
+ *   nodes) relations instead, see estimateRelations.
+ * - the number of all relations within the node set from the mean number of outgoing relations of the sampled nodes
+ * - the number of groups: the groups in the sample are a lower bound, the Chao1 estimator adds the groups which were
+ *   probably missed, from the groups seen once and twice. It is a lower bound estimator as well, small groups are
+ *   easily missed by a small sample.
+ *
+ * experimentable : a stratified sample (e.g. by rdf:type) would catch the small groups better
+ */
+public class GroupPreview {
+
+    // the quantile of the standard normal distribution for the 95% intervals
+    private static final double Z = 1.96;
+
+    /**
+     * An estimated value with its 95% interval
+     */
+    public static class Estimate {
+
+        public final double value;
+        public final double low;
+        public final double high;
+
+        Estimate(double value, double low, double high) {
+            this.value = value;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "about %.0f (%.0f - %.0f)", value, low, high);
+        }
+    }
+
+
+    private TermDictionary dictionary;
+
+    // the number of nodes of the query, and of the sample
+    private int nodeCount;
+    private int sampleSize;
+
+    // the groups of the sampled nodes, largest first, with only their sampled nodes and the relations between them
+    private ArrayList<Group> groups = new ArrayList<Group>();
+
+    // per group, the relations of its sampled nodes to themselves, which are also among the relations of the group
+    private HashMap<Group, GroupRelationCounts> selfRelations = new HashMap<Group, GroupRelationCounts>();
+
+    // the number of outgoing relations within the node set of each sampled node
+    private long relationSum;
+    private double relationSquareSum;
+
+
+    /**
+     * Draws a uniform random sample of the nodes, without replacement
+     *
+     * @param nodeCount : the number of nodes, whose ids are 0 .. nodeCount - 1
+     * @param fraction : the share of the nodes which is sampled, at least one node
+     * @param seed : the same seed gives the same sample, so that previews of the same query can be compared
+     * @return int[] : the ids of the sampled nodes, in ascending order
+     */
+    public static int[] sample(int nodeCount, double fraction, long seed) {
+
+        if (nodeCount == 0)
+            return new int[0];
+        int size = (int) Math.min(nodeCount, Math.max(1, Math.round(nodeCount * fraction)));
+
+        // the first 'size' steps of a Fisher-Yates shuffle
+        int[] ids = new int[nodeCount];
+        for (int id = 0; id < nodeCount; id++)
+            ids[id] = id;
+        Random random = new Random(seed);
+        for (int k = 0; k < size; k++) {
+            int other = k + random.nextInt(nodeCount - k);
+            int id = ids[other];
+            ids[other] = ids[k];
+            ids[k] = id;
+        }
+
+        int[] sample = Arrays.copyOf(ids, size);
+        Arrays.sort(sample);
+        return sample;
+    }
+
+
+    /**
+     * Groups the sampled nodes by their neighbourhood and wires the groups by the relations between sampled nodes
+     *
+     * @param dictionary : the dictionary of all nodes of the query
+     * @param sample : the ids of the sampled nodes, in ascending order
+     * @param outgoing : the outgoing relations of each sampled node within the node set, at the same index as in sample
+     * @param incoming : the relation ids of the incoming relations of each sampled node from within the node set, at
+     *                 the same index as in sample
+     */
+    public GroupPreview(TermDictionary dictionary, int[] sample, NodeAdjacency[] outgoing, IntList[] incoming) {
+
+        this.dictionary = dictionary;
+        this.nodeCount = dictionary.nodeCount();
+        this.sampleSize = sample.length;
+
+        HashMap<NeighbourhoodSignature, Group> groupsByNeighbourhood = new HashMap<NeighbourhoodSignature, Group>();
+        Group[] groupOf = new Group[sample.length];
+        for (int k = 0; k < sample.length; k++) {
+            NeighbourhoodSignature neighbourhood = NeighbourhoodSignature.of(incoming[k], outgoing[k].outgoingRelations);
+            Group group = groupsByNeighbourhood.get(neighbourhood);
+            if (group == null) {
+                group = new Group(dictionary);
+                group.neighbourhood = neighbourhood;
+                groupsByNeighbourhood.put(neighbourhood, group);
+                groups.add(group);
+            }
+            group.addNode(sample[k]);
+            groupOf[k] = group;
+
+            int degree = outgoing[k].outgoingRelations.size();
+            relationSum += degree;
+            relationSquareSum += (double) degree * degree;
+        }
+
+        // only the relations whose object is sampled as well tell which group they lead to
+        for (int k = 0; k < sample.length; k++) {
+            NodeAdjacency adjacency = outgoing[k];
+            for (int r = 0; r < adjacency.outgoingObjects.size(); r++) {
+                int object = Arrays.binarySearch(sample, adjacency.outgoingObjects.get(r));
+                if (object >= 0)
+                    groupOf[k].addRelation(adjacency.outgoingRelations.get(r), groupOf[object], 1);
+                if (object == k)
+                    selfRelations.computeIfAbsent(groupOf[k], group -> new GroupRelationCounts())
+                            .add(adjacency.outgoingRelations.get(r), groupOf[k], 1);
+            }
+        }
+
+        groups.sort((a, b) -> a.nodes.size() != b.nodes.size() ?
+                Integer.compare(b.nodes.size(), a.nodes.size()) : Integer.compare(a.getNumber(), b.getNumber()));
+    }
+
+
+    /**
+     * @return Estimate : the number of nodes of the group among all nodes
+     */
+    public Estimate estimateSize(Group group) {
+
+        int sampled = group.nodes.size();
+        if (sampleSize == nodeCount)
+            return new Estimate(sampled, sampled, sampled);
+
+        // the Wilson interval of the share, with the sample enlarged by the finite population correction
+        double share = (double) sampled / sampleSize;
+        double n = sampleSize * (nodeCount - 1.0) / (nodeCount - sampleSize);
+        double center = (share + Z * Z / (2 * n)) / (1 + Z * Z / n);
+        double half = Z / (1 + Z * Z / n) * Math.sqrt(share * (1 - share) / n + Z * Z / (4 * n * n));
+
+        // the sampled nodes are there for sure, and the other groups have theirs as well
+        double low = Math.max(sampled, nodeCount * (center - half));
+        double high = Math.min(nodeCount - (sampleSize - sampled), nodeCount * (center + half));
+        return new Estimate(nodeCount * share, low, Math.max(low, high));
+    }
+
+    /**
+     * The relations between two different nodes are sampled if both nodes are, the relations of a node to itself
+     * already if the node is. Both are estimated on their own and added up, with the variances of both.
+     *
+     * @param sampled : the number of relations of a kind between sampled nodes
+     * @param self : how many of them are relations of a node to itself
+     * @return Estimate : the number of these relations between all nodes
+     */
+    public Estimate estimateRelations(int sampled, int self) {
+
+        int pairs = sampled - self;
+
+        // the chance that both nodes of a relation are sampled, 0 with less than two sampled nodes, but then no
+        // relation between two different nodes is sampled either
+        double both = nodeCount < 2 ? 1 : (double) sampleSize * (sampleSize - 1) / ((double) nodeCount * (nodeCount - 1));
+        // the chance that the node of a relation to itself is sampled
+        double one = nodeCount == 0 ? 1 : (double) sampleSize / nodeCount;
+
+        double value = (pairs == 0 ? 0 : pairs / both) + (self == 0 ? 0 : self / one);
+        double variance = (pairs == 0 ? 0 : pairs * (1 - both) / (both * both)) + (self == 0 ? 0 : self * (1 - one) / (one * one));
+        double half = Z * Math.sqrt(variance);
+        return new Estimate(value, Math.max(sampled, value - half), value + half);
+    }
+
+    /**
+     * @return Estimate : the number of relations within the node set
+     */
+    public Estimate estimateAllRelations() {
+
+        double mean = sampleSize == 0 ? 0 : (double) relationSum / sampleSize;
+        double variance = sampleSize < 2 ? 0 : (relationSquareSum - sampleSize * mean * mean) / (sampleSize - 1);
+        double half = Z * nodeCount * Math.sqrt(Math.max(0, variance) / Math.max(1, sampleSize) * (1 - (double) sampleSize / nodeCount));
+        double value = nodeCount * mean;
+        return new Estimate(value, Math.max(relationSum, value - half), value + half);
+    }
+
+    /**
+     * @return double : the Chao1 estimate of the number of groups, at least the number of groups in the sample and at
+     * most the number of nodes
+     */
+    public double estimateGroups() {
+
+        if (sampleSize == nodeCount)
+            return groups.size();
+
+        int once = 0;
+        int twice = 0;
+        for (Group group : groups) {
+            if (group.nodes.size() == 1)
+                once++;
+            else if (group.nodes.size() == 2)
+                twice++;
+        }
+        // the bias corrected form, which also works without any group seen twice. There can not be more groups than
+        // if each node which is not sampled had a group of its own
+        return Math.min(groups.size() + once * (once - 1) / (2.0 * (twice + 1)), groups.size() + nodeCount - sampleSize);
+    }
+
+
+    /**
+     * @return int : how many of the sampled relations of the group to the object group are relations of a node to
+     * itself, which can only be within the same group
+     */
+    private int sampledSelfRelations(Group group, int relation, Group object) {
+        GroupRelationCounts counts = selfRelations.get(group);
+        return counts == null || object != group ? 0 : counts.getCount(relation, object);
+    }
+
+    /**
+     * @return ArrayList<Group> : the groups of the sampled nodes, largest first
+     */
+    public ArrayList<Group> getGroups() {
+        return groups;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+
+    /**
+     * @param limit : the number of groups and relations shown
+     * @return String : the estimates, with the largest groups and the most frequent relations between the groups
+     */
+    public String report(int limit) {
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%d of %d nodes sampled (%.1f%%), groups in the sample: %d, groups of all nodes: at least about %.0f\n",
+                sampleSize, nodeCount, nodeCount == 0 ? 0 : 100.0 * sampleSize / nodeCount, groups.size(), estimateGroups()));
+        report.append("relations within the node set: ").append(estimateAllRelations()).append("\n");
+
+        // the groups are named by their rank
+        int shown = Math.min(limit, groups.size());
+        report.append("\nthe ").append(shown).append(" largest groups, estimated number of nodes (95% interval):\n");
+        for (int g = 0; g < shown; g++) {
+            Group group = groups.get(g);
+            report.append("G").append(g + 1).append(": ").append(estimateSize(group)).append(" nodes, sampled ")
+                    .append(group.nodes.size()).append(", ").append(group.neighbourhood.toString(dictionary)).append("\n");
+        }
+
+        // the relations of all groups by their count between sampled nodes, as [group, slot]
+        HashMap<Group, Integer> ranks = new HashMap<Group, Integer>();
+        ArrayList<Object[]> relations = new ArrayList<Object[]>();
+        for (Group group : groups) {
+            ranks.put(group, ranks.size() + 1);
+            GroupRelationCounts counts = group.getRelations();
+            for (int slot = 0; slot < counts.slots(); slot++) {
+                if (counts.isUsed(slot))
+                    relations.add(new Object[] { group, slot });
+            }
+        }
+        relations.sort((a, b) -> Integer.compare(
+                ((Group) b[0]).getRelations().getCount((Integer) b[1]), ((Group) a[0]).getRelations().getCount((Integer) a[1])));
+
+        report.append("\nthe most frequent relations between the groups, estimated count (95% interval):\n");
+        for (Object[] relation : relations.subList(0, Math.min(limit, relations.size()))) {
+            Group group = (Group) relation[0];
+            int slot = (Integer) relation[1];
+            GroupRelationCounts counts = group.getRelations();
+            report.append("G").append(ranks.get(group)).append(" - ").append(dictionary.decodeRelation(counts.getRelation(slot)))
+                    .append(" -> G").append(ranks.get(counts.getObject(slot))).append(": ")
+                    .append(estimateRelations(counts.getCount(slot), sampledSelfRelations(group, counts.getRelation(slot), counts.getObject(slot))))
+                    .append(", sampled ").append(counts.getCount(slot)).append("\n");
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * The relations of a group to other groups with their counts, i.e. one row of the sparse matrix of the group
+ * relations: for each (relation, object group) how many relations of the nodes of the group point to the nodes of
+ * the object group.
+ *
+ * Counting is the innermost loop of the grouping (once per relation of each node), so instead of a HashMap with a
+ * GroupRelation object and a boxed Integer per entry, this is an open addressing hash table over primitive arrays:
+ * - the key is the number of the object group (see Group.getNumber) and the relation id packed into a long
+ * - the counts and the object groups are kept in arrays parallel to the keys
+ * - collisions go to the next free slot (linear probing), the table doubles when it is half full
+ * Counting a relation which is already in the table allocates nothing.
+ *
+ * The entries are read with an index from 0 to slots(), skipping the empty slots, so that no iterator or entry object
+ * is needed either:
+ *
+ *     for (int slot = 0; slot < counts.slots(); slot++)
+ *         if (counts.isUsed(slot))
+ *             ... counts.getRelation(slot), counts.getObject(slot), counts.getCount(slot)
+ *
+ * Not synchronized, see Group for the synchronized counting.
+ *
+ * experimentable : for very many relations per group a compressed sparse row matrix over all groups, built once the
+ * counting is done, would take less memory than one table per group
+ */
+public class GroupRelationCounts {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private long[] keys;
+    private int[] counts;
+
+    // the object group of each slot, null for the empty slots
+    private Group[] objects;
+
+    private int size;
+
+
+    public GroupRelationCounts() {
+        keys = new long[INITIAL_CAPACITY];
+        counts = new int[INITIAL_CAPACITY];
+        objects = new Group[INITIAL_CAPACITY];
+    }
+
+
+    /**
+     * Adds the count to the relation to the object group, or puts it in if it is not there yet
+     *
+     * @param relation : the relation id of the TermDictionary
+     * @param object : the group of the objects of the relation
+     * @param count : how often the relation points to the group
+     */
+    public void add(int relation, Group object, int count) {
+
+        long key = key(relation, object);
+        int slot = slot(key);
+        if (objects[slot] == null) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = slot(key);
+            }
+            keys[slot] = key;
+            objects[slot] = object;
+            size++;
+        }
+        counts[slot] += count;
+    }
+
+    /**
+     * Adds all the counts of another table, e.g. of a partition, see Main.generateGroups
+     */
+    public void addAll(GroupRelationCounts other) {
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.objects[slot] != null)
+                add(relationOf(other.keys[slot]), other.objects[slot], other.counts[slot]);
+        }
+    }
+
+
+    /**
+     * @return int : the slot of the key, or the empty slot where it belongs
+     */
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (objects[slot] != null && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        Group[] oldObjects = objects;
+
+        keys = new long[oldKeys.length * 2];
+        counts = new int[oldKeys.length * 2];
+        objects = new Group[oldKeys.length * 2];
+
+        for (int k = 0; k < oldKeys.length; k++) {
+            if (oldObjects[k] == null)
+                continue;
+            int slot = slot(oldKeys[k]);
+            keys[slot] = oldKeys[k];
+            counts[slot] = oldCounts[k];
+            objects[slot] = oldObjects[k];
+        }
+    }
+
+    private static long key(int relation, Group object) {
+        return ((long) object.getNumber() << 32) | (relation & 0xffffffffL);
+    }
+
+    private static int relationOf(long key) {
+        return (int) key;
+    }
+
+    // the packed keys of a group differ mostly in their high bits, so they are spread over the table first
+    private static int mix(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+
+    /**
+     * @return int : the number of (relation, object group) entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return int : the number of slots, the upper bound of the index for isUsed, getRelation, getObject and getCount
+     */
+    public int slots() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return objects[slot] != null;
+    }
+
+    public int getRelation(int slot) {
+        return relationOf(keys[slot]);
+    }
+
+    public Group getObject(int slot) {
+        return objects[slot];
+    }
+
+    public int getCount(int slot) {
+        return counts[slot];
+    }
+
+    /**
+     * @return int : the count of the relation to the object group, 0 if there is none
+     */
+    public int getCount(int relation, Group object) {
+        int slot = slot(key(relation, object));
+        return objects[slot] == null ? 0 : counts[slot];
+    }
+}
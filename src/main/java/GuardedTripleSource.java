@@ -0,0 +1,138 @@
+import org.apache.jena.query.QueryParseException;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+
+/**
+ * Wraps the source of a shared endpoint, so that a slow or failing endpoint neither stalls nor ends the whole run:
+ * - the number of queries at the same time is adapted to the latency and errors of the endpoint, see AdaptiveLimiter
+ * - failed queries are sent again, up to maxRetries times, after a random backoff (full jitter) which grows with each
+ *   attempt, so that the retries of several threads do not hit the endpoint at the same moment
+ * - after several failures in a row no queries are sent for a while, see CircuitBreaker
+ *
+ * Since a query may fail after some of its rows have arrived, the rows of each attempt are collected first and only
+ * handed to the consumer once the query has succeeded. So the consumer never sees a row twice.
+ *
+ * experimentable : BACKOFF and MAX_BACKOFF
+ */
+public class GuardedTripleSource implements TripleSource {
+
+    public static final long BACKOFF = 200;
+    public static final long MAX_BACKOFF = 10000;
+
+    private TripleSource source;
+
+    private int maxRetries;
+
+    private AdaptiveLimiter limiter;
+
+    private CircuitBreaker breaker;
+
+
+    /**
+     * @param source : the source which actually sends the queries
+     * @param maxConcurrency : the highest number of queries at the same time, i.e. the number of threads
+     * @param maxRetries : how often a failed query is sent again before the run fails
+     */
+    public GuardedTripleSource(TripleSource source, int maxConcurrency, int maxRetries) {
+        this.source = source;
+        this.maxRetries = maxRetries;
+        this.limiter = new AdaptiveLimiter(maxConcurrency);
+        this.breaker = new CircuitBreaker();
+    }
+
+
+    @Override
+    public void select(String queryString, FetchStatistics statistics, Consumer<QuerySolution> consumer) {
+
+        for (int attempt = 0; ; attempt++) {
+
+            ArrayList<QuerySolution> rows = new ArrayList<QuerySolution>();
+            long startTime = 0;
+            boolean trial = false;
+            try {
+                trial = breaker.await();
+                limiter.acquire();
+                startTime = System.nanoTime();
+                source.select(queryString, statistics, rows::add);
+            } catch (InterruptedException e) {
+                // interrupted before the query was sent, so a trial query of the half open breaker is handed on
+                if (trial)
+                    breaker.cancelTrial();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (RuntimeException e) {
+
+                // an error in the query itself is an answer of the endpoint like any other, it says nothing about its
+                // load. So only the retryable failures make the limiter back off and count towards the breaker, and
+                // the trial query of a half open breaker which fails that way closes it again
+                if (!isRetryable(e)) {
+                    limiter.release(System.nanoTime() - startTime, true);
+                    breaker.success();
+                    throw e;
+                }
+
+                limiter.release(System.nanoTime() - startTime, false);
+                breaker.failure();
+
+                if (attempt >= maxRetries)
+                    throw e;
+
+                statistics.countRetry();
+                sleep(ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF, BACKOFF << Math.min(attempt, 20)) + 1));
+                continue;
+            }
+
+            limiter.release(System.nanoTime() - startTime, true);
+            breaker.success();
+
+            for (QuerySolution row : rows)
+                consumer.accept(row);
+            return;
+        }
+    }
+
+
+    /**
+     * Errors in the query itself, or requests which the endpoint refuses for good, come back the same each time. Only
+     * timeouts, broken connections, server errors and 'too many requests' are worth another attempt
+     */
+    static boolean isRetryable(RuntimeException e) {
+        if (e instanceof QueryParseException)
+            return false;
+        if (e instanceof QueryExceptionHTTP) {
+            int code = ((QueryExceptionHTTP) e).getStatusCode();
+            return code <= 0 || code == 408 || code == 429 || code >= 500;
+        }
+        return true;
+    }
+
+    private static void sleep(long milliseconds) {
+        try {
+            Thread.sleep(milliseconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    @Override
+    public String getName() {
+        return source.getName();
+    }
+
+    @Override
+    public String getStatus() {
+        return limiter + ", " + breaker;
+    }
+
+    @Override
+    public void close() {
+        source.close();
+    }
+}
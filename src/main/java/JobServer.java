@@ -0,0 +1,153 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonArray;
+import org.apache.jena.atlas.json.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+
+/**
+ * The job server of the batch mode (command line argument '--serve <port>'), which keeps running and takes queries
+ * over HTTP as jobs, see BatchRunner. So the connections to the endpoint and to neo4j and the adjacency cache stay
+ * warm from one job to the next, instead of being set up again for each query.
+ *
+ * It runs on the JDK's own HTTP server and only listens on localhost, since anyone who can reach it can send queries
+ * to the endpoint and write into neo4j:
+ *
+ * - POST /jobs?name=<name> with the query as body : queues the query as job, answers with the job (202)
+ * - GET /jobs : all jobs
+ * - GET /jobs/<name> : the job, with its state, its error, its number of groups and its time elapsed
+ * - GET /jobs/<name>/log : the output of the job so far, as plain text
+ *
+ * e.g. curl --data-binary @query.rq 'http://127.0.0.1:8080/jobs?name=persons'
+ *
+ * experimentable : jobs could also be cancelled, or the finished ones removed, over DELETE
+ */
+public class JobServer {
+
+    private BatchRunner runner;
+    private HttpServer server;
+
+
+    /**
+     * starts the server
+     *
+     * @param runner : runs the jobs
+     * @param port : the port on localhost
+     */
+    public JobServer(BatchRunner runner, int port) throws IOException {
+
+        this.runner = runner;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/jobs", exchange -> {
+            try {
+                answer(exchange);
+            } catch (RuntimeException e) {
+                send(exchange, 400, "text/plain", String.valueOf(e.getMessage()));
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+
+    private void answer(HttpExchange exchange) throws IOException {
+
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+
+        // path[0] is empty, path[1] is 'jobs'
+        if (path.length == 2 && method.equals("POST")) {
+            String query = read(exchange.getRequestBody());
+            if (query.trim().isEmpty()) {
+                send(exchange, 400, "text/plain", "no query");
+                return;
+            }
+            String name = parameter(exchange.getRequestURI().getRawQuery(), "name");
+            BatchRunner.Job job = runner.submit(name != null ? name : "job_" + (runner.getJobs().size() + 1), query);
+            send(exchange, 202, "application/json", JSON.toString(toJson(job)));
+
+        } else if (path.length == 2 && method.equals("GET")) {
+            JsonArray jobs = new JsonArray();
+            for (BatchRunner.Job job : runner.getJobs())
+                jobs.add(toJson(job));
+            send(exchange, 200, "application/json", JSON.toString(jobs));
+
+        } else if ((path.length == 3 || path.length == 4 && path[3].equals("log")) && method.equals("GET")) {
+            BatchRunner.Job job = runner.getJob(path[2]);
+            if (job == null)
+                send(exchange, 404, "text/plain", "no job " + path[2]);
+            else if (path.length == 3)
+                send(exchange, 200, "application/json", JSON.toString(toJson(job)));
+            else
+                send(exchange, 200, "text/plain", job.getLog().exists() ?
+                        new String(Files.readAllBytes(job.getLog().toPath()), StandardCharsets.UTF_8) : "");
+
+        } else {
+            send(exchange, 404, "text/plain", "unknown request " + method + " " + exchange.getRequestURI().getPath());
+        }
+    }
+
+    private static JsonObject toJson(BatchRunner.Job job) {
+        JsonObject json = new JsonObject();
+        json.put("name", job.getName());
+        json.put("state", job.getState());
+        json.put("label", job.getLabel());
+        json.put("elapsedMillis", job.getElapsed());
+        if (job.getState().equals("done"))
+            json.put("groups", job.getGroups());
+        if (job.getError() != null)
+            json.put("error", job.getError());
+        return json;
+    }
+
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int count; (count = in.read(buffer)) > 0; )
+            bytes.write(buffer, 0, count);
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return String : the decoded value of the parameter in the query part of the URL, or null
+     */
+    private static String parameter(String parameters, String name) throws IOException {
+        if (parameters == null)
+            return null;
+        for (String parameter : parameters.split("&")) {
+            if (parameter.startsWith(name + "="))
+                return URLDecoder.decode(parameter.substring(name.length() + 1), "UTF-8");
+        }
+        return null;
+    }
+
+
+    /**
+     * @return String : the URL jobs are posted to
+     */
+    public String getURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/jobs";
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
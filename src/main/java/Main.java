@@ -1,11 +1,16 @@
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.sparql.core.Var;
 import org.neo4j.driver.v1.AuthTokens;
 import org.neo4j.driver.v1.Driver;
 import org.neo4j.driver.v1.GraphDatabase;
-import org.neo4j.driver.v1.Session;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 
 public class Main {
@@ -21,6 +26,226 @@ public class Main {
      */
     public static String virtuosoURL;
 
+    /**
+     * tdb2Directory : if set (command line argument '--tdb2 <dir>'), the queries go to this local TDB2 database
+     * instead of an endpoint, see DatasetTripleSource
+     */
+    public static String tdb2Directory;
+
+    /**
+     * datasetFile : if set (command line argument '--dataset <file>'), this rdf file is loaded into memory and the
+     * queries go to it instead of an endpoint, see DatasetTripleSource
+     */
+    public static String datasetFile;
+
+    /**
+     * connectTimeout : milliseconds for opening a connection to the endpoint, 0 for waiting forever (command line
+     * argument '--connect-timeout <ms>')
+     */
+    public static int connectTimeout = 10000;
+
+    /**
+     * readTimeout : milliseconds the endpoint may stay silent while answering a query, 0 for waiting forever (command
+     * line argument '--read-timeout <ms>')
+     */
+    public static int readTimeout = 0;
+
+    /**
+     * requestTimeout : milliseconds a single query to the endpoint may take as a whole, 0 for no limit (command line
+     * argument '--request-timeout <ms>')
+     */
+    public static int requestTimeout = 300000;
+
+    /**
+     * maxRetries : how often a failed query is sent to the endpoint again before the run fails (command line argument
+     * '--max-retries <n>'), see GuardedTripleSource
+     */
+    public static int maxRetries = 3;
+
+    /**
+     * resultFormats : the result formats asked from the endpoint, most preferred first (command line argument
+     * '--result-formats <list>'), see RemoteTripleSource
+     */
+    public static String resultFormats = "thrift,tsv,json,xml";
+
+    /**
+     * tripleSource : where all queries go to, either the endpoint or a local dataset. Not used in dump mode.
+     * Like pool, parseArguments and the methods of the phases not private, so that the benchmarks (see benchmark/)
+     * can run the phases
+     */
+    static TripleSource tripleSource;
+
+    /**
+     * seedPageSize : if more than 0 (command line argument '--seed-page-size <n>'), the user query is sent in pages of
+     * this many rows, and the relations of the nodes of each page are already queried while the next pages are still
+     * coming in, see getNodesFromQuery
+     */
+    public static int seedPageSize = 0;
+
+    /**
+     * batchSize : number of rdf nodes whose relations are fetched with a single sparql query, see AdjacencyFetcher.
+     * Can be set with the command line argument '--batch-size <n>'
+     */
+    public static int batchSize = 1;
+
+    /**
+     * pushdown : if true (command line argument '--pushdown'), the user query is embedded into the queries for the
+     * relations, so that the endpoint only returns the relations between nodes of the result, see AdjacencyFetcher
+     */
+    public static boolean pushdown = false;
+
+    /**
+     * supernodeThreshold : nodes with more outgoing relations than this are fetched on their own and only with their
+     * relations within the node set (command line argument '--supernode-threshold <n>'). 0 switches the probing of the
+     * number of relations off, see AdjacencyFetcher
+     */
+    public static int supernodeThreshold = 0;
+
+    /**
+     * maxRows : the row cap of the endpoint, i.e. the most rows it sends for a single query (command line argument
+     * '--max-rows <n>'), 0 if it has none. Virtuoso sends at most 10000 rows by default (ResultSetMaxRows). A result
+     * which reaches it is queried again in parts, so it must not be set higher than the real cap, see AdjacencyFetcher
+     */
+    public static int maxRows = 10000;
+
+    /**
+     * neo4jBatchSize : number of groups or group relations which are written to neo4j within one transaction
+     * (command line argument '--neo4j-batch-size <n>'), see Neo4jWriter
+     */
+    public static int neo4jBatchSize = 1000;
+
+    /**
+     * neo4jSync : if true (command line argument '--neo4j-sync'), the groups in neo4j are not deleted and rewritten,
+     * but synced with the new groups, see Neo4jWriter
+     */
+    public static boolean neo4jSync = false;
+
+    /**
+     * dumpFile : if set (command line argument '--dump <file>'), the relations are read from this local rdf dump
+     * instead of being queried from the triplestore, see DumpReader
+     */
+    public static String dumpFile;
+
+    /**
+     * threads : number of threads which query the relations and group the nodes in parallel (command line argument
+     * '--threads <n>'). With 1 everything runs sequentially on the main thread
+     */
+    public static int threads = 1;
+
+    /**
+     * partitions : number of partitions of the nodes for the grouping (command line argument '--partitions <n>'),
+     * 0 for four per thread, see generateGroups
+     */
+    public static int partitions = 0;
+
+    /**
+     * refineDepth : number of rounds in which the groups are split further by the groups of the neighbours of their
+     * nodes (command line argument '--refine <k>'), 0 for the plain 1-hop neighbourhood, see NeighbourhoodRefinement
+     */
+    public static int refineDepth = 0;
+
+    /**
+     * spillDir : if set (command line argument '--spill-dir <dir>'), the relations are not kept in memory but written
+     * into this directory, and the nodes are grouped by sorting on disk, see SpillGrouping. Only the relations leave
+     * the heap: the nodes themselves stay in the TermDictionary (their rdf terms plus its index) and in the member
+     * lists of the groups, so the node set must still fit into the heap
+     */
+    public static String spillDir;
+
+    /**
+     * spillMemory : megabytes of the heap used for sorting on disk (command line argument '--spill-memory <mb>')
+     */
+    public static long spillMemory = 256;
+
+    /**
+     * pool : the worker threads, only created if more than one thread is asked for, see Workers
+     */
+    static ExecutorService pool;
+
+    /**
+     * nodesFile : optional node list for the dump mode (command line argument '--nodes <file>'). Without it all
+     * nodes of the dump are grouped
+     */
+    public static String nodesFile;
+
+    /**
+     * cacheSize : maximum number of relations kept in the adjacency cache across the queries of a session (command line
+     * argument '--cache-size <n>'), 0 switches the cache off, see AdjacencyCache
+     */
+    public static long cacheSize = 1000000;
+
+    /**
+     * cacheDir : if set (command line argument '--cache-dir <dir>'), the adjacency cache is loaded from this directory
+     * at the start and saved into it at the end, with one file per endpoint
+     */
+    public static String cacheDir;
+
+    /**
+     * metricsFile : if set (command line argument '--metrics-file <file>'), the metrics of each run are written into
+     * this file as JSON at the end of the run, see Metrics
+     */
+    public static String metricsFile;
+
+    /**
+     * progressInterval : if more than 0 (command line argument '--progress <s>'), a progress line with the throughput
+     * and the remaining time is printed every this many seconds while a run is going, see Metrics
+     */
+    public static int progressInterval = 0;
+
+    /**
+     * previewFraction : if more than 0 (command line argument '--preview <fraction>'), only this share of the nodes of
+     * a query is sampled and the groups of all nodes are estimated from them, see executePreview
+     */
+    public static double previewFraction = 0;
+
+    /**
+     * streamInterval : if more than 0 (command line argument '--stream <s>'), the nodes are grouped while their
+     * relations are still being fetched, and the groups so far are published into neo4j every this many seconds, see
+     * StreamingGrouping
+     */
+    public static int streamInterval = 0;
+
+    /**
+     * configFile : if set (command line argument '--config <file>'), the program runs headless: the endpoint, the neo4j
+     * credentials and further options are read from this file instead of being typed in, and the queries are run as
+     * jobs, see BatchRunner
+     */
+    public static String configFile;
+
+    /**
+     * queriesPath : in headless mode, a directory with one query per file or a file with several queries (command line
+     * argument '--queries <dir|file>'), which are run as jobs, see BatchRunner.readQueries
+     */
+    public static String queriesPath;
+
+    /**
+     * parallelJobs : in headless mode, the number of jobs running at the same time (command line argument
+     * '--jobs <n>'). They share the threads, so the endpoint never gets more than 'threads' queries at the same time
+     */
+    public static int parallelJobs = 1;
+
+    /**
+     * serverPort : if more than 0 (command line argument '--serve <port>'), the program keeps running in headless mode
+     * and takes further jobs over HTTP on this port, see JobServer
+     */
+    public static int serverPort = 0;
+
+    /**
+     * jobLogDir : in headless mode, the directory of the log files of the jobs (command line argument
+     * '--job-logs <dir>')
+     */
+    public static String jobLogDir = "job-logs";
+
+    /**
+     * batchMode : true while jobs run in headless mode, which may be several at the same time
+     */
+    private static boolean batchMode = false;
+
+    /**
+     * adjacencyCache : the relations of the nodes of earlier queries, null if switched off
+     */
+    private static AdjacencyCache adjacencyCache;
+
 
     /**
      * main method
@@ -29,101 +254,657 @@ public class Main {
      * - rdf triplestore for the input data,
      * - neo4j database for the grouped output data
      *
-     * @param args : sofar no command line arguments are handled
+     * In headless mode (see configFile) nothing is read from the user input, the configuration comes from the config
+     * file instead.
+     *
+     * @param args : command line arguments, see parseArguments
      */
     public static void main(String[] args){
 
-        Scanner scanner = new Scanner(System.in);
+        parseArguments(args);
+
+        // the options of the config file are command line arguments as well, those given on the command line win
+        Properties config = null;
+        if (configFile != null) {
+            try {
+                config = BatchRunner.loadConfig(configFile);
+            } catch (IOException e) {
+                System.out.println("Could not read the config file: " + e);
+                System.exit(1);
+            }
+            parseArguments(BatchRunner.toArguments(config));
+            parseArguments(args);
+            if (queriesPath == null && serverPort == 0 && dumpFile == null)
+                throw new IllegalArgumentException("--config needs --queries, --serve or --dump");
+        }
+
+        if (threads > 1)
+            pool = Workers.newPool(threads);
+
+        Metrics.registerMBean();
+
+        Scanner scanner = config == null ? new Scanner(System.in) : null;
 
 
         /**
-         * Read in configuration data
-         *
-         * experimentable : For the ease of use, you could either hardcore these configurations directly here in the code
-         * or insert a way to read in the configuration from a file.
+         * Read in configuration data, typed in or from the config file
          */
 
-        System.out.print("URL of virtuoso instance: ");
-        virtuosoURL = scanner.nextLine();
+        // experimentable : the local sources need no endpoint and no cache, since there are no round-trips to save
+        if (tdb2Directory != null) {
+            tripleSource = DatasetTripleSource.tdb2(tdb2Directory);
+        } else if (datasetFile != null) {
+            System.out.println("loading " + datasetFile + " into memory");
+            tripleSource = DatasetTripleSource.inMemory(datasetFile);
+        } else if (dumpFile == null) {
+            if (config != null) {
+                virtuosoURL = config.getProperty("endpoint");
+                if (virtuosoURL == null)
+                    throw new IllegalArgumentException("The config file has no endpoint");
+            } else {
+                System.out.print("URL of virtuoso instance: ");
+                virtuosoURL = scanner.nextLine();
+            }
+            // the number of queries at the same time adapts to the endpoint, with the threads as the upper bound
+            tripleSource = new GuardedTripleSource(
+                    new RemoteTripleSource(virtuosoURL, threads, connectTimeout, readTimeout, requestTimeout, resultFormats.split(",")),
+                    threads, maxRetries);
+
+            if (cacheSize > 0) {
+                adjacencyCache = new AdjacencyCache(cacheSize);
+                if (cacheDir != null) {
+                    try {
+                        adjacencyCache.load(AdjacencyCache.fileFor(cacheDir, virtuosoURL), virtuosoURL);
+                        System.out.println("adjacency cache loaded, " + adjacencyCache);
+                    } catch (Exception e) {
+                        // a broken cache file only costs the time for fetching the relations again
+                        System.out.println("Could not load adjacency cache, starting empty: " + e);
+                        adjacencyCache.invalidate();
+                    }
+                }
+            }
+        }
+
+        String urlNeo4j = "bolt://127.0.0.1:7687";
+        String userNeo4j;
+        String passwordNeo4j;
+        if (config != null) {
+            urlNeo4j = config.getProperty("neo4j.url", urlNeo4j);
+            userNeo4j = config.getProperty("neo4j.user", "neo4j");
+            passwordNeo4j = config.getProperty("neo4j.password", "");
+        } else {
+            System.out.print("User of local neo4 instance: ");
+            userNeo4j = scanner.nextLine();
+
+            System.out.print("Password for local neo4 instance: ");
+            passwordNeo4j = scanner.nextLine();
+        }
 
-        System.out.print("User of local neo4 instance: ");
-        String userNeo4j = scanner.nextLine();
+        // the driver keeps a pool of connections, which all jobs of the batch mode share
+        neo4jDriver = GraphDatabase.driver(urlNeo4j, AuthTokens.basic(userNeo4j, passwordNeo4j));
 
-        System.out.print("Password for local neo4 instance: ");
-        String passwordNeo4j = scanner.nextLine();
 
-        neo4jDriver = GraphDatabase.driver(
-                "bolt://127.0.0.1:7687", AuthTokens.basic(userNeo4j, passwordNeo4j));
+        // In dump mode there is no triplestore to send queries to, so the dump is grouped once and the program ends
+        if (dumpFile != null) {
+            try {
+                executeDump(dumpFile, nodesFile);
+            } catch (Exception e) {
+                System.out.println(e);
+                shutdown();
+                System.exit(1);
+            }
+            shutdown();
+            System.exit(0);
+        }
+
 
+        if (config != null) {
+            runBatch();
+            return;
+        }
 
 
         // Go into loop for reading sparql query after sparql query
+        //
+        // Besides queries, the command ':invalidate' in a single line empties the adjacency cache, e.g. after the data
+        // in the triplestore has changed. In preview mode, ':full' runs the last query once more with all its nodes
 
-        System.out.println("\nType in sparql-query (end query with ';' in a single new line, ';;' to exit the program) :");
+        String prompt = "\nType in sparql-query (end query with ';' in a single new line, ';;' to exit the program, ':invalidate' to empty the cache" +
+                (previewFraction > 0 ? ", ':full' to run the last previewed query with all nodes" : "") + ") :";
+        System.out.println(prompt);
         String query = "";
+        String lastQuery = null;
         while (scanner.hasNext()) {
 
             String input = scanner.nextLine();
 
-            if (input.equals(";")) {
+            if (input.equals(";") || input.equals(":full") && lastQuery != null) {
                 try {
 
                     // call of main execution method
-                    execute(query);
-                    System.out.println("\nType in sparql-query (end query with ';' in a single new line, ';;' to exit the program) :");
+                    if (input.equals(":full"))
+                        execute(lastQuery, null);
+                    else if (previewFraction > 0)
+                        executePreview(query);
+                    else
+                        execute(query, null);
+                    System.out.println(prompt);
 
                 } catch (Exception e) {
-                    neo4jDriver.close();
+                    shutdown();
                     System.out.println(e);
                     System.exit(1);
                 }
+                if (input.equals(";"))
+                    lastQuery = query;
                 query = "";
             } else if (input.equals(";;")) {
-                neo4jDriver.close();
+                shutdown();
                 System.exit(0);
+            } else if (input.equals(":invalidate")) {
+                if (adjacencyCache != null) {
+                    adjacencyCache.invalidate();
+                    System.out.println("adjacency cache emptied");
+                }
             }
             else {
                 query += input + "\n";
             }
         }
+
+        // end of input, e.g. when the queries were piped in
+        shutdown();
+    }
+
+    /**
+     * The headless mode: runs the queries of queriesPath as jobs, parallelJobs of them at the same time, and ends once
+     * they are all finished, with exit code 1 if any of them failed. With serverPort, the program keeps running
+     * instead and takes further jobs over HTTP, until it is stopped (e.g. with Ctrl-C).
+     *
+     * What each job prints goes into its log file, the console only shows when a job starts and ends, and the
+     * progress line if asked for. Should the connection to the endpoint or to neo4j break down, all jobs fail, but
+     * each on its own.
+     */
+    private static void runBatch() {
+
+        batchMode = true;
+
+        // the jobs are in different phases at the same time, so the progress line is over the whole batch
+        Metrics.fixPhase("batch");
+        if (progressInterval > 0)
+            Metrics.startProgress(progressInterval);
+
+        int failed;
+        try {
+            BatchRunner runner = new BatchRunner(parallelJobs, jobLogDir);
+
+            if (queriesPath != null) {
+                List<String[]> queries = BatchRunner.readQueries(queriesPath);
+                System.out.println(queries.size() + " jobs from " + queriesPath + ", " + parallelJobs + " at the same time, logs in " + jobLogDir);
+                for (String[] query : queries)
+                    runner.submit(query[0], query[1]);
+            }
+
+            if (serverPort > 0) {
+                JobServer server = new JobServer(runner, serverPort);
+                System.out.println("taking jobs at " + server.getURL());
+                // the server and the job threads keep the program running
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    server.stop();
+                    try {
+                        runner.close();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    shutdown();
+                }));
+                return;
+            }
+
+            failed = runner.awaitAll();
+            runner.close();
+            System.out.println("\n##############################\n" + runner.getSummary());
+            for (BatchRunner.Job job : runner.getJobs())
+                System.out.println(job);
+
+        } catch (Exception e) {
+            System.out.println(e);
+            failed = 1;
+        }
+
+        Metrics.stopProgress();
+        shutdown();
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * saves the adjacency cache, closes the triple source and the connection to neo4j and stops the worker threads
+     */
+    private static void shutdown() {
+        if (adjacencyCache != null && cacheDir != null) {
+            try {
+                adjacencyCache.save(AdjacencyCache.fileFor(cacheDir, virtuosoURL), virtuosoURL);
+            } catch (Exception e) {
+                System.out.println("Could not save adjacency cache: " + e);
+            }
+        }
+        if (tripleSource != null)
+            tripleSource.close();
+        neo4jDriver.close();
+        if (pool != null)
+            pool.shutdownNow();
     }
 
+
+    /**
+     * Reads in the optional command line arguments, all of which have a default value in case they are not given.
+     *
+     * --batch-size <n> : number of nodes whose relations are fetched within one sparql query
+     * --pushdown : let the endpoint drop the relations which leave the node set, instead of dropping them here
+     * --supernode-threshold <n> : fetch nodes with more outgoing relations than this on their own, restricted to the node set
+     * --max-rows <n> : the most rows the endpoint sends for one query, 0 for no cap
+     * --neo4j-batch-size <n> : number of groups or group relations written to neo4j within one transaction
+     * --neo4j-sync : only write the differences between the groups in neo4j and the new groups
+     * --threads <n> : number of threads which query and group the nodes in parallel
+     * --partitions <n> : number of partitions of the nodes which are grouped on their own and then merged
+     * --refine <k> : split the groups further for up to k more hops of the neighbourhood
+     * --spill-dir <dir> : keep the relations in this directory instead of memory, and group the nodes on disk (the
+     *                     nodes themselves still have to fit into the heap)
+     * --spill-memory <mb> : megabytes of the heap used for sorting on disk
+     * --dump <file> : group the nodes of a local rdf dump instead of querying a triplestore
+     * --nodes <file> : in dump mode, only group the nodes listed in this file (one N-Triples term per line)
+     * --cache-size <n> : number of relations kept in the adjacency cache across queries, 0 for no cache
+     * --cache-dir <dir> : load the adjacency cache from and save it into this directory
+     * --tdb2 <dir> : query a local TDB2 database instead of an endpoint
+     * --dataset <file> : load this rdf file into memory and query it instead of an endpoint
+     * --connect-timeout <ms> : milliseconds for opening a connection to the endpoint, 0 for no timeout
+     * --read-timeout <ms> : milliseconds the endpoint may stay silent while answering, 0 for no timeout
+     * --result-formats <list> : comma separated result formats, most preferred first (thrift, tsv, json, xml)
+     * --request-timeout <ms> : milliseconds a single query may take as a whole, 0 for no timeout
+     * --max-retries <n> : how often a failed query is sent again
+     * --seed-page-size <n> : send the user query in pages of this many rows, 0 for all at once
+     * --metrics-file <file> : write the metrics of each run into this file as JSON
+     * --progress <s> : print a progress line with throughput and remaining time every s seconds
+     * --preview <fraction> : only sample this share of the nodes and estimate the groups from them
+     * --stream <s> : group the nodes while they are fetched and publish the groups so far every s seconds
+     * --config <file> : run headless, with the endpoint, the neo4j credentials and further options from this file
+     * --queries <dir|file> : in headless mode, run these queries as jobs
+     * --jobs <n> : in headless mode, number of jobs running at the same time
+     * --serve <port> : in headless mode, keep running and take jobs over HTTP on this port of localhost
+     * --job-logs <dir> : in headless mode, the directory of the log files of the jobs
+     *
+     * @param args : the command line arguments from the main method
+     */
+    static void parseArguments(String[] args) {
+
+        for (int i = 0; i < args.length; i++) {
+
+            if (args[i].equals("--batch-size") && i + 1 < args.length) {
+                batchSize = Integer.parseInt(args[++i]);
+                if (batchSize < 1)
+                    throw new IllegalArgumentException("--batch-size must be at least 1");
+            } else if (args[i].equals("--pushdown")) {
+                pushdown = true;
+            } else if (args[i].equals("--supernode-threshold") && i + 1 < args.length) {
+                supernodeThreshold = Integer.parseInt(args[++i]);
+                if (supernodeThreshold < 0)
+                    throw new IllegalArgumentException("--supernode-threshold must not be negative");
+            } else if (args[i].equals("--max-rows") && i + 1 < args.length) {
+                maxRows = Integer.parseInt(args[++i]);
+                if (maxRows < 0)
+                    throw new IllegalArgumentException("--max-rows must not be negative");
+            } else if (args[i].equals("--neo4j-batch-size") && i + 1 < args.length) {
+                neo4jBatchSize = Integer.parseInt(args[++i]);
+                if (neo4jBatchSize < 1)
+                    throw new IllegalArgumentException("--neo4j-batch-size must be at least 1");
+            } else if (args[i].equals("--neo4j-sync")) {
+                neo4jSync = true;
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+                if (threads < 1)
+                    throw new IllegalArgumentException("--threads must be at least 1");
+            } else if (args[i].equals("--partitions") && i + 1 < args.length) {
+                partitions = Integer.parseInt(args[++i]);
+                if (partitions < 0)
+                    throw new IllegalArgumentException("--partitions must not be negative");
+            } else if (args[i].equals("--refine") && i + 1 < args.length) {
+                refineDepth = Integer.parseInt(args[++i]);
+                if (refineDepth < 0)
+                    throw new IllegalArgumentException("--refine must not be negative");
+            } else if (args[i].equals("--spill-dir") && i + 1 < args.length) {
+                spillDir = args[++i];
+            } else if (args[i].equals("--spill-memory") && i + 1 < args.length) {
+                spillMemory = Long.parseLong(args[++i]);
+                if (spillMemory < 1)
+                    throw new IllegalArgumentException("--spill-memory must be at least 1");
+            } else if (args[i].equals("--dump") && i + 1 < args.length) {
+                dumpFile = args[++i];
+            } else if (args[i].equals("--nodes") && i + 1 < args.length) {
+                nodesFile = args[++i];
+            } else if (args[i].equals("--cache-size") && i + 1 < args.length) {
+                cacheSize = Long.parseLong(args[++i]);
+                if (cacheSize < 0)
+                    throw new IllegalArgumentException("--cache-size must not be negative");
+            } else if (args[i].equals("--cache-dir") && i + 1 < args.length) {
+                cacheDir = args[++i];
+            } else if (args[i].equals("--tdb2") && i + 1 < args.length) {
+                tdb2Directory = args[++i];
+            } else if (args[i].equals("--dataset") && i + 1 < args.length) {
+                datasetFile = args[++i];
+            } else if (args[i].equals("--connect-timeout") && i + 1 < args.length) {
+                connectTimeout = Integer.parseInt(args[++i]);
+                if (connectTimeout < 0)
+                    throw new IllegalArgumentException("--connect-timeout must not be negative");
+            } else if (args[i].equals("--read-timeout") && i + 1 < args.length) {
+                readTimeout = Integer.parseInt(args[++i]);
+                if (readTimeout < 0)
+                    throw new IllegalArgumentException("--read-timeout must not be negative");
+            } else if (args[i].equals("--request-timeout") && i + 1 < args.length) {
+                requestTimeout = Integer.parseInt(args[++i]);
+                if (requestTimeout < 0)
+                    throw new IllegalArgumentException("--request-timeout must not be negative");
+            } else if (args[i].equals("--max-retries") && i + 1 < args.length) {
+                maxRetries = Integer.parseInt(args[++i]);
+                if (maxRetries < 0)
+                    throw new IllegalArgumentException("--max-retries must not be negative");
+            } else if (args[i].equals("--seed-page-size") && i + 1 < args.length) {
+                seedPageSize = Integer.parseInt(args[++i]);
+                if (seedPageSize < 0)
+                    throw new IllegalArgumentException("--seed-page-size must not be negative");
+            } else if (args[i].equals("--metrics-file") && i + 1 < args.length) {
+                metricsFile = args[++i];
+            } else if (args[i].equals("--progress") && i + 1 < args.length) {
+                progressInterval = Integer.parseInt(args[++i]);
+                if (progressInterval < 0)
+                    throw new IllegalArgumentException("--progress must not be negative");
+            } else if (args[i].equals("--preview") && i + 1 < args.length) {
+                previewFraction = Double.parseDouble(args[++i]);
+                if (!(previewFraction >= 0 && previewFraction <= 1))
+                    throw new IllegalArgumentException("--preview must be between 0 and 1");
+            } else if (args[i].equals("--stream") && i + 1 < args.length) {
+                streamInterval = Integer.parseInt(args[++i]);
+                if (streamInterval < 0)
+                    throw new IllegalArgumentException("--stream must not be negative");
+            } else if (args[i].equals("--config") && i + 1 < args.length) {
+                configFile = args[++i];
+            } else if (args[i].equals("--queries") && i + 1 < args.length) {
+                queriesPath = args[++i];
+            } else if (args[i].equals("--jobs") && i + 1 < args.length) {
+                parallelJobs = Integer.parseInt(args[++i]);
+                if (parallelJobs < 1)
+                    throw new IllegalArgumentException("--jobs must be at least 1");
+            } else if (args[i].equals("--serve") && i + 1 < args.length) {
+                serverPort = Integer.parseInt(args[++i]);
+                if (serverPort < 1 || serverPort > 65535)
+                    throw new IllegalArgumentException("--serve must be a port between 1 and 65535");
+            } else if (args[i].equals("--job-logs") && i + 1 < args.length) {
+                jobLogDir = args[++i];
+            } else if (args[i].equals("--result-formats") && i + 1 < args.length) {
+                resultFormats = args[++i];
+                // fails on unknown formats right away instead of with the first query
+                RemoteTripleSource.acceptHeader(resultFormats.split(","));
+            } else {
+                throw new IllegalArgumentException("Unknown command line argument: " + args[i]);
+            }
+        }
+
+        // the refinement goes over the relations of each node again and again, which are not in memory with a spill
+        if (refineDepth > 0 && spillDir != null)
+            throw new IllegalArgumentException("--refine can not be combined with --spill-dir");
+
+        // the streaming grouping keeps the relations in memory and only knows the 1-hop neighbourhood, and its
+        // micro-batches replace the groups in neo4j step by step
+        if (streamInterval > 0 && (refineDepth > 0 || spillDir != null || neo4jSync || dumpFile != null))
+            throw new IllegalArgumentException("--stream can not be combined with --refine, --spill-dir, --neo4j-sync or --dump");
+
+        // the credentials of the jobs come from the config file, nobody is there to type them in
+        if ((queriesPath != null || serverPort > 0) && configFile == null)
+            throw new IllegalArgumentException("--queries and --serve need --config");
+    }
+
+
     /**
      * the top level method which invokes several distinct phases of the whole graph compression logic and its output
      *
+     * Several queries may run at the same time in headless mode, see BatchRunner. Everything of the query is local to
+     * this call then, only the triple source, the adjacency cache, the worker threads and the neo4j driver are shared.
+     *
+     * @param queryString : the sparql query as string to be executed
+     * @param label : the label of the groups in neo4j, null for the default label, see Neo4jWriter
+     * @return int : the number of groups
+     * @throws Exception
+     */
+    static int execute(String queryString, String label) throws Exception {
+
+        startMetrics();
+
+        // phase 1, get all individual RDFNodes from original query. With pages, the relations of the nodes of the
+        // first pages are already queried (phase 2) while the later pages are still coming in
+        Metrics.phase("seed");
+        System.out.println("##############################\nget all individual RDFNodes from original query" +
+                (seedPageSize > 0 ? ", page by page, and query their relations meanwhile." : "."));
+        long startTime = System.currentTimeMillis();
+        FetchStatistics seedStatistics = new FetchStatistics();
+        FetchStatistics statistics = new FetchStatistics();
+        TermDictionary dictionary = new TermDictionary();
+
+        AdjacencyFetcher fetcher = new AdjacencyFetcher(tripleSource, dictionary, statistics, adjacencyCache,
+                queryString, pushdown, supernodeThreshold, maxRows);
+
+        // store : takes a node id as index and its relations (within the node set) as value.
+        // Each batch only writes its own range of the store, so the threads do not get into each others way
+        AdjacencyStore store = new AdjacencyStore(0, spillDir != null ? new SpillGrouping(spillDir, spillMemory * 1024 * 1024) : null);
+
+        // counting variables for displaying progress, the number of all nodes is only known after phase 1
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger totalSize = new AtomicInteger();
+
+        // in streaming mode, each batch is grouped right after it is fetched, and the groups so far are published
+        // every few seconds, see StreamingGrouping
+        StreamingGrouping streaming = streamInterval > 0 ? new StreamingGrouping(dictionary, store) : null;
+        if (streaming != null)
+            streaming.start(new Neo4jWriter(neo4jDriver, neo4jBatchSize, false, label), streamInterval);
+
+        Workers.Feed feed = new Workers.Feed(batchSize, pool, (from, to) -> {
+            store.fetch(fetcher, from, to);
+            if (streaming != null)
+                streaming.add(from, to);
+            printProgress(processed, to - from, totalSize.get());
+        });
+
+        int pages;
+        fetcher.setNodeSetComplete(seedPageSize == 0);
+        try {
+            pages = getNodesFromQuery(queryString, dictionary, seedStatistics, (from, to) -> {
+                store.grow(to);
+                feed.advance(to, false);
+            });
+        } catch (Exception e) {
+            feed.cancel();
+            if (streaming != null)
+                streaming.stop();
+            throw e;
+        }
+        fetcher.setNodeSetComplete(true);
+        Metrics.PHASE_SEED_MILLIS.add(System.currentTimeMillis() - startTime);
+        System.out.println("DONE, number of nodes: " + dictionary.nodeCount() + ", " + seedStatistics + (seedPageSize > 0 ? ", pages: " + pages + ", nodes whose relations are queried already: " + feed.getSubmitted() : "") + ", time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
+
+
+        // phase 2, query the relations of each node
+        Metrics.phase("fetch");
+        System.out.println("##############################\nquery the relations of each node");
+        startTime = System.currentTimeMillis();
+        fetchAdjacencies(dictionary, fetcher, store, feed, totalSize, streaming);
+        Metrics.PHASE_FETCH_MILLIS.add(System.currentTimeMillis() - startTime);
+        System.out.println("DONE, " + statistics + ", " + store + (adjacencyCache != null ? ", " + adjacencyCache : "") + (tripleSource.getStatus() != null ? ", " + tripleSource.getStatus() : "") + ", batch size: " + batchSize + ", pushdown: " + pushdown + ", threads: " + threads + ", time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
+
+
+        // phase 3, calculate neighbourhoods of each node
+        System.out.println("##############################\ncalculate neighbourhood of each node, put the node into the neighbourhood-respective group, wire the groups");
+        Metrics.phase("grouping");
+        startTime = System.currentTimeMillis();
+        HashSet<Group> groups;
+        if (streaming != null) {
+            groups = streaming.finish();
+            Metrics.GROUPS.add(groups.size());
+        } else {
+            groups = generateGroups(dictionary, store);
+        }
+        Metrics.PHASE_GROUPING_MILLIS.add(System.currentTimeMillis() - startTime);
+        System.out.println("DONE, number of groups: " + groups.size() + ", " + store + ", threads: " + threads + ", time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
+
+
+        outputGroups(groups, queryString, label, streaming);
+        return groups.size();
+    }
+
+
+    /**
+     * The preview mode, which shows within a fraction of the time of execute roughly what the groups of a query look
+     * like, so that the whole query only has to be run if the preview looks interesting (see ':full' in main).
+     *
+     * The user query is run as usual, but only the relations of a random sample of its nodes are queried (their
+     * incoming relations as well, since they can not be derived from the relations of the other nodes), and the groups
+     * of all nodes are estimated from the groups of the sampled nodes, see GroupPreview. Nothing is written to neo4j.
+     * The relations of the sampled nodes go into the adjacency cache as usual, so the whole run afterwards does not
+     * query them again.
+     *
+     * experimentable : the seed of the sample is fixed, so the same query gives the same preview
+     *
      * @param queryString : the sparql query as string to be executed
+     * @return int : the number of groups in the sample
      * @throws Exception
      */
-    private static void execute(String queryString) throws Exception {
+    static int executePreview(String queryString) throws Exception {
 
+        startMetrics();
 
-        // phase 1, get all individual RDFNodes from original query
+        // phase 1, the same as in execute, but without querying the relations meanwhile
+        Metrics.phase("seed");
         System.out.println("##############################\nget all individual RDFNodes from original query.");
         long startTime = System.currentTimeMillis();
-        HashSet<RDFNode> startNodes = getNodeHashSetFromQuery(queryString);
-        System.out.println("DONE, number of nodes: " + startNodes.size() + ", time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
+        FetchStatistics seedStatistics = new FetchStatistics();
+        TermDictionary dictionary = new TermDictionary();
+        getNodesFromQuery(queryString, dictionary, seedStatistics, (from, to) -> { });
+        Metrics.PHASE_SEED_MILLIS.add(System.currentTimeMillis() - startTime);
+        System.out.println("DONE, number of nodes: " + dictionary.nodeCount() + ", " + seedStatistics + ", time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
+
+
+        // phase 2, query the outgoing and incoming relations of the sampled nodes
+        Metrics.phase("fetch");
+        System.out.println("##############################\nquery the relations of a sample of " + previewFraction * 100 + "% of the nodes");
+        startTime = System.currentTimeMillis();
+        FetchStatistics statistics = new FetchStatistics();
+        AdjacencyFetcher fetcher = new AdjacencyFetcher(tripleSource, dictionary, statistics, adjacencyCache,
+                queryString, pushdown, supernodeThreshold, maxRows);
+
+        int[] sample = GroupPreview.sample(dictionary.nodeCount(), previewFraction, 42);
+        NodeAdjacency[] outgoing = new NodeAdjacency[sample.length];
+        IntList[] incoming = new IntList[sample.length];
+        AtomicInteger processed = new AtomicInteger();
+        Metrics.NODES.add(sample.length);
+
+        Workers.forEachChunk(sample.length, batchSize, pool, (from, to) -> {
+            int[] ids = Arrays.copyOfRange(sample, from, to);
+            System.arraycopy(fetcher.fetchOrCached(ids), 0, outgoing, from, ids.length);
+            System.arraycopy(fetcher.fetchIncoming(ids), 0, incoming, from, ids.length);
+            printProgress(processed, ids.length, sample.length);
+        });
+        Metrics.PHASE_FETCH_MILLIS.add(System.currentTimeMillis() - startTime);
+        System.out.println("DONE, sampled nodes: " + sample.length + ", " + statistics + (adjacencyCache != null ? ", " + adjacencyCache : "") + (tripleSource.getStatus() != null ? ", " + tripleSource.getStatus() : "") + ", time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
+
+
+        // phase 3, group the sampled nodes and estimate
+        Metrics.phase("grouping");
+        System.out.println("##############################\nestimate the groups from the sampled nodes\n");
+        startTime = System.currentTimeMillis();
+        GroupPreview preview = new GroupPreview(dictionary, sample, outgoing, incoming);
+        Metrics.GROUPS.add(preview.getGroups().size());
+        Metrics.PHASE_GROUPING_MILLIS.add(System.currentTimeMillis() - startTime);
+        System.out.println(preview.report(20));
+        System.out.println("DONE, time elapsed: " + (System.currentTimeMillis() - startTime) + "\n\n\n");
+
+        finishMetrics(queryString);
+        return preview.getGroups().size();
+    }
 
 
-        // phase 2, calculate neighbourhoods of each otherNode
+    /**
+     * the top level method of the dump mode, which replaces the first two phases of 'execute' by a single pass over a
+     * local rdf dump and then groups and outputs the nodes the same way
+     *
+     * @param dumpFile : path of the rdf dump
+     * @param nodesFile : path of a node list, or null if all nodes of the dump should be grouped
+     * @throws Exception
+     */
+    private static void executeDump(String dumpFile, String nodesFile) throws Exception {
+
+        startMetrics();
+
+        // phase 1 and 2, read the nodes and their relations from the dump
+        Metrics.phase("dump");
+        System.out.println("##############################\nread nodes and relations from dump " + dumpFile);
+        long startTime = System.currentTimeMillis();
+        TermDictionary dictionary = new TermDictionary();
+        if (nodesFile != null)
+            DumpReader.readNodeList(nodesFile, dictionary);
+        DumpReader dumpReader = new DumpReader(dictionary, nodesFile != null,
+                spillDir != null ? new SpillGrouping(spillDir, spillMemory * 1024 * 1024) : null);
+        dumpReader.read(dumpFile);
+        Metrics.NODES.add(dictionary.nodeCount());
+        Metrics.PHASE_FETCH_MILLIS.add(System.currentTimeMillis() - startTime);
+        System.out.println("DONE, number of nodes: " + dictionary.nodeCount() + ", triples read: " + dumpReader.getTriples() + ", duplicate triples dropped: " + dumpReader.getDuplicates() + ", time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
+
+
+        // phase 3, calculate neighbourhoods of each node
         System.out.println("##############################\ncalculate neighbourhood of each node, put the node into the neighbourhood-respective group, wire the groups");
+        Metrics.phase("grouping");
         startTime = System.currentTimeMillis();
-        HashSet<Group> groups = generateGroups(startNodes);
+        HashSet<Group> groups = generateGroups(dictionary, dumpReader.getStore());
+        Metrics.PHASE_GROUPING_MILLIS.add(System.currentTimeMillis() - startTime);
         System.out.println("DONE, number of groups: " + groups.size() + ", time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
 
 
-        // phase 3, persist groups in neo4j
+        outputGroups(groups, dumpFile, null, null);
+    }
+
+
+    /**
+     * the last two phases, which are the same for all modes: persisting the groups and printing them. The run ends
+     * with the persisting, so its metrics are reported then
+     *
+     * @param groups : the resulting groups of the grouping algorithm
+     * @param run : the query or the dump file of the run, for the metrics report
+     * @param label : the label of the groups in neo4j, null for the default label
+     * @param streaming : in streaming mode the groups are published as last micro-batch, else null
+     */
+    private static void outputGroups(HashSet<Group> groups, String run, String label, StreamingGrouping streaming) {
+
+        // phase 4, persist groups in neo4j
         //
         // experimentable: Since the main logic has been done by now, all the generated groups could be written into any
         // kind of storage with any kind of format (which would need to be done manually of course, as a general guideline
         // on how to iterate over the result groups, have a look at the 'toString' method of the Group Class, where all
         // the information encapsulated in a single groups is iterated over. This you then would need to do for each group
-        System.out.println("##############################\nDelete data in neo4j, persist new groups in neo4j");
-        startTime = System.currentTimeMillis();
-        persistGroupsToNeo4j(groups);
-        System.out.println("DONE, time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
+        System.out.println("##############################\n" + (neo4jSync ? "Sync groups with the data in neo4j" : "Delete data in neo4j, persist new groups in neo4j"));
+        Metrics.phase("neo4j");
+        long startTime = System.currentTimeMillis();
+        // in streaming mode only what changed since the last micro-batch is written, unless a micro-batch failed and
+        // left neo4j in a state which is not known
+        Neo4jWriter neo4jWriter;
+        if (streaming != null && streaming.getError() == null) {
+            neo4jWriter = streaming.getWriter();
+            neo4jWriter.publish(groups);
+        } else {
+            neo4jWriter = new Neo4jWriter(neo4jDriver, neo4jBatchSize, neo4jSync, label);
+            neo4jWriter.persist(groups);
+        }
+        Metrics.PHASE_NEO4J_MILLIS.add(System.currentTimeMillis() - startTime);
+        System.out.println("DONE, " + neo4jWriter.getSummary() + ", time elapsed: " + (System.currentTimeMillis() - startTime) +"\n");
+        finishMetrics(run);
 
 
-        // phase 4, print all groups to user console
+        // phase 5, print all groups to user console
         System.out.println("##############################\nPrintout of all groups with all relations\n");
         for (Group g : groups) {
             if (g.hasRelations())
@@ -133,9 +914,44 @@ public class Main {
     }
 
 
+    /**
+     * sets the metrics back for a new run and starts the progress line if asked for
+     *
+     * In batch mode, several jobs run at the same time, so the metrics are over all jobs instead and are neither reset
+     * nor reported by the single job, see runBatch and BatchRunner
+     */
+    private static void startMetrics() {
+        if (batchMode)
+            return;
+        Metrics.reset();
+        if (progressInterval > 0)
+            Metrics.startProgress(progressInterval);
+    }
+
+    /**
+     * stops the progress line and writes the metrics report if asked for
+     *
+     * @param run : the query or the dump file of the run
+     */
+    private static void finishMetrics(String run) {
+        if (batchMode)
+            return;
+        Metrics.stopProgress();
+        if (metricsFile == null)
+            return;
+        try {
+            Metrics.writeReport(metricsFile, run);
+            System.out.println("metrics written into " + metricsFile);
+        } catch (IOException e) {
+            // the groups are there anyway
+            System.out.println("Could not write the metrics: " + e);
+        }
+    }
+
+
     /**
      * This method executes the sparql query and extracts all the individual rdf nodes from the result set which it then
-     * saves  into a hashset, that is needed later for the grouping algorithm.
+     * encodes into the dictionary, that is needed later for the grouping algorithm.
      *
      * motivation:
      *
@@ -143,35 +959,196 @@ public class Main {
      * given node again since the result set of the user sparql query doesn't provide any information on which variable
      * is a node, which is a relation and the like.
      *
-     * Also saving the nodes into a hashset eliminates redundancy on a few occasions where the grouping algorithm need
-     * to check what nodes are relevant in the context of the user sparql qurey.
+     * Also saving the nodes into the dictionary eliminates redundancy on a few occasions where the grouping algorithm need
+     * to check what nodes are relevant in the context of the user sparql qurey. From here on each node is only
+     * handled by its id.
+     *
+     * Large results are sent in pages of seedPageSize rows: endpoints like virtuoso silently cut off results above
+     * their cap, and a large result would otherwise only arrive as a whole after a long time without any progress.
+     * Each page is the user query with LIMIT and OFFSET (within the LIMIT and OFFSET of the user query, if any), and
+     * an ORDER BY over all its variables, so that the pages do not overlap. The ORDER BY of the user query stays in
+     * front, its order is only made total. The next page starts after the rows actually received, so should the
+     * endpoint send fewer rows than asked for because of its cap, nothing is skipped. The last page is the one
+     * which comes back empty.
+     *
+     * After each page, the nodes it added are handed to pageDone, so that their relations can already be queried
+     * while the next page is on its way.
+     *
+     * experimentable : the endpoint has to sort the whole result again for each page, which gets expensive for deep
+     * pages. Keyset pagination (FILTER (?x > last value) instead of OFFSET) would avoid that, but the sparql '>'
+     * is not defined between IRIs, nor between IRIs and literals, so it only works for queries over a single
+     * literal variable.
      *
      * @param queryString : the sparql query as string to be executed
-     * @return HashSet<RDFNode> : the hashset of RDFNodes
+     * @param dictionary : the (empty) dictionary the nodes are encoded into
+     * @param statistics : counts the sparql requests and result rows of this phase
+     * @param pageDone : called with the range of node ids which were added by each page
+     * @return int : the number of queries sent, i.e. pages
+     * @throws Exception
      */
-    private static HashSet<RDFNode> getNodeHashSetFromQuery(String queryString) {
+    static int getNodesFromQuery(String queryString, TermDictionary dictionary, FetchStatistics statistics,
+                                 Workers.Task pageDone) throws Exception {
 
 
-        // apache jena query preparation and execution
+        // apache jena query preparation, parsing it here already gives the user a syntax error before anything is sent
         Query query = QueryFactory.create(queryString);
-        QueryExecution qexec = QueryExecutionFactory.sparqlService(virtuosoURL, query);
-        ResultSet rs = qexec.execSelect();
 
 
-        // saving results into a hashset
-        HashSet<RDFNode> results = new HashSet<RDFNode>();
-        while(rs.hasNext()) {
-            QuerySolution qs = rs.next();
+        // saving results into the dictionary
+        Consumer<QuerySolution> encoder = qs -> {
             Iterator<String> iter = qs.varNames();
 
             while (iter.hasNext()) {
                 String varName = iter.next();
                 RDFNode n = qs.get(varName);
-                results.add(n);
+                dictionary.encodeNode(n);
             }
+        };
+
+        if (seedPageSize == 0) {
+            tripleSource.select(query.serialize(), statistics, encoder);
+            pageDone.run(0, dictionary.nodeCount());
+            return 1;
         }
 
-        return results;
+
+        // a total order over the result, so that each row is in exactly one page
+        Query page = query.cloneQuery();
+        page.setResultVars();
+        HashSet<String> ordered = new HashSet<String>();
+        if (page.hasOrderBy()) {
+            for (SortCondition condition : page.getOrderBy()) {
+                if (condition.getExpression().isVariable())
+                    ordered.add(condition.getExpression().getVarName());
+            }
+        }
+        for (String var : page.getResultVars()) {
+            if (!ordered.contains(var))
+                page.addOrderBy(Var.alloc(var), Query.ORDER_DEFAULT);
+        }
+
+        long offset = query.hasOffset() ? query.getOffset() : 0;
+        long limit = query.hasLimit() ? query.getLimit() : Long.MAX_VALUE;
+
+        int pages = 0;
+        long received = 0;
+        boolean capped = false;
+        while (received < limit) {
+
+            long pageSize = Math.min(seedPageSize, limit - received);
+            page.setOffset(offset + received);
+            page.setLimit(pageSize);
+
+            int from = dictionary.nodeCount();
+            AtomicLong rows = new AtomicLong();
+            tripleSource.select(page.serialize(), statistics, qs -> {
+                rows.incrementAndGet();
+                encoder.accept(qs);
+            });
+            pages++;
+            pageDone.run(from, dictionary.nodeCount());
+
+            if (rows.get() == 0)
+                break;
+            if (rows.get() < pageSize && !capped) {
+                // either the last page, or the endpoint caps its results below the page size
+                System.out.println("page " + pages + " came back with " + rows.get() + " of " + pageSize +
+                        " rows, either it is the last one or the endpoint caps its results");
+                capped = true;
+            }
+            received += rows.get();
+            System.out.println("page " + pages + ", rows: " + received + ", nodes: " + dictionary.nodeCount() +
+                    (tripleSource.getStatus() != null ? " (" + tripleSource.getStatus() + ")" : ""));
+        }
+        return pages;
+    }
+
+
+    /**
+     * queries the relations for the individual rdf nodes, batch-wise
+     *
+     * Since the resulting variables of a sparql query do not intrinsically encode relations or nodes (since they
+     * are just variables defined by the user-query), for reach individual rdf node from the result set the algorithms
+     * needs to query again for its relations, so that the node's neighbourhood can be examined.
+     *
+     * Another possibility to avoid this second querying would be to force the user to only use variables in a
+     * way which would tell the programm which of them are nodes and which are relations. But since this excludes many
+     * custom sparql queries, I decided to make this algorithm result-set agnostic on the expense of a bit of performance
+     * loss
+     *
+     * To keep this loss small, the nodes are not queried one by one but in batches of 'batchSize' nodes per
+     * sparql query (see AdjacencyFetcher). Each node is queried exactly once and only for its outgoing relations,
+     * the incoming ones are derived from them in the AdjacencyStore. Nodes which were already part of an earlier query
+     * are taken from the AdjacencyCache and not queried at all. With more than one thread, several batches are
+     * queried at the same time.
+     *
+     * With the pushdown, the user query is sent along, so that already the endpoint drops the relations to nodes
+     * outside of the result. With a supernode threshold this is only done for the nodes with lots of relations.
+     *
+     * With pages (see getNodesFromQuery), the batches of the nodes which came with the first pages are already on
+     * their way, so only the rest is handed to the feed here. The relations which were kept aside meanwhile, since
+     * their object was not known yet, are added once all batches are done.
+     *
+     * @param dictionary : contains the rdf nodes whose relations are queried, complete by now
+     * @param fetcher : queries the relations of each batch
+     * @param store : for each node id its relations (within the node set), filled by the feed
+     * @param feed : runs the batches, possibly some of them already
+     * @param totalSize : set to the number of nodes here, for displaying progress
+     * @throws Exception
+     */
+    static void fetchAdjacencies(TermDictionary dictionary, AdjacencyFetcher fetcher, AdjacencyStore store,
+                                 Workers.Feed feed, AtomicInteger totalSize) throws Exception {
+        fetchAdjacencies(dictionary, fetcher, store, feed, totalSize, null);
+    }
+
+    /**
+     * @param streaming : in streaming mode, stops publishing before the pending relations are added to the nodes
+     *                  which are grouped already, else null
+     */
+    static void fetchAdjacencies(TermDictionary dictionary, AdjacencyFetcher fetcher, AdjacencyStore store,
+                                 Workers.Feed feed, AtomicInteger totalSize, StreamingGrouping streaming) throws Exception {
+
+        int nodeCount = dictionary.nodeCount();
+        store.grow(nodeCount);
+        totalSize.set(nodeCount);
+        Metrics.NODES.add(nodeCount);
+
+        feed.advance(nodeCount, true);
+        try {
+            feed.await();
+        } finally {
+            if (streaming != null)
+                streaming.stop();
+        }
+
+        fetcher.resolvePending(store);
+        store.deriveIncoming();
+    }
+
+
+    /**
+     * counting stuff for displaying progress, prints a line for each ten percent of processed nodes, together with the
+     * status of the triple source
+     *
+     * @param processed : the number of nodes processed so far, shared between the threads
+     * @param newlyProcessed : the number of nodes which have just been processed
+     * @param totalSize : the number of all nodes, 0 if not known yet
+     */
+    private static void printProgress(AtomicInteger processed, int newlyProcessed, int totalSize) {
+
+        int after = processed.addAndGet(newlyProcessed);
+        int before = after - newlyProcessed;
+        Metrics.NODES_DONE.add(newlyProcessed);
+
+        // 0 while the nodes are still coming in, see execute. In batch mode the worker threads print into the log of
+        // the job, see BatchRunner.withJobLog
+        if (totalSize < 20)
+            return;
+
+        // e.g. the current concurrency limit and latencies of the endpoint
+        String status = tripleSource == null ? null : tripleSource.getStatus();
+        for (int j = before * 10 / totalSize + 1; j <= after * 10 / totalSize; j++)
+            System.out.println(j * 10 + "%" + (status == null ? "" : " (" + status + ")"));
     }
 
 
@@ -179,387 +1156,236 @@ public class Main {
      * the main grouping algorithm
      *
      * important algorithmic steps (which are explained in detail within the method):
-     * 1.) queries the relations for an individual rdf node
-     * 2.) calculates the neighbourhood of the individual rdf nodes (both subject and object)
-     * 3.) saves the rdf nodes into a neighbourhood-specific group
-     * 4.) copies the relations of the nodes to their respective groups
+     * 1.) calculates the neighbourhood of the individual rdf nodes
+     * 2.) saves the rdf nodes into a neighbourhood-specific group
+     * 3.) copies the relations of the nodes to their respective groups
      *
-     * @param nodes : a hashset consisting of rdf nodes whose relations are examined to categorize them into groups
+     * The nodes are split into partitions of consecutive node ids, and each step is done as map and reduce: each
+     * partition is worked on by one task on its own, without touching anything shared (map), and only the result of
+     * the whole partition is merged into the groups (reduce). So the threads only meet once per partition and group
+     * instead of once per node. Since the partitions are merged in the order of their node ids, each group gets its
+     * nodes in the same order as with a single thread, i.e. the result is exactly the same.
+     *
+     * If the relations did not fit into the heap and went to disk instead, the grouping is done on disk as well, see
+     * SpillGrouping.
+     *
+     * experimentable : more partitions than threads even out partitions which take longer than others (e.g. with
+     * supernodes), fewer partitions mean fewer local groups to merge. The default is four per thread.
+     *
+     * @param dictionary : contains the rdf nodes which are examined to categorize them into groups
+     * @param store : the relations of each node id, either queried (see fetchAdjacencies) or read from a dump
      * @return HashSet<Group> : The resulting set of groups
      * @throws Exception
      */
-    private static HashSet<Group> generateGroups(HashSet<RDFNode> nodes) throws Exception {
+    static HashSet<Group> generateGroups(TermDictionary dictionary, AdjacencyStore store) throws Exception {
+
+        // the relations are on disk, so are the neighbourhoods then
+        if (store.getSpill() != null) {
+            HashSet<Group> spilledGroups = store.getSpill().generateGroups(dictionary);
+            Metrics.GROUPS.add(spilledGroups.size());
+            return spilledGroups;
+        }
+
+        int nodeCount = dictionary.nodeCount();
+
+        // partitionSize : the number of consecutive node ids per partition, the last partition may be smaller
+        int requestedPartitions = partitionCount(nodeCount);
+        int partitionSize = Math.max(1, (nodeCount + requestedPartitions - 1) / requestedPartitions);
+        int partitionCount = (nodeCount + partitionSize - 1) / partitionSize;
+
+        // localGroup : An array which takes a node id as index and the index of its group within its partition as
+        // value. Each partition only writes its own range of the array, so it needs no synchronization
+        int[] localGroup = new int[nodeCount];
+
+        // per partition the neighbourhoods of its local groups, and the nodes of each local group
+        ArrayList<ArrayList<NeighbourhoodSignature>> localNeighbourhoods = new ArrayList<ArrayList<NeighbourhoodSignature>>();
+        ArrayList<ArrayList<IntList>> localNodes = new ArrayList<ArrayList<IntList>>();
+        for (int p = 0; p < partitionCount; p++) {
+            localNeighbourhoods.add(null);
+            localNodes.add(null);
+        }
 
 
         /**
-         * 1.) queries the relations for an individual rdf node
-         *
-         * Since the resulting variables of a sparql query do not intrinsically encode relations or nodes (since they
-         * are just variables defined by the user-query), for reach individual rdf node from the result set the algorithms
-         * needs to query again for its relations, so that the node's neighbourhood can be examined.
+         * 1.) calculates the neighbourhood of the individual rdf nodes (map)
          *
-         * Another possibility to avoid this second querying would be to force the user to only use variables in a
-         * way which would tell the programm which of them are nodes and which are relations. But since this excludes many
-         * custom sparql queries, I decided to make this algorithm result-set agnostic on the expense of a bit of performance
-         * loss
+         * Since all relations are known by now, there is no need to distinguish between subject and object nodes
+         * anymore, each node gets its neighbourhood and with it its group within the partition.
          */
+        Workers.forEachChunk(nodeCount, partitionSize, pool, (from, to) -> {
 
-        /** preparations of sparql queries for subject and object nodes, the individual URIs are being injected later on
-         *
-         * experimentable :  I think by adapting these queries with prefixes and namespaces,
-         * the incoming result set values can be shortened to more user-friendly abbrevations.
-         */
-        ParameterizedSparqlString pssSubject = new ParameterizedSparqlString();
-        pssSubject.setCommandText("SELECT * WHERE { " +
-                "{ ?n ?nRelObject ?nObject } UNION" +
-                "{ ?nSubject ?nRelSubject ?n }" +
-                " }");
-        ParameterizedSparqlString pssObject = new ParameterizedSparqlString();
-        pssObject.setCommandText("SELECT * WHERE { " +
-                "{ ?nObject ?nObjectRelObject ?nObjectObject } UNION" +
-                "{ ?nObjectSubject ?nObjectRelSubject ?nObject }" +
-                " }");
-
-
-        // nodeToNeighbourhood : A hashmap which takes a rdf node as key and a Neighbourhood object as value
-        // This map is used for saving to each node its respective neighboourhood
-        HashMap<RDFNode, Neighbourhood> nodeToNeighbourhood = new HashMap<RDFNode, Neighbourhood>();
-
-        // neighbourToGroup : A hashmap which takes a Neighbourhood object as key and a Group object as value
-        // This map is used for saving to each neighbourhood its respective group
-        HashMap<Neighbourhood, Group> neighbourToGroup = new HashMap<Neighbourhood, Group>();
+            HashMap<NeighbourhoodSignature, Integer> index = new HashMap<NeighbourhoodSignature, Integer>();
+            ArrayList<NeighbourhoodSignature> neighbourhoods = new ArrayList<NeighbourhoodSignature>();
+            ArrayList<IntList> nodes = new ArrayList<IntList>();
 
-        // groupsSet : the main result set of groups which is returned from the method
-        HashSet<Group> groupsSet = new HashSet<Group>();
+            for (int n = from; n < to; n++) {
 
+                NeighbourhoodSignature neighbourhood = store.get(n).toSignature();
 
-        // some counting variables for displaying progress
-        int i = 0;
-        int j = 0;
-        int totalSize = nodes.size();
+                Integer group = index.get(neighbourhood);
+                if (group == null) {
+                    group = neighbourhoods.size();
+                    index.put(neighbourhood, group);
+                    neighbourhoods.add(neighbourhood);
+                    nodes.add(new IntList());
+                }
+                nodes.get(group).add(n);
+                localGroup[n] = group;
+            }
 
+            synchronized (localNeighbourhoods) {
+                localNeighbourhoods.set(from / partitionSize, neighbourhoods);
+                localNodes.set(from / partitionSize, nodes);
+            }
+        });
 
 
+        /**
+         * 2.) saves the rdf nodes into a neighbourhood-specific group (reduce)
+         *
+         * The local groups of all partitions with the same neighbourhood become one group. This is the only step on a
+         * single thread, but it only goes over the local groups, not over the nodes.
+         */
+
+        // neighbourToGroup : A hashmap which takes a NeighbourhoodSignature object as key and a Group object as value
+        // This map is used for saving to each neighbourhood its respective group
+        HashMap<NeighbourhoodSignature, Group> neighbourToGroup = new HashMap<NeighbourhoodSignature, Group>();
+
+        // localToGroup : per partition, the group of each local group
+        Group[][] localToGroup = new Group[partitionCount][];
+
+        for (int p = 0; p < partitionCount; p++) {
+            ArrayList<NeighbourhoodSignature> neighbourhoods = localNeighbourhoods.get(p);
+            localToGroup[p] = new Group[neighbourhoods.size()];
+            for (int k = 0; k < neighbourhoods.size(); k++) {
+                Group group = neighbourToGroup.get(neighbourhoods.get(k));
+                if (group == null) {
+                    group = new Group(dictionary);
+                    group.neighbourhood = neighbourhoods.get(k);
+                    neighbourToGroup.put(group.neighbourhood, group);
+                }
+                group.addNodes(localNodes.get(p).get(k));
+                localToGroup[p][k] = group;
+            }
+        }
+
+        // nodeToGroup : An array which takes a node id as index and the group of the node as value
+        // Each partition only writes its own range of the array, so it needs no synchronization
+        Group[] nodeToGroup = new Group[nodeCount];
+        Workers.forEachChunk(nodeCount, partitionSize, pool, (from, to) -> {
+            Group[] groups = localToGroup[from / partitionSize];
+            for (int n = from; n < to; n++)
+                nodeToGroup[n] = groups[localGroup[n]];
+        });
+
+        // groups : the resulting groups, split further by the groups of the neighbours if asked for
+        Collection<Group> groups = neighbourToGroup.values();
+        if (refineDepth > 0)
+            groups = refineGroups(dictionary, store, nodeToGroup, partitionSize);
+
 
         /**
-         * start of main loop, where each individual rdf node from the input hashset is being queried and its
-         * neighbourhood examined. In all of the following code, the subject node of a given triple is the node n.
+         * 3.) copies the relations of the nodes to their respective groups (map, then reduce per partition)
          *
-         * Important note: For each node, only its relations as subject to its objects are being saved into groups which
-         * are generated on the fly as well (if needed). By only encoding group-relations in the format of
+         * Important note: For each node, only its relations as subject to its objects are being saved into groups.
+         * By only encoding group-relations in the format of
          * subjectGroup -GroupRelations-> objectGroup
-         * redundancy is avoided when later the node of such a generated objectGroup is being queried where it would
-         * otherwise needed to be checked if it were already put into a group.
+         * redundancy is avoided, since the incoming relations of a node are the outgoing relations of another one.
          *
          * From my understanding and testing, encoding the group relations onyl one-directional avoids a lot of double
          * checks while not losing any relation.
+         *
+         * The relations are counted per partition first, and then added to each group all at once.
          */
-        for (RDFNode n : nodes) {
-
-            // counting stuff for displaying progress
-            if (totalSize >= 20) {
-                i++;
-                if (i % (totalSize / 10) == 0) {
-                    j += 10;
-                    System.out.println(j + "%");
-                }
-            }
+        Workers.forEachChunk(nodeCount, partitionSize, pool, (from, to) -> {
 
-            // injection of rdf node into prepared sparql query from before, execution of query
-            pssSubject.setParam("?n", n);
-            Query querySubject = QueryFactory.create(pssSubject.asQuery());
-            QueryExecution qexecSubject = QueryExecutionFactory.sparqlService(virtuosoURL, querySubject);
-            ResultSet rsSubject = qexecSubject.execSelect();
-
-            // preparing list of all the relations the group of the subject node will encounter, reuse this list later
-            // and save all of it into the group of the subject node
-            ArrayList<GroupRelation> currentGroupRelations = new ArrayList<GroupRelation>();
-
-            // check if for given node there is already a neighbourhood generated, if not create a new one.
-            Neighbourhood neighbourhoodSubject = nodeToNeighbourhood.get(n);
-            if (neighbourhoodSubject == null)
-                neighbourhoodSubject = new Neighbourhood();
-
-            // variables for the individual rdf subjects, objects, their relations
-            RDFNode nRelObject = null;
-            RDFNode nRelSubject = null;
-            RDFNode nObject = null;
-            RDFNode nSubject = null;
-
-
-
-            /**
-             * This loop now goes throught each line of the sparql result set, which means it iterates over
-             * each individual relation the node n has.
-             */
-            while (rsSubject.hasNext()) {
-
-                QuerySolution qsSubject = rsSubject.next();
-                nRelObject = qsSubject.get("?nRelObject");
-                nRelSubject = qsSubject.get("?nRelSubject");
-
-                /**
-                 *2.) calculates the neighbourhood of the individual rdf nodes (here of the subject)
-                 * if subject n has no neighbourhood yet, create it
-                 */
-                 if (!nodeToNeighbourhood.containsKey(n)) {
-
-                    nObject = qsSubject.get("?nObject");
-                    nSubject = qsSubject.get("?nSubject");
-
-                    if (nRelObject != null && nodes.contains(nObject)) {
-
-                        Integer count = neighbourhoodSubject.countRelationsOutgoing.get(nRelObject);
-                        if (count != null) {
-                            neighbourhoodSubject.countRelationsOutgoing.put(nRelObject, ++count);
-                        } else {
-                            neighbourhoodSubject.countRelationsOutgoing.put(nRelObject, 1);
-                        }
-
-                    } else if (nRelSubject != null && nodes.contains(nSubject)) {
-
-                        Integer count = neighbourhoodSubject.countRelationsIncoming.get(nRelSubject);
-                        if (count != null) {
-                            neighbourhoodSubject.countRelationsIncoming.put(nRelSubject, ++count);
-                        } else {
-                            neighbourhoodSubject.countRelationsIncoming.put(nRelSubject, 1);
-                        }
-                    }
-                } else if (n.equals(nObject)) {
-                    neighbourhoodSubject = nodeToNeighbourhood.get(nObject);
-                }
+            HashMap<Group, GroupRelationCounts> partitionCounts = new HashMap<Group, GroupRelationCounts>();
 
+            for (int n = from; n < to; n++) {
 
+                NodeAdjacency adjacency = store.get(n);
+                Group groupSubject = nodeToGroup[n];
 
-                // object group assignment, from here on, the following code will examine in detail
-                // the neighbourhood and grouping of node nObject (the object to node n given a relation)
-                nObject = qsSubject.get("?nObject");
-                if (nObject != null && nodes.contains(nObject)) {
-
-                    Group groupObject = null;
-
-
-                    /**
-                     * 2.) calculates the neighbourhood of the individual rdf nodes (here of the object)
-                     *
-                     * Within the following if branch the neighbourhood of the object node is created (since it
-                     * does not exist yet). This duplicates a lot of logic from the neighbourhood creation of the
-                     * subject node, but since there are a few dependencies between object and subject and other variables,
-                     * I didn't see a quick way of outsourcing this logic into a smaller dedicated method; 
-                     * should be possible though along some other improvements.
-                     */
-                    Neighbourhood neighbourhoodObject = nodeToNeighbourhood.get(nObject);
-                    if (neighbourhoodObject == null) {
-
-                        neighbourhoodObject = new Neighbourhood();
-
-                        // query preparation, injecting the object node into it, execute query
-                        pssObject.setParam("?nObject", nObject);
-                        Query queryObject = QueryFactory.create(pssObject.asQuery());
-                        QueryExecution qexecObject = QueryExecutionFactory.sparqlService(virtuosoURL, queryObject);
-                        ResultSet rsObject = qexecObject.execSelect();
-
-                        /**
-                         * This loop now goes throught each line of the sparql result set, which means it iterates over
-                         * each individual relation the node nObject itself has to other nodes. This is done
-                         * so that after the main loop for the current subject node n has finished an iteration, 
-                         * what we have then is a guaranteed correct group of n and of group of all its objects it
-                         * is related to.
-                         */
-                        while (rsObject.hasNext()) {
-
-                            QuerySolution qsObject = rsObject.next();
-
-                            RDFNode nObjectRelObject = qsObject.get("?nObjectRelObject");
-                            RDFNode nObjectRelSubject = qsObject.get("?nObjectRelSubject");
-                            RDFNode nObjectObject = qsObject.get("?nObjectObject");
-                            RDFNode nObjectSubject = qsObject.get("?nObjectSubject");
-
-                            if (nObjectRelObject != null && nodes.contains(nObjectObject)) {
-
-                                Integer count = neighbourhoodObject.countRelationsOutgoing.get(nObjectRelObject);
-                                if (count != null) {
-                                    neighbourhoodObject.countRelationsOutgoing.put(nObjectRelObject, ++count);
-                                } else {
-                                    neighbourhoodObject.countRelationsOutgoing.put(nObjectRelObject, 1);
-                                }
-
-                            } else if (nObjectRelSubject != null && nodes.contains(nObjectSubject) ) {
-
-                                Integer count = neighbourhoodObject.countRelationsIncoming.get(nObjectRelSubject);
-                                if (count != null) {
-                                    neighbourhoodObject.countRelationsIncoming.put(nObjectRelSubject, ++count);
-                                } else {
-                                    neighbourhoodObject.countRelationsIncoming.put(nObjectRelSubject, 1);
-                                }
-
-                            }
-                        }
-
-
-
-                        /**
-                         * 3.) saves the rdf node (here nObject) into a neighbourhood-specific group
-                         *
-                         * The following block assigns to the object node nObject its respective neighbourhodd,
-                         * and also to the neighbourhood its respective group
-                         */
-                        if (!nodeToNeighbourhood.containsKey(nObject))
-                            nodeToNeighbourhood.put(nObject, neighbourhoodObject);
-                        groupObject = neighbourToGroup.get(neighbourhoodObject);
-                        if (groupObject == null) {
-                            groupObject = new Group();
-                            groupObject.nodes.add(nObject);
-                            groupObject.neighbourhood = neighbourhoodObject;
-                            neighbourToGroup.put(neighbourhoodObject, groupObject);
-                        } else {
-                            groupObject.nodes.add(nObject);
-                            groupObject.neighbourhood = neighbourhoodObject;
-                        }
-
-                    } else {
-                        groupObject = neighbourToGroup.get(neighbourhoodObject);
-
-                        // test for a case which should never happen
-                        if ( groupObject == null )
-                            throw new Exception("This should never happen!");
-                    }
-
-                    // test for a case which should never happen
-                    if ( ( nRelObject == null && groupObject != null) || ( nRelObject != null && groupObject == null)  ) {
-                        throw new Exception("This should never happen!"); //
-                    }
+                GroupRelationCounts counts = partitionCounts.get(groupSubject);
+                if (counts == null) {
+                    counts = new GroupRelationCounts();
+                    partitionCounts.put(groupSubject, counts);
+                }
 
+                for (int k = 0; k < adjacency.outgoingRelations.size(); k++) {
 
-                    // Saves the current relation from the subject n to the group of the object with a given relation
-                    // into a list which is used later to be inserted into the subjectGroup
-                    currentGroupRelations.add(new GroupRelation(nRelObject, groupObject));
-                }
-            }
+                    Group groupObject = nodeToGroup[adjacency.outgoingObjects.get(k)];
 
+                    // test for a case which should never happen
+                    if (groupObject == null)
+                        throw new Exception("This should never happen!");
 
-            /**
-             * 3.) saves the rdf node (here n) into a neighbourhood-specific group
-             *
-             * The following block assigns to the subject node n its respective neighbourhodd,
-             * and also to the neighbourhood its respective group
-             */
-            if (!nodeToNeighbourhood.containsKey(n))
-                nodeToNeighbourhood.put(n, neighbourhoodSubject);
-            Group groupSubject = neighbourToGroup.get(neighbourhoodSubject);
-            if (groupSubject == null) {
-                groupSubject = new Group();
-                groupSubject.nodes.add(n);
-                groupSubject.neighbourhood = neighbourhoodSubject;
-                neighbourToGroup.put(neighbourhoodSubject, groupSubject);
-            } else {
-                groupSubject.nodes.add(n);
-                groupSubject.neighbourhood = neighbourhoodSubject;
+                    counts.add(adjacency.outgoingRelations.get(k), groupObject, 1);
+                }
             }
 
-            /**
-             * 4.) saves the relations (from node n to all its objects, saved temporarily before into a list) 
-             * into the subject group.
-             */
-            groupSubject.addRelation(currentGroupRelations);
-            groupsSet.add(groupSubject);
-        }
+            for (Map.Entry<Group, GroupRelationCounts> entry : partitionCounts.entrySet())
+                entry.getKey().addRelationCounts(entry.getValue());
+        });
 
-        return groupsSet;
+        // groupsSet : the main result set of groups which is returned from the method
+        Metrics.GROUPS.add(groups.size());
+        return new HashSet<Group>(groups);
     }
 
-
     /**
-     * This method persists all the groups into neo4j database
+     * Splits the groups further until their nodes look alike for refineDepth more hops, see NeighbourhoodRefinement.
+     * The refined groups keep the neighbourhood of the group they were split off from, but get an id of their own.
      *
-     * experimentable : A lot in this method can be easily tweaked since it would just fetch group relevant data from the groups
-     * and uses their values as string for neo4j. Thus the desired result neo4j graph can be very easily tweaked here.
-     *
-     * @param groups
+     * @param dictionary : contains the rdf nodes
+     * @param store : the relations of each node id
+     * @param nodeToGroup : the group of each node, points to the refined groups afterwards
+     * @param chunkSize : the number of nodes per task
+     * @return ArrayList<Group> : the refined groups, without relations yet
+     * @throws Exception
      */
-    static void persistGroupsToNeo4j(HashSet<Group> groups) {
-
-        Session session = null;
-        try {
-            session = neo4jDriver.session();
-
-
-            /**
-             * experimentable : you could try commenting the following line and see how neo4j could handle inserting data after data
-             * Though I think there would appear inconsistencies since different queries and their different result sets
-             * would cause different neighbourhoods for some nodes and thus then different groups. In such a case, a single
-             * node could be inserted into different groups which goes against the basic idea of the graph compression.
-             */
-            session.run("MATCH (n) DETACH DELETE (n)");
-
-
-            /**
-             * Iterate over each group, get their values and fiels, turn them into strings so that they can be saved
-             * in neo4j
-             */
-            for (Group g : groups) {
-
-
-                /**
-                 * experimentable : All of the following String variables are used for the neo4j insert command.
-                 * If the graph structure in neo4j should be changed you can do this easily here, by selecting the
-                 * wished-for values from the groups and use them as strings to be inserted as values again into neo4j
-                 *
-                 * E.g. The neighbourhood of a group could be inserted as some neo4j arrays instead of this simple string
-                 * as it is now (so that in neo4j you could search for certain neighbourhoods).
-                 */
-
-                String subjectGroupSizeString = Integer.toString(g.nodes.size());
-                String subjectGroupNodesString = g.nodes.toString();
-                String subjectGroupNeighbourhood = g.neighbourhood.toString();
-
-                HashMap<GroupRelation, Integer> groupRelations = g.getRelations();
-                for (GroupRelation groupRelation : groupRelations.keySet()) {
-                    String relationCountString = Integer.toString(groupRelations.get(groupRelation));
-                    String relationString = groupRelation.relation.toString();
-                    String objectGroupSizeString = Integer.toString(groupRelation.groupObject.nodes.size());
-                    String objectGroupNodesString = groupRelation.groupObject.nodes.toString();
-                    String objectGroupNeighbourhood = groupRelation.groupObject.neighbourhood.toString();
-
-
-                    /**
-                     * n1 and n2 are string variables for representing groups.
-                     */
-                    String n1 = null;
-                    String n2 = null;
-
-                    /**
-                     * Checking the size of the group, if it only contains one node, then include its URI into neo4j properties
-                     */
-                    if (g.nodes.size() > 1) {
-                        n1 = "(n1:Group { label: '" + subjectGroupSizeString + "', neighbourhood: '" + subjectGroupNeighbourhood + "'})";
-                    } else {
-                        for (RDFNode individualNode : g.nodes)
-                            n1 = "(n1:Group { label: '" + subjectGroupSizeString + "', node: '" + individualNode.toString() + "', neighbourhood: '" + subjectGroupNeighbourhood + "'})";
-                    }
-
-                    if (groupRelation.groupObject.nodes.size() > 1 ) {
-                        n2 = "(n2:Group { label: '" + objectGroupSizeString + "', neighbourhood: '" + objectGroupNeighbourhood + "'})";
-                    } else {
-                        for (RDFNode individualNode : groupRelation.groupObject.nodes )
-                            n2 = "(n2:Group { label: '" + objectGroupSizeString + "', node: '" + individualNode.toString() + "',  neighbourhood: '" + objectGroupNeighbourhood + "'})";
-                    }
+    private static ArrayList<Group> refineGroups(TermDictionary dictionary, AdjacencyStore store, Group[] nodeToGroup,
+                                                 int chunkSize) throws Exception {
+
+        int nodeCount = nodeToGroup.length;
+
+        // the groups are numbered in the order of their first node, so that the numbers do not depend on the threads
+        IdentityHashMap<Group, Integer> numbers = new IdentityHashMap<Group, Integer>();
+        ArrayList<String> ids = new ArrayList<String>();
+        int[] block = new int[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            Integer number = numbers.get(nodeToGroup[n]);
+            if (number == null) {
+                number = ids.size();
+                numbers.put(nodeToGroup[n], number);
+                ids.add(nodeToGroup[n].getId());
+            }
+            block[n] = number;
+        }
 
-                    /**
-                     * main neo4j 'insert' command, which consists of three merge commands which all mean that they
-                     * check if this variable already exists in neo4j. If it does exists then it reuses it, if not, it creates it
-                     *
-                     * experimentable : you can play around with this neo4j command
-                     */
-                    String neo4jCommand =
-                            "MERGE " + n1 + "\n" + "MERGE " + n2 + "\n" +
-                                    "MERGE (n1)-[:`"+relationString+"` { count: '" + relationCountString + "'}]-> (n2) \n";
-
-                    session.run(neo4jCommand);
-                }
+        NeighbourhoodRefinement refinement = new NeighbourhoodRefinement(store, dictionary, block, ids, pool, chunkSize);
+        refinement.refine(refineDepth);
+        System.out.println(refinement);
+
+        int[] refined = refinement.getBlocks();
+        Group[] groups = new Group[refinement.getBlockCount()];
+        for (int n = 0; n < nodeCount; n++) {
+            int b = refined[n];
+            if (groups[b] == null) {
+                groups[b] = new Group(dictionary);
+                groups[b].neighbourhood = nodeToGroup[n].neighbourhood;
+                groups[b].setId(refinement.getBlockId(b));
             }
-        } finally {
-            session.close();
+            groups[b].addNode(n);
+            nodeToGroup[n] = groups[b];
         }
+        return new ArrayList<Group>(Arrays.asList(groups));
+    }
+
+    /**
+     * @return int : the number of partitions for the grouping, see generateGroups
+     */
+    private static int partitionCount(int nodeCount) {
+        return Math.max(1, Math.min(nodeCount, partitions > 0 ? partitions : threads * 4));
     }
 }
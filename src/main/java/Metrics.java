@@ -0,0 +1,414 @@
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonNumber;
+import org.apache.jena.atlas.json.JsonObject;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The counters and latency histograms of a run, i.e. of one query (see Main.execute), so that it can be told where a
+ * slow run spends its time: waiting for the endpoint, parsing the results, grouping the nodes or writing to neo4j.
+ *
+ * All metrics are fixed fields of this class, so that every metric is known from the start and the hot paths only
+ * touch a LongAdder or a few atomic array slots, without looking anything up. They are reset at the start of each run
+ * and can be read in three ways:
+ * - over JMX, as the attributes of the MBean 'SparQrawler:type=Metrics' (e.g. with jconsole), while the run is going
+ * - as JSON report at the end of each run, see writeReport
+ * - as progress line every few seconds while the run is going, with the throughput and the remaining time of the
+ *   phase, see startProgress
+ *
+ * In the batch mode (see BatchRunner) the jobs run at the same time, so there the metrics are not reset per job but
+ * add up over all jobs, also the nodes, the groups and the time of the phases.
+ *
+ * The latencies are counted in nanoseconds and shown in milliseconds.
+ */
+public class Metrics {
+
+    // the sparql queries, of all phases and over all sources
+    public static final Counter SPARQL_REQUESTS = new Counter("sparql.requests");
+    public static final Counter SPARQL_ROWS = new Counter("sparql.rows");
+    public static final Counter SPARQL_RETRIES = new Counter("sparql.retries");
+    public static final Counter SPARQL_CAPPED = new Counter("sparql.capped");
+    public static final Counter SPARQL_BYTES = new Counter("sparql.bytes");
+    public static final Counter SPARQL_NETWORK_NANOS = new Counter("sparql.networkNanos");
+    public static final Counter SPARQL_PARSE_NANOS = new Counter("sparql.parseNanos");
+    public static final Histogram SPARQL_LATENCY = new Histogram("sparql.latency");
+
+    // the adjacency cache across the queries of a session, see AdjacencyCache
+    public static final Counter CACHE_HITS = new Counter("adjacency.cacheHits");
+    public static final Counter CACHE_MISSES = new Counter("adjacency.cacheMisses");
+
+    // the nodes of the node set, and the nodes whose relations are there already, see Main.printProgress
+    public static final Counter NODES = new Counter("nodes.total");
+    public static final Counter NODES_DONE = new Counter("nodes.done");
+
+    // the grouping, see Main.generateGroups and NeighbourhoodSignature
+    public static final Counter GROUPS = new Counter("groups.created");
+    public static final Counter SIGNATURE_COLLISIONS = new Counter("signatures.collisions");
+
+    // writing to neo4j, see Neo4jWriter
+    public static final Counter NEO4J_BATCHES = new Counter("neo4j.batches");
+    public static final Counter NEO4J_ROWS = new Counter("neo4j.rows");
+    public static final Histogram NEO4J_TRANSACTION = new Histogram("neo4j.transaction");
+
+    // the time of each phase in milliseconds, see Main.execute, over all jobs in batch mode
+    public static final Counter PHASE_SEED_MILLIS = new Counter("phase.seedMillis");
+    public static final Counter PHASE_FETCH_MILLIS = new Counter("phase.fetchMillis");
+    public static final Counter PHASE_GROUPING_MILLIS = new Counter("phase.groupingMillis");
+    public static final Counter PHASE_NEO4J_MILLIS = new Counter("phase.neo4jMillis");
+
+    private static final Counter[] COUNTERS = {
+            SPARQL_REQUESTS, SPARQL_ROWS, SPARQL_RETRIES, SPARQL_CAPPED, SPARQL_BYTES, SPARQL_NETWORK_NANOS, SPARQL_PARSE_NANOS,
+            CACHE_HITS, CACHE_MISSES, NODES, NODES_DONE, GROUPS, SIGNATURE_COLLISIONS, NEO4J_BATCHES, NEO4J_ROWS,
+            PHASE_SEED_MILLIS, PHASE_FETCH_MILLIS, PHASE_GROUPING_MILLIS, PHASE_NEO4J_MILLIS
+    };
+    private static final Histogram[] HISTOGRAMS = { SPARQL_LATENCY, NEO4J_TRANSACTION };
+
+    // the phase which is going on, for the progress line
+    private static volatile String phase = "";
+    private static volatile long phaseStart = System.nanoTime();
+    private static volatile long runStart = System.nanoTime();
+
+    // true if the phase is not changed anymore, see fixPhase
+    private static volatile boolean phaseFixed = false;
+
+    private static ScheduledExecutorService progressTimer;
+    private static ScheduledFuture<?> progress;
+
+
+    /**
+     * A count which many threads add to at the same time, also used for sums of nanoseconds and for sizes
+     */
+    public static class Counter {
+
+        final String name;
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        /**
+         * for sizes, e.g. the number of nodes, which are only known as a whole
+         */
+        public void set(long amount) {
+            value.reset();
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+
+    /**
+     * The distribution of latencies in nanoseconds, in buckets of a quarter of a power of two each, so the percentiles
+     * are within about 12% of the real ones. Recording a latency is a few atomic adds, no matter how many are recorded.
+     */
+    public static class Histogram {
+
+        // values below 4 get a bucket of their own, then each power of two is split into 4 buckets
+        private static final int BUCKETS = 4 * 64;
+
+        final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        private static int bucket(long value) {
+            if (value < 4)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return exponent * 4 + (int) ((value >>> (exponent - 2)) & 3);
+        }
+
+        // the middle of the bucket
+        private static long value(int bucket) {
+            if (bucket < 4)
+                return bucket;
+            int exponent = bucket / 4;
+            long lower = (4L | (bucket & 3)) << (exponent - 2);
+            return lower + (1L << (exponent - 2)) / 2;
+        }
+
+        /**
+         * @param fraction : e.g. 0.99 for the 99th percentile
+         * @return long : the percentile in nanoseconds, 0 if nothing was recorded
+         */
+        public long percentile(double fraction) {
+            long total = count.sum();
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets.get(b);
+                if (seen >= Math.max(1, rank))
+                    return Math.min(value(b), max.get());
+            }
+            return max.get();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMean() {
+            long total = count.sum();
+            return total == 0 ? 0 : sum.sum() / total;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        void reset() {
+            for (int b = 0; b < BUCKETS; b++)
+                buckets.set(b, 0);
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+    }
+
+
+    /**
+     * sets all metrics back to 0 for a new run
+     */
+    public static void reset() {
+        for (Counter counter : COUNTERS)
+            counter.set(0);
+        for (Histogram histogram : HISTOGRAMS)
+            histogram.reset();
+        runStart = System.nanoTime();
+        phase("");
+    }
+
+    /**
+     * @param name : the phase which begins now, shown in the progress line
+     */
+    public static void phase(String name) {
+        if (phaseFixed)
+            return;
+        phase = name;
+        phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Sets the phase for good, all later calls of phase are ignored. For the headless mode, where several jobs run at
+     * the same time, each in a phase of its own, so that the progress line would jump between them
+     *
+     * @param name : the phase shown in the progress line from now on, e.g. batch
+     */
+    public static void fixPhase(String name) {
+        phase(name);
+        phaseFixed = true;
+    }
+
+
+    /**
+     * @return Map<String, Object> : all metrics by their name, the histograms with their count, mean, percentiles and
+     * maximum in milliseconds
+     */
+    public static Map<String, Object> snapshot() {
+        LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Counter counter : COUNTERS)
+            values.put(counter.name, counter.get());
+        for (Histogram histogram : HISTOGRAMS) {
+            values.put(histogram.name + ".count", histogram.getCount());
+            values.put(histogram.name + ".meanMillis", histogram.getMean() / 1e6);
+            values.put(histogram.name + ".p50Millis", histogram.percentile(0.5) / 1e6);
+            values.put(histogram.name + ".p90Millis", histogram.percentile(0.9) / 1e6);
+            values.put(histogram.name + ".p99Millis", histogram.percentile(0.99) / 1e6);
+            values.put(histogram.name + ".maxMillis", histogram.getMax() / 1e6);
+        }
+        return values;
+    }
+
+
+    /**
+     * Writes the metrics of the run as JSON, e.g.
+     *
+     * { "query" : "SELECT ...", "elapsedMillis" : 5230, "metrics" : { "sparql.requests" : 120, ...,
+     *   "sparql.latency.p99Millis" : 48.2, ... } }
+     *
+     * @param file : the file, which is overwritten
+     * @param query : the query of the run, or the dump file
+     */
+    public static void writeReport(String file, String query) throws IOException {
+
+        JsonObject metrics = new JsonObject();
+        for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+            Object value = entry.getValue();
+            metrics.put(entry.getKey(), value instanceof Long ? JsonNumber.value((Long) value) : JsonNumber.value((Double) value));
+        }
+
+        JsonObject report = new JsonObject();
+        report.put("query", query);
+        report.put("elapsedMillis", (System.nanoTime() - runStart) / 1000000);
+        report.put("metrics", metrics);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            JSON.write(out, report);
+        }
+    }
+
+
+    /**
+     * Registers the metrics as MBean 'SparQrawler:type=Metrics' in the platform MBean server. Each metric of snapshot
+     * is a read-only attribute. For remote access, start java with the usual com.sun.management.jmxremote properties
+     */
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("SparQrawler:type=Metrics"));
+        } catch (Exception e) {
+            // e.g. already registered, the metrics are still there in the report and the progress line
+            System.out.println("Could not register the metrics for JMX: " + e);
+        }
+    }
+
+    private static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = snapshot().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute))
+                    list.add(new Attribute(attribute, values.get(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("the metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "the metrics of the current or last run of SparQrawler",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+        }
+    }
+
+
+    /**
+     * Prints a progress line every few seconds until stopProgress, e.g.
+     *
+     * progress: fetch 12 s, nodes 24000 of 100000 (24%), 2000 nodes/s, about 38 s left, requests 480, rows 310000, 52 MB
+     *
+     * The throughput and the remaining time are over the whole phase so far, and only shown while the number of
+     * nodes is known.
+     *
+     * @param seconds : the interval
+     */
+    public static synchronized void startProgress(int seconds) {
+        if (progressTimer == null) {
+            progressTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        stopProgress();
+        progress = progressTimer.scheduleAtFixedRate(() -> System.out.println(progressLine()), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopProgress() {
+        if (progress != null)
+            progress.cancel(false);
+        progress = null;
+    }
+
+    static String progressLine() {
+
+        double elapsed = (System.nanoTime() - phaseStart) / 1e9;
+        StringBuilder line = new StringBuilder("progress: ").append(phase).append(' ').append((long) elapsed).append(" s");
+
+        long total = NODES.get();
+        long done = NODES_DONE.get();
+        if (total > 0 && phase.equals("fetch")) {
+            double rate = elapsed > 0 ? done / elapsed : 0;
+            line.append(String.format(Locale.ROOT, ", nodes %d of %d (%d%%), %.0f nodes/s", done, total, done * 100 / total, rate));
+            if (rate > 0)
+                line.append(", about ").append((long) ((total - done) / rate)).append(" s left");
+        } else if (total > 0) {
+            line.append(", nodes ").append(total);
+        }
+
+        line.append(", requests ").append(SPARQL_REQUESTS.get()).append(", rows ").append(SPARQL_ROWS.get());
+        if (SPARQL_BYTES.get() > 0)
+            line.append(", ").append(SPARQL_BYTES.get() / (1024 * 1024)).append(" MB");
+        if (NEO4J_BATCHES.get() > 0)
+            line.append(", neo4j batches ").append(NEO4J_BATCHES.get());
+        return line.toString();
+    }
+}
@@ -0,0 +1,285 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Refines the groups beyond the 1-hop neighbourhood: two nodes stay in the same group only if they also have the same
+ * relations to the same groups, i.e. the same relation counts not only per relation but per relation and group of the
+ * other end. Repeated k times, two nodes of a group look alike for k + 1 hops (a counting bisimulation).
+ *
+ * This is done by partition refinement over the relations in the AdjacencyStore, without any further queries. The
+ * groups are the blocks of the partition, and each round splits the blocks by the blocks of the neighbours:
+ *
+ * - a node can only end up in another block than the other nodes of its block if one of its neighbours has been
+ *   split off from its block in the round before. So each round only the blocks which contain such a node are
+ *   looked at, all other blocks stay as they are. In the first round all blocks are looked at
+ * - each node of these blocks gets a key: its block and the sorted (direction, relation, block of the neighbour) of
+ *   all its relations. The nodes with the same key form the new block
+ * - blocks are never merged, only split. So as soon as a round splits no block, no later round would either, and the
+ *   refinement stops early
+ *
+ * The new blocks get their stable ids (see Group.getId) from the id of the block they were split off from and the
+ * stable ids of the blocks of their neighbours, so that the same data gives the same ids in every run.
+ *
+ * experimentable : each round costs about as much as the 1-hop grouping for the blocks it looks at. The deeper the
+ * refinement, the more and smaller the groups, up to one group per node for irregular data.
+ */
+public class NeighbourhoodRefinement {
+
+    private static final int INCOMING = 0;
+    private static final int OUTGOING = 1;
+
+    private AdjacencyStore store;
+    private TermDictionary dictionary;
+    private ExecutorService pool;
+    private int chunkSize;
+
+    // block : An array which takes a node id as index and its block as value
+    private int[] block;
+    private int blockCount;
+
+    // the stable id of each block
+    private ArrayList<String> blockIds;
+
+    // the statistics of each round, see toString
+    private ArrayList<String> rounds = new ArrayList<String>();
+
+
+    /**
+     * @param store : the relations of each node, with the incoming relations derived
+     * @param dictionary : used for the stable ids of the blocks
+     * @param block : the block of each node, numbered from 0 without gaps, refined in place
+     * @param blockIds : the stable id of each block
+     * @param pool : the pool the keys are calculated on, or null
+     * @param chunkSize : the number of nodes per task
+     */
+    public NeighbourhoodRefinement(AdjacencyStore store, TermDictionary dictionary, int[] block, ArrayList<String> blockIds,
+                                   ExecutorService pool, int chunkSize) {
+        this.store = store;
+        this.dictionary = dictionary;
+        this.block = block;
+        this.blockCount = blockIds.size();
+        this.blockIds = blockIds;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+
+    /**
+     * Refines the blocks for at most the given number of rounds
+     *
+     * @param depth : the maximum number of rounds
+     * @throws Exception
+     */
+    public void refine(int depth) throws Exception {
+
+        int nodeCount = block.length;
+
+        // affected : the nodes which have a neighbour which was split off in the last round
+        boolean[] affected = new boolean[nodeCount];
+        Arrays.fill(affected, true);
+
+        for (int round = 1; round <= depth; round++) {
+
+            long startTime = System.currentTimeMillis();
+
+            // dirty : the blocks which may be split in this round
+            boolean[] dirty = new boolean[blockCount];
+            for (int n = 0; n < nodeCount; n++) {
+                if (affected[n])
+                    dirty[block[n]] = true;
+            }
+
+            // the keys of the nodes of the dirty blocks, each chunk only writes its own range
+            long[][] keys = new long[nodeCount][];
+            Workers.forEachChunk(nodeCount, chunkSize, pool, (from, to) -> {
+                for (int n = from; n < to; n++) {
+                    if (dirty[block[n]])
+                        keys[n] = key(n);
+                }
+            });
+
+            // the new blocks, numbered in the order of their first node so that the result does not depend on the
+            // threads. The blocks which are not dirty keep all their nodes
+            int[] newBlock = new int[nodeCount];
+            int[] keptBlock = new int[blockCount];
+            Arrays.fill(keptBlock, -1);
+            HashMap<Key, Integer> keyToBlock = new HashMap<Key, Integer>();
+            ArrayList<String> newBlockIds = new ArrayList<String>();
+            int[] parent = new int[nodeCount];
+            int recomputed = 0;
+
+            for (int n = 0; n < nodeCount; n++) {
+                int oldBlock = block[n];
+                if (keys[n] == null) {
+                    if (keptBlock[oldBlock] < 0) {
+                        keptBlock[oldBlock] = newBlockIds.size();
+                        parent[newBlockIds.size()] = oldBlock;
+                        newBlockIds.add(blockIds.get(oldBlock));
+                    }
+                    newBlock[n] = keptBlock[oldBlock];
+                } else {
+                    recomputed++;
+                    Key key = new Key(oldBlock, keys[n]);
+                    Integer b = keyToBlock.get(key);
+                    if (b == null) {
+                        b = newBlockIds.size();
+                        keyToBlock.put(key, b);
+                        parent[b] = oldBlock;
+                        // the id is only known once it is clear whether the block was split, see below
+                        newBlockIds.add(null);
+                    }
+                    newBlock[n] = b;
+                }
+            }
+
+            // a block was split if more than one new block came out of it
+            int[] children = new int[blockCount];
+            for (int b = 0; b < newBlockIds.size(); b++)
+                children[parent[b]]++;
+
+            int newBlockCount = newBlockIds.size();
+            Arrays.fill(affected, false);
+            for (int n = 0; n < nodeCount; n++) {
+                int b = newBlock[n];
+                if (newBlockIds.get(b) == null) {
+                    // a block which was not split keeps its id, the others get one from their first node
+                    newBlockIds.set(b, children[parent[b]] > 1 ? stableId(blockIds.get(parent[b]), n) : blockIds.get(parent[b]));
+                }
+                if (children[block[n]] > 1)
+                    markNeighbours(n, affected);
+            }
+
+            rounds.add("round " + round + ": groups " + blockCount + " -> " + newBlockCount + ", nodes looked at: " +
+                    recomputed + ", time elapsed: " + (System.currentTimeMillis() - startTime));
+
+            boolean stable = newBlockCount == blockCount;
+            block = newBlock;
+            blockCount = newBlockCount;
+            blockIds = newBlockIds;
+
+            if (stable)
+                break;
+        }
+    }
+
+
+    /**
+     * (direction, relation, block of the other end) of each relation of the node, sorted, each packed into a long
+     */
+    private long[] key(int n) {
+
+        NodeAdjacency adjacency = store.get(n);
+        long[] key = new long[adjacency.incomingRelations.size() + adjacency.outgoingRelations.size()];
+        int size = 0;
+        for (int k = 0; k < adjacency.incomingRelations.size(); k++)
+            key[size++] = pack(INCOMING, adjacency.incomingRelations.get(k), block[adjacency.incomingSubjects.get(k)]);
+        for (int k = 0; k < adjacency.outgoingRelations.size(); k++)
+            key[size++] = pack(OUTGOING, adjacency.outgoingRelations.get(k), block[adjacency.outgoingObjects.get(k)]);
+        Arrays.sort(key);
+        return key;
+    }
+
+    private static long pack(int direction, int relation, int neighbourBlock) {
+        return ((long) direction << 62) | ((long) relation << 31) | neighbourBlock;
+    }
+
+    /**
+     * marks the subjects and objects of all relations of the node
+     */
+    private void markNeighbours(int n, boolean[] affected) {
+        NodeAdjacency adjacency = store.get(n);
+        for (int k = 0; k < adjacency.incomingSubjects.size(); k++)
+            affected[adjacency.incomingSubjects.get(k)] = true;
+        for (int k = 0; k < adjacency.outgoingObjects.size(); k++)
+            affected[adjacency.outgoingObjects.get(k)] = true;
+    }
+
+
+    /**
+     * The stable id of a block which was split off, from the id of the block before and the relations of one of its
+     * nodes to the stable ids of the blocks before, which are the same for all nodes of the new block. The first 128
+     * bits of the SHA-256 hash, like NeighbourhoodSignature.stableId
+     */
+    private String stableId(String parentId, int n) {
+
+        NodeAdjacency adjacency = store.get(n);
+        ArrayList<String> entries = new ArrayList<String>();
+        for (int k = 0; k < adjacency.incomingRelations.size(); k++)
+            entries.add("in " + dictionary.decodeRelation(adjacency.incomingRelations.get(k)) + " " + blockIds.get(block[adjacency.incomingSubjects.get(k)]));
+        for (int k = 0; k < adjacency.outgoingRelations.size(); k++)
+            entries.add("out " + dictionary.decodeRelation(adjacency.outgoingRelations.get(k)) + " " + blockIds.get(block[adjacency.outgoingObjects.get(k)]));
+        Collections.sort(entries);
+
+        StringBuilder canonical = new StringBuilder(parentId);
+        for (String entry : entries)
+            canonical.append('\n').append(entry);
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder id = new StringBuilder();
+            for (int k = 0; k < 16; k++)
+                id.append(String.format("%02x", hash[k]));
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * @return int[] : the block of each node after the refinement
+     */
+    public int[] getBlocks() {
+        return block;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public String getBlockId(int b) {
+        return blockIds.get(b);
+    }
+
+
+    /**
+     * the key of a node within a round: its block and its sorted relations to the blocks of the neighbours
+     */
+    private static final class Key {
+
+        final int block;
+        final long[] relations;
+        final int hash;
+
+        Key(int block, long[] relations) {
+            this.block = block;
+            this.relations = relations;
+            this.hash = block * 31 + Arrays.hashCode(relations);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            Key other = (Key) obj;
+            return block == other.block && Arrays.equals(relations, other.relations);
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return String.join("\n", rounds);
+    }
+}
@@ -0,0 +1,279 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+
+/**
+ * A data object which encodes the set and the sum of incoming and outgoing relations of a given rdf node or of a group
+ *
+ * It is used as key for finding the group of a node, so it is immutable: the relations and their counts are stored as
+ * sorted arrays of (relation id, count) pairs, and a 64 bit fingerprint over both arrays is calculated once when the
+ * signature is created. Two signatures with different fingerprints are never equal, so the arrays only need to be
+ * compared when the fingerprints are equal.
+ *
+ * The relations are the relation ids of the TermDictionary, see toString(TermDictionary) for the readable form.
+ *
+ * The order of the signatures (see compareTo) is only used for sorting them on disk, see SpillGrouping: first by
+ * fingerprint, then by the arrays, so that equal signatures end up next to each other.
+ */
+public final class NeighbourhoodSignature implements Comparable<NeighbourhoodSignature> {
+
+    // (relation id, count) pairs one after the other, sorted by relation id
+    private final int[] incoming;
+    private final int[] outgoing;
+
+    private final long fingerprint;
+
+
+    private NeighbourhoodSignature(int[] incoming, int[] outgoing) {
+        this.incoming = incoming;
+        this.outgoing = outgoing;
+        this.fingerprint = fingerprint(incoming, outgoing);
+    }
+
+
+    /**
+     * Counts the relations of a node into a signature
+     *
+     * @param incomingRelations : the relation ids of all incoming relations of the node, with repetitions
+     * @param outgoingRelations : the relation ids of all outgoing relations of the node, with repetitions
+     * @return NeighbourhoodSignature : the signature of the node
+     */
+    public static NeighbourhoodSignature of(IntList incomingRelations, IntList outgoingRelations) {
+        return new NeighbourhoodSignature(countPairs(incomingRelations.toArray()), countPairs(outgoingRelations.toArray()));
+    }
+
+
+    /**
+     * Writes the signature in binary form, see read
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(incoming.length);
+        out.writeInt(outgoing.length);
+        for (int value : incoming)
+            out.writeInt(value);
+        for (int value : outgoing)
+            out.writeInt(value);
+    }
+
+    /**
+     * Reads a signature which was written by write, the fingerprint is calculated again
+     */
+    public static NeighbourhoodSignature read(ByteBuffer in) {
+        int[] incoming = new int[in.getInt()];
+        int[] outgoing = new int[in.getInt()];
+        for (int k = 0; k < incoming.length; k++)
+            incoming[k] = in.getInt();
+        for (int k = 0; k < outgoing.length; k++)
+            outgoing[k] = in.getInt();
+        return new NeighbourhoodSignature(incoming, outgoing);
+    }
+
+    /**
+     * @return int : roughly the number of bytes the signature takes on the heap
+     */
+    public int estimatedSize() {
+        return 64 + 4 * (incoming.length + outgoing.length);
+    }
+
+
+    /**
+     * sorts the relation ids and collapses the runs of equal ids into (relation id, count) pairs
+     */
+    private static int[] countPairs(int[] relations) {
+
+        if (relations.length == 0)
+            return relations;
+
+        Arrays.sort(relations);
+
+        int[] pairs = new int[relations.length * 2];
+        int size = 0;
+        for (int k = 0; k < relations.length; k++) {
+            if (size > 0 && pairs[size - 2] == relations[k]) {
+                pairs[size - 1]++;
+            } else {
+                pairs[size++] = relations[k];
+                pairs[size++] = 1;
+            }
+        }
+
+        return size == pairs.length ? pairs : Arrays.copyOf(pairs, size);
+    }
+
+
+    /**
+     * a 64 bit hash over both arrays, each value is mixed in with the finalizer of the splitmix64 generator so that
+     * similar neighbourhoods (which differ only in one count) still get very different fingerprints
+     */
+    private static long fingerprint(int[] incoming, int[] outgoing) {
+
+        long hash = 0x9E3779B97F4A7C15L;
+        for (int value : incoming)
+            hash = mix(hash ^ value);
+
+        // the length separates the incoming from the outgoing relations
+        hash = mix(hash ^ (incoming.length + 0x100000000L));
+
+        for (int value : outgoing)
+            hash = mix(hash ^ value);
+
+        return hash;
+    }
+
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+
+    /**
+     * An id for the group of this signature which, unlike the fingerprint, does not depend on the relation ids of
+     * the current run, but only on the relation terms and counts. So the same neighbourhood gets the same id in every
+     * run and for every query, which makes it usable as key in neo4j.
+     *
+     * The id consists of the first 128 bits of the SHA-256 hash over the sorted relations with their counts, in hex.
+     *
+     * @param dictionary : used for turning the relation ids back into their rdf terms
+     * @return String : the id, 32 hex characters
+     */
+    public String stableId(TermDictionary dictionary) {
+
+        ArrayList<String> incomingEntries = new ArrayList<String>();
+        for (int k = 0; k < incomingSize(); k++)
+            incomingEntries.add(dictionary.decodeRelation(incomingRelation(k)) + " " + incomingCount(k));
+        Collections.sort(incomingEntries);
+
+        ArrayList<String> outgoingEntries = new ArrayList<String>();
+        for (int k = 0; k < outgoingSize(); k++)
+            outgoingEntries.add(dictionary.decodeRelation(outgoingRelation(k)) + " " + outgoingCount(k));
+        Collections.sort(outgoingEntries);
+
+        StringBuilder canonical = new StringBuilder("in");
+        for (String entry : incomingEntries)
+            canonical.append('\n').append(entry);
+        canonical.append("\nout");
+        for (String entry : outgoingEntries)
+            canonical.append('\n').append(entry);
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder id = new StringBuilder();
+            for (int k = 0; k < 16; k++)
+                id.append(String.format("%02x", hash[k]));
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public int incomingSize() {
+        return incoming.length / 2;
+    }
+
+    public int incomingRelation(int index) {
+        return incoming[index * 2];
+    }
+
+    public int incomingCount(int index) {
+        return incoming[index * 2 + 1];
+    }
+
+    public int outgoingSize() {
+        return outgoing.length / 2;
+    }
+
+    public int outgoingRelation(int index) {
+        return outgoing[index * 2];
+    }
+
+    public int outgoingCount(int index) {
+        return outgoing[index * 2 + 1];
+    }
+
+
+    @Override
+    public int compareTo(NeighbourhoodSignature other) {
+        if (fingerprint != other.fingerprint)
+            return Long.compare(fingerprint, other.fingerprint);
+        int result = compare(incoming, other.incoming);
+        result = result != 0 ? result : compare(outgoing, other.outgoing);
+        if (result != 0)
+            Metrics.SIGNATURE_COLLISIONS.increment();
+        return result;
+    }
+
+    private static int compare(int[] a, int[] b) {
+        for (int k = 0; k < Math.min(a.length, b.length); k++) {
+            if (a[k] != b[k])
+                return Integer.compare(a[k], b[k]);
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (this == obj)
+            return true;
+        if (!(obj instanceof NeighbourhoodSignature))
+            return false;
+
+        NeighbourhoodSignature other = (NeighbourhoodSignature) obj;
+        if (fingerprint != other.fingerprint)
+            return false;
+
+        // the same fingerprint for different neighbourhoods should practically never happen, see Metrics
+        boolean equal = Arrays.equals(incoming, other.incoming) && Arrays.equals(outgoing, other.outgoing);
+        if (!equal)
+            Metrics.SIGNATURE_COLLISIONS.increment();
+        return equal;
+    }
+
+    @Override
+    public String toString() {
+        return toString(null);
+    }
+
+    /**
+     * @param dictionary : used for turning the relation ids back into their rdf terms, if null the ids are printed
+     * @return String : the neighbourhood in a readable form
+     */
+    public String toString(TermDictionary dictionary) {
+
+        String result = "Relations incoming: [ ";
+        for (int k = 0; k < incomingSize(); k++) {
+            int relation = incomingRelation(k);
+            result += (dictionary == null ? relation : dictionary.decodeRelation(relation)) + " (" + incomingCount(k) + "), ";
+        }
+
+        result += "], Relations outgoing: [";
+
+        for (int k = 0; k < outgoingSize(); k++) {
+            int relation = outgoingRelation(k);
+            result += (dictionary == null ? relation : dictionary.decodeRelation(relation)) + " (" + outgoingCount(k) + "), ";
+        }
+
+        result += "]";
+        return  result;
+    }
+}
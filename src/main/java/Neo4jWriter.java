@@ -0,0 +1,570 @@
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.Value;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Persists the groups into the neo4j database.
+ *
+ * Instead of one cypher command per group relation, the groups and their relations are turned into lists of
+ * parameter rows, which are sent in batches of 'batchSize' rows as one 'UNWIND $rows AS row ...' command within an
+ * explicit transaction each. So the query text stays the same for all batches (neo4j can cache its plan), the
+ * values never have to be escaped and only one round-trip is needed per batch.
+ *
+ * There are two ways of writing the groups:
+ * - replace (default) : all data in neo4j is deleted before the groups are written
+ * - sync : the groups in neo4j are compared with the new ones by their ids (see Group.getId) and only the
+ *   differences are written, i.e. new groups and relations are created, changed sizes and counts are updated
+ *   and groups and relations which are not there anymore are deleted. So re-running a similar query only writes in
+ *   proportion to what has changed. The groups in neo4j are read page by page for the comparison (see
+ *   compareExisting), so they never have to be on the heap all at once.
+ *
+ * The groups get the label 'Group' by default. Jobs of the batch mode (see BatchRunner) run at the same time into the
+ * same database, so each job writes its groups with its own label instead, and only deletes or syncs the groups with
+ * that label. Groups with different labels are independent of each other, also their ids only have to be unique
+ * within a label.
+ *
+ * In the streaming mode (see StreamingGrouping) the groups are published again and again while they are still
+ * changing, see publish.
+ *
+ * experimentable : A lot in this class can be easily tweaked since it would just fetch group relevant data from the
+ * groups and uses their values as properties for neo4j. Thus the desired result neo4j graph can be very easily
+ * tweaked here (see groupProperties).
+ */
+public class Neo4jWriter {
+
+    private Driver driver;
+
+    private int batchSize;
+
+    private boolean sync;
+
+    // the label of the groups, escaped for cypher, null for the default label 'Group'
+    private String label;
+
+    // in streaming mode: what has been published so far, the size of each group by its id and the count of each
+    // relation by relationKey. null before the first micro-batch, see publish
+    private HashMap<String, Integer> publishedSizes;
+    private HashMap<String, Integer> publishedRelations;
+
+    // the labels whose uniqueness constraint has been created by this process already, see createConstraint
+    private static final Set<String> CONSTRAINED_LABELS = ConcurrentHashMap.newKeySet();
+
+    // counting variables for the summary of the last persist or publish call
+    private int groupsWritten;
+    private int groupsDeleted;
+    private int relationsWritten;
+    private int relationsDeleted;
+
+
+    public Neo4jWriter(Driver driver, int batchSize, boolean sync) {
+        this(driver, batchSize, sync, null);
+    }
+
+    /**
+     * @param label : the label of the groups, or null for the default label 'Group'
+     */
+    public Neo4jWriter(Driver driver, int batchSize, boolean sync, String label) {
+        this.driver = driver;
+        this.batchSize = batchSize;
+        this.sync = sync;
+        this.label = label == null ? null : "`" + label.replace("`", "``") + "`";
+    }
+
+
+    /**
+     * Writes the given groups and their relations into neo4j, either replacing all data there or syncing the
+     * data there with the groups
+     *
+     * @param groups : the groups to be persisted
+     */
+    public void persist(Collection<Group> groups) {
+
+        groupsWritten = 0;
+        groupsDeleted = 0;
+        relationsWritten = 0;
+        relationsDeleted = 0;
+
+        try (Session session = driver.session()) {
+
+
+            /**
+             * experimentable : you could try the sync mode and see how neo4j could handle inserting data after data
+             * Though I think there would appear inconsistencies since different queries and their different result sets
+             * would cause different neighbourhoods for some nodes and thus then different groups. In such a case, a single
+             * node could be inserted into different groups which goes against the basic idea of the graph compression.
+             */
+            if (!sync)
+                clear(session);
+            createConstraint(session);
+
+
+            // the new groups by their id, and the count of each of their relations by relationKey
+            HashMap<String, Group> groupsById = new HashMap<String, Group>();
+            HashMap<String, Integer> relationCounts = new HashMap<String, Integer>();
+            for (Group g : groups) {
+                groupsById.put(g.getId(), g);
+                GroupRelationCounts groupRelations = g.getRelations();
+                for (int slot = 0; slot < groupRelations.slots(); slot++) {
+                    if (groupRelations.isUsed(slot))
+                        relationCounts.put(relationKey(g.getId(), g.getDictionary().decodeRelation(groupRelations.getRelation(slot)).toString(),
+                                groupRelations.getObject(slot).getId()), groupRelations.getCount(slot));
+                }
+            }
+
+            // in sync mode: what is already stored in neo4j and stays as it is, and what is stored but not there
+            // anymore, see compareExisting. Without sync all of it is deleted already
+            HashSet<String> unchangedGroups = new HashSet<String>();
+            HashSet<String> unchangedRelations = new HashSet<String>();
+            ArrayList<Map<String, Object>> staleGroupRows = new ArrayList<Map<String, Object>>();
+            HashMap<String, List<Map<String, Object>>> staleRelationRowsByType = new HashMap<String, List<Map<String, Object>>>();
+            if (sync)
+                compareExisting(session, groupsById, relationCounts, unchangedGroups, unchangedRelations, staleGroupRows, staleRelationRowsByType);
+
+
+            // groups, all of them are created once, also those which take part in no relation. In sync mode only
+            // new groups and groups whose size or single node has changed are written
+            ArrayList<Map<String, Object>> groupRows = new ArrayList<Map<String, Object>>();
+            for (Group g : groups) {
+                if (!unchangedGroups.contains(g.getId()))
+                    groupRows.add(groupProperties(g));
+            }
+
+            // the node property has to be removed if a group grows from one node to more
+            writeBatches(session, groupRows,
+                    "UNWIND $rows AS row " +
+                    "MERGE (g:" + label() + " { id: row.id }) " +
+                    "REMOVE g.node " +
+                    "SET g += row");
+            groupsWritten = groupRows.size();
+
+
+            // in sync mode, groups which are not there anymore are deleted together with their relations
+            writeBatches(session, staleGroupRows,
+                    "UNWIND $rows AS row " +
+                    "MATCH (g:" + label() + " { id: row.id }) " +
+                    "DETACH DELETE g");
+            groupsDeleted += staleGroupRows.size();
+
+
+            /**
+             * Collect the rows of the relations, sorted by their relation since the relationship type of a cypher
+             * command can not be a parameter. The groups of a relation are only referenced by their ids.
+             */
+            HashMap<String, List<Map<String, Object>>> relationRowsByType = new HashMap<String, List<Map<String, Object>>>();
+
+            for (Group g : groups) {
+
+                GroupRelationCounts groupRelations = g.getRelations();
+                for (int slot = 0; slot < groupRelations.slots(); slot++) {
+                    if (!groupRelations.isUsed(slot))
+                        continue;
+
+                    String relationString = g.getDictionary().decodeRelation(groupRelations.getRelation(slot)).toString();
+                    int count = groupRelations.getCount(slot);
+                    Group groupObject = groupRelations.getObject(slot);
+
+                    // in sync mode only new relations and relations with a changed count are written
+                    if (unchangedRelations.contains(relationKey(g.getId(), relationString, groupObject.getId())))
+                        continue;
+
+                    HashMap<String, Object> row = new HashMap<String, Object>();
+                    row.put("from", g.getId());
+                    row.put("to", groupObject.getId());
+                    row.put("count", count);
+
+                    addRow(relationRowsByType, relationString, row);
+                }
+            }
+
+            // relations, one command per relationship type
+            for (Map.Entry<String, List<Map<String, Object>>> entry : relationRowsByType.entrySet()) {
+                writeBatches(session, entry.getValue(),
+                        "UNWIND $rows AS row " +
+                        "MATCH (n1:" + label() + " { id: row.from }) " +
+                        "MATCH (n2:" + label() + " { id: row.to }) " +
+                        "MERGE (n1)-[r:`" + entry.getKey().replace("`", "``") + "`]->(n2) " +
+                        "SET r.count = row.count");
+                relationsWritten += entry.getValue().size();
+            }
+
+
+            // in sync mode, relations which are not there anymore are deleted
+            for (Map.Entry<String, List<Map<String, Object>>> entry : staleRelationRowsByType.entrySet()) {
+                writeBatches(session, entry.getValue(),
+                        "UNWIND $rows AS row " +
+                        "MATCH (n1:" + label() + " { id: row.from })-[r:`" + entry.getKey().replace("`", "``") + "`]->(n2:" + label() + " { id: row.to }) " +
+                        "DELETE r");
+                relationsDeleted += entry.getValue().size();
+            }
+        }
+    }
+
+
+    /**
+     * Deletes the groups before they are written anew.
+     *
+     * The data is deleted in batches, since a single 'MATCH (n) DETACH DELETE (n)' on a large store is one
+     * huge transaction which can blow up the heap of neo4j
+     *
+     * With a label of its own, only the groups with this label are deleted, the other jobs keep theirs
+     */
+    private void clear(Session session) {
+        if (label == null)
+            deleteBatches(session, "MATCH (n) WITH n LIMIT $limit DETACH DELETE n RETURN count(*) AS deleted");
+        else
+            deleteBatches(session, "MATCH (n:" + label() + ") WITH n LIMIT $limit DETACH DELETE n RETURN count(*) AS deleted");
+    }
+
+    /**
+     * Each group is identified by its stable id (see Group.getId), which is backed by a uniqueness constraint
+     * and thus by an index. So each MERGE of a group or MATCH of a group for a relation is an index lookup
+     * instead of a scan over all groups.
+     *
+     * The constraint stays in neo4j, also when the groups are deleted, so it is only created by the first persist or
+     * publish of each label within the process. At the same time, the groups of older versions without an id are
+     * removed, since they can not be synced and are only there before the first run of this version.
+     */
+    private void createConstraint(Session session) {
+        if (!CONSTRAINED_LABELS.add(label()))
+            return;
+        session.run("CREATE CONSTRAINT ON (g:" + label() + ") ASSERT g.id IS UNIQUE").consume();
+        deleteBatches(session, "MATCH (g:" + label() + ") WHERE g.id IS NULL WITH g LIMIT $limit DETACH DELETE g RETURN count(*) AS deleted");
+    }
+
+    /**
+     * For the sync mode, compares the groups in neo4j with the new groups. The groups in neo4j are read in pages of
+     * 'batchSize' groups in the order of their id (the index of the constraint), each with its outgoing relations,
+     * so only one page is on the heap at a time, however many groups are stored.
+     *
+     * @param groupsById : the new groups by their id
+     * @param relationCounts : the count of each relation of the new groups, by relationKey
+     * @param unchangedGroups : the ids of the stored groups whose size and single node are as in the new groups are
+     *                        added here
+     * @param unchangedRelations : the keys of the stored relations whose count is as in the new groups are added here
+     * @param staleGroupRows : a row for each stored group which is not among the new groups is added here
+     * @param staleRelationRowsByType : a row for each stored relation which is not among the new relations is added
+     *                                here by its type, unless it goes away together with one of its groups
+     */
+    private void compareExisting(Session session, HashMap<String, Group> groupsById, HashMap<String, Integer> relationCounts,
+                                 HashSet<String> unchangedGroups, HashSet<String> unchangedRelations,
+                                 ArrayList<Map<String, Object>> staleGroupRows,
+                                 HashMap<String, List<Map<String, Object>>> staleRelationRowsByType) {
+
+        String command = "MATCH (g:" + label() + ") WHERE g.id > $after " +
+                "WITH g ORDER BY g.id LIMIT $limit " +
+                "RETURN g.id AS id, g.size AS size, g.node AS node, " +
+                "[(g)-[r]->(o:" + label() + ") | [type(r), o.id, r.count]] AS relations";
+
+        String after = "";
+        while (true) {
+            HashMap<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("after", after);
+            parameters.put("limit", batchSize);
+            List<Record> page = session.run(command, parameters).list();
+            if (page.isEmpty())
+                return;
+
+            for (Record record : page) {
+                String id = record.get("id").asString();
+                after = id.compareTo(after) > 0 ? id : after;
+
+                Group g = groupsById.get(id);
+                if (g == null) {
+                    staleGroupRows.add(Collections.<String, Object>singletonMap("id", id));
+                    continue;
+                }
+                Value size = record.get("size");
+                Value node = record.get("node");
+                if (!size.isNull() && size.asInt() == g.nodes.size() &&
+                        Objects.equals(node.isNull() ? null : node.asString(), groupProperties(g).get("node")))
+                    unchangedGroups.add(id);
+
+                for (Object relation : record.get("relations").asList()) {
+                    List<?> parts = (List<?>) relation;
+                    String type = (String) parts.get(0);
+                    String to = (String) parts.get(1);
+                    String key = relationKey(id, type, to);
+                    Integer count = relationCounts.get(key);
+                    if (count != null) {
+                        if (parts.get(2) instanceof Long && (Long) parts.get(2) == count.longValue())
+                            unchangedRelations.add(key);
+                    } else if (to != null && groupsById.containsKey(to)) {
+                        HashMap<String, Object> row = new HashMap<String, Object>();
+                        row.put("from", id);
+                        row.put("to", to);
+                        addRow(staleRelationRowsByType, type, row);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Publishes the groups as micro-batch of the streaming mode, see StreamingGrouping. Only what has changed since
+     * the last micro-batch is written, each kind of change in batches of 'batchSize' rows as in persist:
+     * - new groups are created with all their properties
+     * - groups which gained or lost nodes get the difference added to their size (and the single node set or
+     *   removed), the neighbourhood of a group never changes since it is what makes the group
+     * - groups which are not there anymore are deleted together with their relations
+     * - relations which are new or whose count has changed are written with their new count, relations which are
+     *   not there anymore are deleted
+     *
+     * The first micro-batch deletes the groups in neo4j first, like persist in replace mode.
+     *
+     * @param groups : all groups so far
+     */
+    public void publish(Collection<Group> groups) {
+
+        groupsWritten = 0;
+        groupsDeleted = 0;
+        relationsWritten = 0;
+        relationsDeleted = 0;
+
+        try (Session session = driver.session()) {
+
+            if (publishedSizes == null) {
+                clear(session);
+                createConstraint(session);
+                publishedSizes = new HashMap<String, Integer>();
+                publishedRelations = new HashMap<String, Integer>();
+            }
+
+
+            // groups
+            HashMap<String, Integer> sizes = new HashMap<String, Integer>();
+            ArrayList<Map<String, Object>> newGroupRows = new ArrayList<Map<String, Object>>();
+            ArrayList<Map<String, Object>> sizeRows = new ArrayList<Map<String, Object>>();
+            for (Group g : groups) {
+                sizes.put(g.getId(), g.nodes.size());
+                Integer publishedSize = publishedSizes.get(g.getId());
+                if (publishedSize == null) {
+                    newGroupRows.add(groupProperties(g));
+                } else if (publishedSize != g.nodes.size()) {
+                    HashMap<String, Object> row = new HashMap<String, Object>();
+                    row.put("id", g.getId());
+                    row.put("delta", g.nodes.size() - publishedSize);
+                    row.put("node", groupProperties(g).get("node"));
+                    sizeRows.add(row);
+                }
+            }
+
+            ArrayList<Map<String, Object>> staleGroupRows = new ArrayList<Map<String, Object>>();
+            for (String id : publishedSizes.keySet()) {
+                if (!sizes.containsKey(id))
+                    staleGroupRows.add(Collections.<String, Object>singletonMap("id", id));
+            }
+
+            writeBatches(session, newGroupRows,
+                    "UNWIND $rows AS row " +
+                    "MERGE (g:" + label() + " { id: row.id }) " +
+                    "SET g += row");
+
+            // setting the node to null removes it
+            writeBatches(session, sizeRows,
+                    "UNWIND $rows AS row " +
+                    "MATCH (g:" + label() + " { id: row.id }) " +
+                    "WITH g, row, g.size + row.delta AS size " +
+                    "SET g.size = size, g.label = toString(size), g.node = row.node");
+
+            writeBatches(session, staleGroupRows,
+                    "UNWIND $rows AS row " +
+                    "MATCH (g:" + label() + " { id: row.id }) " +
+                    "DETACH DELETE g");
+
+            groupsWritten = newGroupRows.size() + sizeRows.size();
+            groupsDeleted = staleGroupRows.size();
+            publishedSizes = sizes;
+
+
+            // relations, one command per relationship type as in persist
+            HashMap<String, Integer> counts = new HashMap<String, Integer>();
+            HashMap<String, List<Map<String, Object>>> relationRowsByType = new HashMap<String, List<Map<String, Object>>>();
+            for (Group g : groups) {
+                GroupRelationCounts groupRelations = g.getRelations();
+                for (int slot = 0; slot < groupRelations.slots(); slot++) {
+                    if (!groupRelations.isUsed(slot))
+                        continue;
+
+                    String relationString = g.getDictionary().decodeRelation(groupRelations.getRelation(slot)).toString();
+                    int count = groupRelations.getCount(slot);
+                    Group groupObject = groupRelations.getObject(slot);
+
+                    String key = relationKey(g.getId(), relationString, groupObject.getId());
+                    counts.put(key, count);
+                    if (Objects.equals(publishedRelations.get(key), count))
+                        continue;
+
+                    HashMap<String, Object> row = new HashMap<String, Object>();
+                    row.put("from", g.getId());
+                    row.put("to", groupObject.getId());
+                    row.put("count", count);
+                    addRow(relationRowsByType, relationString, row);
+                }
+            }
+
+            for (Map.Entry<String, List<Map<String, Object>>> entry : relationRowsByType.entrySet()) {
+                writeBatches(session, entry.getValue(),
+                        "UNWIND $rows AS row " +
+                        "MATCH (n1:" + label() + " { id: row.from }) " +
+                        "MATCH (n2:" + label() + " { id: row.to }) " +
+                        "MERGE (n1)-[r:`" + entry.getKey().replace("`", "``") + "`]->(n2) " +
+                        "SET r.count = row.count");
+                relationsWritten += entry.getValue().size();
+            }
+
+            // the relations of deleted groups are gone already
+            HashMap<String, List<Map<String, Object>>> staleRelationRowsByType = new HashMap<String, List<Map<String, Object>>>();
+            for (String key : publishedRelations.keySet()) {
+                String[] parts = key.split("\n", -1);
+                if (counts.containsKey(key) || !sizes.containsKey(parts[0]) || !sizes.containsKey(parts[2]))
+                    continue;
+
+                HashMap<String, Object> row = new HashMap<String, Object>();
+                row.put("from", parts[0]);
+                row.put("to", parts[2]);
+                addRow(staleRelationRowsByType, parts[1], row);
+            }
+
+            for (Map.Entry<String, List<Map<String, Object>>> entry : staleRelationRowsByType.entrySet()) {
+                writeBatches(session, entry.getValue(),
+                        "UNWIND $rows AS row " +
+                        "MATCH (n1:" + label() + " { id: row.from })-[r:`" + entry.getKey().replace("`", "``") + "`]->(n2:" + label() + " { id: row.to }) " +
+                        "DELETE r");
+                relationsDeleted += entry.getValue().size();
+            }
+
+            publishedRelations = counts;
+        }
+    }
+
+
+    /**
+     * @return String : what the last persist or publish call has written and deleted
+     */
+    public String getSummary() {
+        return "groups written: " + groupsWritten + ", groups deleted: " + groupsDeleted +
+                ", relations written: " + relationsWritten + ", relations deleted: " + relationsDeleted;
+    }
+
+
+    private String label() {
+        return label == null ? "Group" : label;
+    }
+
+    // a relation is identified by its type and the ids of its groups, none of which can contain a line break
+    private static String relationKey(String from, String type, String to) {
+        return from + "\n" + type + "\n" + to;
+    }
+
+    private static void addRow(HashMap<String, List<Map<String, Object>>> rowsByType, String type, Map<String, Object> row) {
+        List<Map<String, Object>> rows = rowsByType.get(type);
+        if (rows == null) {
+            rows = new ArrayList<Map<String, Object>>();
+            rowsByType.put(type, rows);
+        }
+        rows.add(row);
+    }
+
+
+    /**
+     * The properties of a group in neo4j:
+     * - id : the stable id of the group
+     * - label : the number of nodes as string, displayed in the neo4j browser
+     * - size : the number of nodes
+     * - incomingRelations, incomingCounts, outgoingRelations, outgoingCounts : the neighbourhood of the group as
+     *   arrays, e.g. MATCH (g:Group) WHERE 'http://xmlns.com/foaf/0.1/knows' IN g.outgoingRelations RETURN g
+     * - node : if the group only contains one node, its URI
+     *
+     * experimentable : If the graph structure in neo4j should be changed you can do this easily here, by selecting the
+     * wished-for values from the groups and use them as properties in neo4j
+     *
+     * @param g : a group
+     * @return Map<String, Object> : the properties of the group in neo4j
+     */
+    private static Map<String, Object> groupProperties(Group g) {
+
+        TermDictionary dictionary = g.getDictionary();
+        NeighbourhoodSignature neighbourhood = g.neighbourhood;
+
+        ArrayList<String> incomingRelations = new ArrayList<String>();
+        ArrayList<Integer> incomingCounts = new ArrayList<Integer>();
+        for (int k = 0; k < neighbourhood.incomingSize(); k++) {
+            incomingRelations.add(dictionary.decodeRelation(neighbourhood.incomingRelation(k)).toString());
+            incomingCounts.add(neighbourhood.incomingCount(k));
+        }
+
+        ArrayList<String> outgoingRelations = new ArrayList<String>();
+        ArrayList<Integer> outgoingCounts = new ArrayList<Integer>();
+        for (int k = 0; k < neighbourhood.outgoingSize(); k++) {
+            outgoingRelations.add(dictionary.decodeRelation(neighbourhood.outgoingRelation(k)).toString());
+            outgoingCounts.add(neighbourhood.outgoingCount(k));
+        }
+
+        HashMap<String, Object> properties = new HashMap<String, Object>();
+        properties.put("id", g.getId());
+        properties.put("label", Integer.toString(g.nodes.size()));
+        properties.put("size", g.nodes.size());
+        properties.put("incomingRelations", incomingRelations);
+        properties.put("incomingCounts", incomingCounts);
+        properties.put("outgoingRelations", outgoingRelations);
+        properties.put("outgoingCounts", outgoingCounts);
+        if (g.nodes.size() == 1)
+            properties.put("node", dictionary.decodeNode(g.nodes.get(0)).toString());
+        return properties;
+    }
+
+
+    /**
+     * Runs the given delete command (which needs a '$limit' parameter and returns the number of deleted nodes as
+     * 'deleted') again and again within a transaction each until nothing is deleted anymore
+     */
+    private void deleteBatches(Session session, String command) {
+
+        Map<String, Object> parameters = Collections.<String, Object>singletonMap("limit", batchSize);
+        int deleted;
+        do {
+            long startTime = System.nanoTime();
+            deleted = session.writeTransaction(tx -> tx.run(command, parameters).single().get("deleted").asInt());
+            Metrics.NEO4J_TRANSACTION.record(System.nanoTime() - startTime);
+            Metrics.NEO4J_BATCHES.increment();
+            groupsDeleted += deleted;
+        } while (deleted > 0);
+    }
+
+
+    /**
+     * Sends the rows in batches of 'batchSize', each batch as parameter $rows of the given command within its own
+     * write transaction
+     */
+    private void writeBatches(Session session, List<Map<String, Object>> rows, String command) {
+
+        for (int from = 0; from < rows.size(); from += batchSize) {
+
+            Map<String, Object> parameters = Collections.<String, Object>singletonMap(
+                    "rows", rows.subList(from, Math.min(from + batchSize, rows.size())));
+
+            long startTime = System.nanoTime();
+            session.writeTransaction(tx -> {
+                tx.run(command, parameters).consume();
+                return null;
+            });
+            Metrics.NEO4J_TRANSACTION.record(System.nanoTime() - startTime);
+            Metrics.NEO4J_BATCHES.increment();
+            Metrics.NEO4J_ROWS.add(Math.min(batchSize, rows.size() - from));
+        }
+    }
+}
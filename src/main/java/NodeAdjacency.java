@@ -0,0 +1,91 @@
+import java.util.Arrays;
+import java.util.HashSet;
+
+
+/**
+ * A data object which holds the relations of a single rdf node as they came back from the triplestore, i.e. the
+ * outgoing relations together with their objects and the incoming relations together with their subjects.
+ *
+ * Only relations whose other end is part of the node set of the user query are kept, all others are irrelevant for
+ * the grouping algorithm anyway (see the note in the README). All nodes and relations are stored as their ids of
+ * the TermDictionary.
+ */
+public class NodeAdjacency {
+
+    // outgoing relations of the node, the relation at index i points to the object at index i
+    public IntList outgoingRelations;
+    public IntList outgoingObjects;
+
+    // incoming relations of the node, the relation at index i comes from the subject at index i
+    public IntList incomingRelations;
+    public IntList incomingSubjects;
+
+
+    public NodeAdjacency() {
+        this.outgoingRelations = new IntList();
+        this.outgoingObjects = new IntList();
+        this.incomingRelations = new IntList();
+        this.incomingSubjects = new IntList();
+    }
+
+    public void addOutgoing(int relation, int object) {
+        outgoingRelations.add(relation);
+        outgoingObjects.add(object);
+    }
+
+    public void addIncoming(int subject, int relation) {
+        incomingSubjects.add(subject);
+        incomingRelations.add(relation);
+    }
+
+    /**
+     * Removes the outgoing relations which are there more than once with the same object, e.g. from a dump which has
+     * the same triple twice. A triplestore sends each triple once (a graph is a set of triples), so the same data
+     * gives the same groups from a dump as from the endpoint. The first of each is kept, in its place.
+     * Must be called before the incoming relations are derived from the outgoing ones.
+     *
+     * @return int : the number of relations removed
+     */
+    public int removeDuplicateOutgoing() {
+
+        int size = outgoingRelations.size();
+        if (size < 2)
+            return 0;
+
+        // relation and object packed into one long, sorted only for finding out whether there are duplicates at all
+        long[] pairs = new long[size];
+        for (int k = 0; k < size; k++)
+            pairs[k] = ((long) outgoingRelations.get(k) << 32) | (outgoingObjects.get(k) & 0xFFFFFFFFL);
+        long[] sorted = pairs.clone();
+        Arrays.sort(sorted);
+        boolean duplicates = false;
+        for (int k = 1; k < size && !duplicates; k++)
+            duplicates = sorted[k] == sorted[k - 1];
+        if (!duplicates)
+            return 0;
+
+        HashSet<Long> seen = new HashSet<Long>();
+        IntList relations = new IntList(size);
+        IntList objects = new IntList(size);
+        for (int k = 0; k < size; k++) {
+            if (seen.add(pairs[k])) {
+                relations.add(outgoingRelations.get(k));
+                objects.add(outgoingObjects.get(k));
+            }
+        }
+        outgoingRelations = relations;
+        outgoingObjects = objects;
+        return size - relations.size();
+    }
+
+
+    /**
+     * Counts the relations of this node into a neighbourhood signature, so that nodes with the same counts can be put
+     * into the same group
+     *
+     * @return NeighbourhoodSignature : the neighbourhood of this node
+     */
+    public NeighbourhoodSignature toSignature() {
+        return NeighbourhoodSignature.of(incomingRelations, outgoingRelations);
+    }
+}
@@ -0,0 +1,344 @@
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.jena.query.ARQ;
+import org.apache.jena.query.QueryException;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.resultset.ResultSetReaderRegistry;
+import org.apache.jena.sparql.engine.http.HttpParams;
+import org.apache.jena.sparql.engine.http.HttpQuery;
+import org.apache.jena.sparql.engine.http.QueryEngineHTTP;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.apache.jena.sparql.util.Context;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Queries a sparql endpoint over HTTP. Only virtuoso tested so far, could work with any other in principle.
+ *
+ * Since the grouping sends lots of small queries, the transport is tuned for that:
+ * - all queries go through one HTTP client with a pool of keep-alive connections (one per thread), so the connection
+ *   is only set up once instead of for every query
+ * - the client asks for gzip compressed responses, which the endpoint may or may not do
+ * - compact result formats are asked for first (see FORMATS), with the usual xml and json as fallback. Should the
+ *   endpoint refuse the Accept header altogether, the source falls back to jena's default header for good
+ *
+ * A query which takes longer than the request timeout as a whole is aborted, even while the endpoint keeps sending
+ * (which the read timeout alone would not catch).
+ *
+ * Each query also counts the bytes which went over the wire, and the time spent waiting for the network versus the
+ * time spent parsing the results, into the FetchStatistics of its phase.
+ */
+public class RemoteTripleSource implements TripleSource {
+
+    /**
+     * The mime types of the result formats, by their short name for the command line argument '--result-formats'
+     */
+    public static final String[][] FORMATS = {
+            { "thrift", WebContent.contentTypeResultsThrift },
+            { "tsv", WebContent.contentTypeTextTSV },
+            { "json", WebContent.contentTypeResultsJSON },
+            { "xml", WebContent.contentTypeResultsXML }
+    };
+
+    // the HttpContext attribute under which the transfer of a single query is counted
+    private static final String TRANSFER = "sparqrawler.transfer";
+
+    // aborts the queries which take too long, one thread is enough for all sources
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "query-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private String endpointURL;
+
+    private CloseableHttpClient client;
+
+    // the Accept header for the select queries, replaced by jena's default header if the endpoint refuses it
+    private volatile String accept;
+
+    // milliseconds a query may take as a whole, 0 for no limit
+    private int requestTimeout;
+
+
+    /**
+     * the counting variables of a single query, only ever used by the thread which sends the query, except for the
+     * request and the flag of the timeout
+     */
+    private static class Transfer {
+        long bytes;
+        long waitNanos;
+        long responseNanos;
+        volatile HttpUriRequest request;
+        volatile boolean timedOut;
+    }
+
+
+    /**
+     * @param endpointURL : URL of the endpoint
+     * @param connections : the maximum number of connections kept open, i.e. the number of threads querying at once
+     * @param connectTimeout : milliseconds for opening a connection, 0 for waiting forever
+     * @param readTimeout : milliseconds the endpoint may stay silent while sending a result, 0 for waiting forever
+     * @param requestTimeout : milliseconds a query may take as a whole, 0 for no limit
+     * @param resultFormats : the short names of the result formats (see FORMATS), most preferred first
+     */
+    public RemoteTripleSource(String endpointURL, int connections, int connectTimeout, int readTimeout, int requestTimeout,
+                              String[] resultFormats) {
+
+        this.endpointURL = endpointURL;
+        this.accept = acceptHeader(resultFormats);
+        this.requestTimeout = requestTimeout;
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(connections);
+        connectionManager.setDefaultMaxPerRoute(connections);
+
+        // the interceptor comes first, so that it still sees the compressed response and the bytes counted are the
+        // bytes on the wire. The decompression is done by the client right after it
+        HttpResponseInterceptor counter = (response, context) -> {
+            Transfer transfer = (Transfer) context.getAttribute(TRANSFER);
+            if (transfer == null)
+                return;
+            transfer.responseNanos = System.nanoTime();
+            if (response.getEntity() != null)
+                response.setEntity(new CountingEntity(response.getEntity(), transfer));
+        };
+
+        // keeps the request, so that it can be aborted on a timeout already while waiting for the response
+        HttpRequestInterceptor keeper = (request, context) -> {
+            Transfer transfer = (Transfer) context.getAttribute(TRANSFER);
+            if (transfer != null && request instanceof HttpRequestWrapper &&
+                    ((HttpRequestWrapper) request).getOriginal() instanceof HttpUriRequest)
+                transfer.request = (HttpUriRequest) ((HttpRequestWrapper) request).getOriginal();
+        };
+
+        this.client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .build())
+                .addInterceptorFirst(counter)
+                .addInterceptorLast(keeper)
+                .build();
+    }
+
+
+    /**
+     * @return String : the Accept header with the given formats, with decreasing quality values
+     */
+    static String acceptHeader(String[] resultFormats) {
+
+        StringBuilder header = new StringBuilder();
+        for (int k = 0; k < resultFormats.length; k++) {
+            String mimeType = null;
+            for (String[] format : FORMATS) {
+                if (format[0].equals(resultFormats[k].trim()))
+                    mimeType = format[1];
+            }
+            if (mimeType == null)
+                throw new IllegalArgumentException("Unknown result format: " + resultFormats[k]);
+
+            if (header.length() > 0)
+                header.append(", ");
+            header.append(mimeType);
+            if (k > 0)
+                header.append(";q=").append(String.format(Locale.ROOT, "%.1f", Math.max(0.1, 1.0 - k * 0.1)));
+        }
+        return header.toString();
+    }
+
+
+    @Override
+    public void select(String queryString, FetchStatistics statistics, Consumer<QuerySolution> consumer) {
+
+        String usedAccept = accept;
+        try {
+            execute(queryString, usedAccept, statistics, consumer);
+        } catch (QueryException e) {
+
+            // 406 : the endpoint has none of the formats, otherwise it sent a format which jena can not read.
+            // Both only happen before the first row, so the query can safely be sent again
+            boolean refused = e instanceof QueryExceptionHTTP && ((QueryExceptionHTTP) e).getStatusCode() == 406;
+            boolean unreadable = e.getMessage() != null && e.getMessage().contains("not currently supported");
+            String fallback = QueryEngineHTTP.defaultSelectHeader();
+            if (!(refused || unreadable) || usedAccept.equals(fallback))
+                throw e;
+
+            if (accept.equals(usedAccept)) {
+                accept = fallback;
+                System.out.println("endpoint does not support the result formats " + usedAccept + ", falling back to " + fallback);
+            }
+            execute(queryString, fallback, statistics, consumer);
+        }
+    }
+
+    private void execute(String queryString, String acceptHeader, FetchStatistics statistics, Consumer<QuerySolution> consumer) {
+
+        Transfer transfer = new Transfer();
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(TRANSFER, transfer);
+
+        // the query string is sent as it is, since a parsed Query object would write blank nodes given in jena's
+        // <_:label> notation back as _:b0, which is not valid within VALUES
+        HttpQuery httpQuery = new HttpQuery(endpointURL);
+        httpQuery.addParam(HttpParams.pQuery, queryString);
+        httpQuery.setClient(client);
+        httpQuery.setContext(context);
+        httpQuery.setAccept(acceptHeader);
+        statistics.countRequest();
+
+        ScheduledFuture<?> timeout = null;
+        if (requestTimeout > 0) {
+            timeout = TIMER.schedule(() -> {
+                transfer.timedOut = true;
+                HttpUriRequest request = transfer.request;
+                if (request != null)
+                    request.abort();
+            }, requestTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        long startTime = System.nanoTime();
+        long consumerNanos = 0;
+        InputStream in = null;
+        try {
+            in = httpQuery.exec();
+            ResultSet rs = readResults(in, httpQuery.getContentType());
+            while (rs.hasNext()) {
+                QuerySolution qs = rs.next();
+                statistics.countRow();
+                long consumerStart = System.nanoTime();
+                consumer.accept(qs);
+                consumerNanos += System.nanoTime() - consumerStart;
+            }
+        } catch (RuntimeException e) {
+            // whatever the abort made the reading fail with, it is reported as timeout
+            if (transfer.timedOut)
+                throw new QueryExceptionHTTP("query timed out after " + requestTimeout + " ms", e);
+            throw e;
+        } finally {
+            if (timeout != null)
+                timeout.cancel(false);
+            closeQuietly(in);
+
+            // everything from the response on is parsing, except for waiting on the network and handling the rows
+            long endTime = System.nanoTime();
+            long responseTime = transfer.responseNanos == 0 ? endTime : transfer.responseNanos;
+            Metrics.SPARQL_LATENCY.record(endTime - startTime);
+            statistics.countTransfer(transfer.bytes,
+                    (responseTime - startTime) + transfer.waitNanos,
+                    Math.max(0, endTime - responseTime - transfer.waitNanos - consumerNanos));
+        }
+    }
+
+    /**
+     * What QueryEngineHTTP does with the response, except that the reader gets a context of its own: jena gives the
+     * blank nodes of the xml and json results a fresh label by default, which the endpoint does not know. With the
+     * label as the endpoint sent it, the blank nodes of the user query can be sent back for their relations, see
+     * AdjacencyFetcher.appendValues. QueryEngineHTTP only reads with the global context of jena, which is left as it
+     * is for everything else in the process
+     */
+    private static ResultSet readResults(InputStream in, String contentType) {
+
+        if (contentType == null || contentType.isEmpty())
+            contentType = WebContent.contentTypeResultsXML;
+        Lang lang = WebContent.contentTypeToLangResultSet(contentType);
+        if (lang == null || !ResultSetReaderRegistry.isRegistered(lang))
+            throw new QueryException("Endpoint returned Content-Type: " + contentType + " which is not currently supported for SELECT queries");
+
+        Context readContext = ARQ.getContext().copy();
+        readContext.set(ARQ.inputGraphBNodeLabels, true);
+        return ResultSetReaderRegistry.getFactory(lang).create(lang).read(in, readContext);
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null)
+            return;
+        try {
+            in.close();
+        } catch (IOException e) {
+            // the connection is not reused then, nothing else to do
+        }
+    }
+
+    @Override
+    public String getName() {
+        return endpointURL;
+    }
+
+    @Override
+    public String getStatus() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // the connections are gone with the process anyway
+        }
+    }
+
+
+    /**
+     * Counts the bytes read from the response body and the time spent blocked in reading them
+     */
+    private static class CountingEntity extends HttpEntityWrapper {
+
+        private Transfer transfer;
+
+        CountingEntity(HttpEntity entity, Transfer transfer) {
+            super(entity);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+
+                @Override
+                public int read() throws IOException {
+                    long startTime = System.nanoTime();
+                    int b = super.read();
+                    transfer.waitNanos += System.nanoTime() - startTime;
+                    if (b >= 0)
+                        transfer.bytes++;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    long startTime = System.nanoTime();
+                    int count = super.read(buffer, offset, length);
+                    transfer.waitNanos += System.nanoTime() - startTime;
+                    if (count > 0)
+                        transfer.bytes += count;
+                    return count;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,477 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.function.LongConsumer;
+
+
+/**
+ * The grouping algorithm for node sets whose relations do not fit into the heap. Instead of keeping the relations of
+ * each node in the AdjacencyStore, they are appended to a file on disk as they come in (see addEdge), and the groups
+ * are then found by sorting on disk, with only memoryBudget bytes of the heap used for sorting:
+ *
+ * 1.) each relation s -r-> o is turned into two half relations, (s, outgoing, r) and (o, incoming, r), each packed
+ *     into a long. Sorted by node, the half relations of each node come one after the other, so its neighbourhood
+ *     can be counted without ever holding the relations of more than this one node
+ * 2.) the neighbourhood signatures are sorted (see NeighbourhoodSignature.compareTo), so that all nodes with the same
+ *     neighbourhood come one after the other and form a group
+ * 3.) a last pass over the relations on disk counts them into the groups
+ *
+ * Both sorts are external merge sorts: whenever the memory budget is used up, the part sorted so far is written into
+ * a run file, and in the end the run files are merged, each read through a memory mapped buffer.
+ *
+ * Per node there is still the node itself in the TermDictionary, an int for its group and its id in the group on the
+ * heap. So the node set itself must fit into the heap, its relations need not.
+ *
+ * experimentable : the memory budget, larger budgets mean fewer and longer runs. The sorts run on a single thread,
+ * so this is slower than the grouping in memory.
+ */
+public class SpillGrouping implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // the directions of a half relation, incoming first so that they are sorted like in NeighbourhoodSignature
+    private static final int INCOMING = 0;
+    private static final int OUTGOING = 1;
+
+    // a run file is read through a single mapped buffer, which can not be larger than this
+    private static final long MAX_RUN_BYTES = Integer.MAX_VALUE;
+
+    // the directory of this grouping within the spill directory, deleted again by close
+    private File directory;
+
+    private long memoryBudget;
+
+    // the relations as (subject, relation, object) ids, 12 bytes each
+    private File edgeFile;
+    private DataOutputStream edges;
+
+    // counting variables: relations written, run files written, bytes written into run files
+    private long edgeCount;
+    private int runs;
+    private long runBytes;
+
+
+    /**
+     * @param spillDir : the directory for the files, a directory of its own is created within it
+     * @param memoryBudget : the number of bytes of the heap used for sorting
+     * @throws IOException
+     */
+    public SpillGrouping(String spillDir, long memoryBudget) throws IOException {
+        File parent = new File(spillDir);
+        parent.mkdirs();
+        this.directory = Files.createTempDirectory(parent.toPath(), "spill-").toFile();
+        this.memoryBudget = Math.min(memoryBudget, MAX_RUN_BYTES);
+        this.edgeFile = new File(directory, "edges.bin");
+        this.edges = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(edgeFile), BUFFER_SIZE));
+
+        // should the run fail before the grouping, the files are still deleted when the program ends (in reverse order)
+        directory.deleteOnExit();
+        edgeFile.deleteOnExit();
+    }
+
+
+    /**
+     * Appends a relation between two nodes of the node set to the file, may be called by several threads at once
+     */
+    public synchronized void addEdge(int subject, int relation, int object) {
+        try {
+            edges.writeInt(subject);
+            edges.writeInt(relation);
+            edges.writeInt(object);
+            edgeCount++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Groups the nodes by their neighbourhood and wires the groups, with the same result as Main.generateGroups.
+     * Must be called once after all relations are added, all files are deleted afterwards.
+     *
+     * @param dictionary : contains the rdf nodes which are grouped
+     * @return HashSet<Group> : The resulting set of groups
+     * @throws Exception
+     */
+    public HashSet<Group> generateGroups(TermDictionary dictionary) throws Exception {
+        try {
+            return group(dictionary);
+        } finally {
+            close();
+        }
+    }
+
+    private HashSet<Group> group(TermDictionary dictionary) throws Exception {
+
+        synchronized (this) {
+            edges.close();
+        }
+
+        int nodeCount = dictionary.nodeCount();
+
+
+        // 1.) and 2.) the half relations sorted by node give the neighbourhoods, which are sorted right away
+        SignatureSorter signatures = new SignatureSorter();
+        SignatureBuilder builder = new SignatureBuilder(nodeCount, signatures);
+        sortHalfEdges(builder);
+        builder.finish();
+
+
+        // nodeToGroup : An array which takes a node id as index and the index of its group as value
+        int[] nodeToGroup = new int[nodeCount];
+        ArrayList<Group> groups = new ArrayList<Group>();
+
+        // the signatures come sorted, and with the same signature sorted by node id, so each group gets its nodes in
+        // the same order as in memory
+        signatures.finish((neighbourhood, node) -> {
+            Group group = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+            if (group == null || !group.neighbourhood.equals(neighbourhood)) {
+                group = new Group(dictionary);
+                group.neighbourhood = neighbourhood;
+                groups.add(group);
+            }
+            group.addNode(node);
+            nodeToGroup[node] = groups.size() - 1;
+        });
+
+
+        // 3.) copies the relations of the nodes to their respective groups
+        DataInputStream in = openEdges();
+        try {
+            for (long e = 0; e < edgeCount; e++) {
+                int subject = in.readInt();
+                int relation = in.readInt();
+                int object = in.readInt();
+                groups.get(nodeToGroup[subject]).addRelation(relation, groups.get(nodeToGroup[object]), 1);
+            }
+        } finally {
+            in.close();
+        }
+
+        return new HashSet<Group>(groups);
+    }
+
+
+    /**
+     * Reads all relations, turns each into its two half relations and hands them sorted to the consumer
+     */
+    private void sortHalfEdges(LongConsumer consumer) throws IOException {
+
+        // two half relations per relation, but never more than the budget
+        long[] buffer = new long[(int) Math.max(1024, Math.min(2 * edgeCount, Math.min(memoryBudget, MAX_RUN_BYTES) / 8))];
+        int size = 0;
+        ArrayList<File> runFiles = new ArrayList<File>();
+
+        DataInputStream in = openEdges();
+        try {
+            for (long e = 0; e < edgeCount; e++) {
+                int subject = in.readInt();
+                int relation = in.readInt();
+                int object = in.readInt();
+                if (size + 2 > buffer.length) {
+                    runFiles.add(writeLongRun(buffer, size));
+                    size = 0;
+                }
+                buffer[size++] = halfEdge(subject, OUTGOING, relation);
+                buffer[size++] = halfEdge(object, INCOMING, relation);
+            }
+        } finally {
+            in.close();
+        }
+
+        // everything fitted into the budget, so there is nothing to merge
+        if (runFiles.isEmpty()) {
+            Arrays.sort(buffer, 0, size);
+            for (int k = 0; k < size; k++)
+                consumer.accept(buffer[k]);
+            return;
+        }
+
+        runFiles.add(writeLongRun(buffer, size));
+        buffer = null;
+
+        PriorityQueue<LongRun> queue = new PriorityQueue<LongRun>(runFiles.size(), Comparator.comparingLong(run -> run.current));
+        for (File runFile : runFiles) {
+            LongRun run = new LongRun(runFile);
+            if (run.next())
+                queue.add(run);
+        }
+        while (!queue.isEmpty()) {
+            LongRun run = queue.poll();
+            consumer.accept(run.current);
+            if (run.next())
+                queue.add(run);
+        }
+        for (File runFile : runFiles)
+            runFile.delete();
+    }
+
+    /**
+     * node in the upper 32 bits, then the direction and the relation, so that sorting the longs sorts by node first
+     */
+    private static long halfEdge(int node, int direction, int relation) {
+        return ((long) node << 32) | ((long) direction << 31) | relation;
+    }
+
+    private File writeLongRun(long[] buffer, int size) throws IOException {
+
+        Arrays.sort(buffer, 0, size);
+
+        File runFile = new File(directory, "run-" + runs++ + ".bin");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), BUFFER_SIZE));
+        try {
+            for (int k = 0; k < size; k++)
+                out.writeLong(buffer[k]);
+        } finally {
+            out.close();
+        }
+        runBytes += runFile.length();
+        return runFile;
+    }
+
+    private DataInputStream openEdges() throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(edgeFile), BUFFER_SIZE));
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            // the mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+
+    /**
+     * a sorted run file of half relations, read through a mapped buffer
+     */
+    private static class LongRun {
+
+        private MappedByteBuffer buffer;
+        long current;
+
+        LongRun(File file) throws IOException {
+            this.buffer = map(file);
+        }
+
+        boolean next() {
+            if (!buffer.hasRemaining())
+                return false;
+            current = buffer.getLong();
+            return true;
+        }
+    }
+
+
+    /**
+     * Counts the sorted half relations of each node into its signature. Nodes without any relation come in between
+     * and get the empty signature.
+     */
+    private static class SignatureBuilder implements LongConsumer {
+
+        private int nodeCount;
+        private SignatureSorter sorter;
+
+        private int currentNode = -1;
+        private IntList incoming = new IntList();
+        private IntList outgoing = new IntList();
+
+        SignatureBuilder(int nodeCount, SignatureSorter sorter) {
+            this.nodeCount = nodeCount;
+            this.sorter = sorter;
+        }
+
+        @Override
+        public void accept(long halfEdge) {
+
+            int node = (int) (halfEdge >>> 32);
+            if (node != currentNode)
+                emitUpTo(node);
+
+            int relation = (int) (halfEdge & 0x7FFFFFFFL);
+            if (((halfEdge >>> 31) & 1) == INCOMING)
+                incoming.add(relation);
+            else
+                outgoing.add(relation);
+        }
+
+        /**
+         * emits the signature of the current node and the empty signatures of the nodes up to (exclusive) the given one
+         */
+        void emitUpTo(int node) {
+            try {
+                if (currentNode >= 0) {
+                    sorter.add(NeighbourhoodSignature.of(incoming, outgoing), currentNode);
+                    incoming = new IntList();
+                    outgoing = new IntList();
+                }
+                for (int empty = currentNode + 1; empty < node; empty++)
+                    sorter.add(NeighbourhoodSignature.of(incoming, outgoing), empty);
+                currentNode = node;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void finish() {
+            emitUpTo(nodeCount);
+        }
+    }
+
+
+    /**
+     * receives the nodes sorted by their signature, see SignatureSorter.finish
+     */
+    private interface SignatureConsumer {
+        void accept(NeighbourhoodSignature neighbourhood, int node) throws Exception;
+    }
+
+    /**
+     * a signature together with its node, ordered by signature and then by node
+     */
+    private static class SignatureRecord implements Comparable<SignatureRecord> {
+
+        final NeighbourhoodSignature neighbourhood;
+        final int node;
+
+        SignatureRecord(NeighbourhoodSignature neighbourhood, int node) {
+            this.neighbourhood = neighbourhood;
+            this.node = node;
+        }
+
+        @Override
+        public int compareTo(SignatureRecord other) {
+            int result = neighbourhood.compareTo(other.neighbourhood);
+            return result != 0 ? result : Integer.compare(node, other.node);
+        }
+    }
+
+
+    /**
+     * Sorts the signatures of all nodes, within the memory budget
+     */
+    private class SignatureSorter {
+
+        private ArrayList<SignatureRecord> buffer = new ArrayList<SignatureRecord>();
+        private long bufferBytes;
+        private ArrayList<File> runFiles = new ArrayList<File>();
+
+        void add(NeighbourhoodSignature neighbourhood, int node) throws IOException {
+            buffer.add(new SignatureRecord(neighbourhood, node));
+            bufferBytes += neighbourhood.estimatedSize() + 32;
+            if (bufferBytes >= memoryBudget)
+                writeRun();
+        }
+
+        private void writeRun() throws IOException {
+
+            Collections.sort(buffer);
+
+            File runFile = new File(directory, "run-" + runs++ + ".bin");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), BUFFER_SIZE));
+            try {
+                for (SignatureRecord record : buffer) {
+                    record.neighbourhood.write(out);
+                    out.writeInt(record.node);
+                }
+            } finally {
+                out.close();
+            }
+            runBytes += runFile.length();
+            runFiles.add(runFile);
+
+            buffer.clear();
+            bufferBytes = 0;
+        }
+
+        /**
+         * hands all nodes sorted by signature to the consumer
+         */
+        void finish(SignatureConsumer consumer) throws Exception {
+
+            // everything fitted into the budget, so there is nothing to merge
+            if (runFiles.isEmpty()) {
+                Collections.sort(buffer);
+                for (SignatureRecord record : buffer)
+                    consumer.accept(record.neighbourhood, record.node);
+                return;
+            }
+
+            if (!buffer.isEmpty())
+                writeRun();
+
+            PriorityQueue<SignatureRun> queue = new PriorityQueue<SignatureRun>(runFiles.size(),
+                    (a, b) -> a.current.compareTo(b.current));
+            for (File runFile : runFiles) {
+                SignatureRun run = new SignatureRun(runFile);
+                if (run.next())
+                    queue.add(run);
+            }
+            while (!queue.isEmpty()) {
+                SignatureRun run = queue.poll();
+                consumer.accept(run.current.neighbourhood, run.current.node);
+                if (run.next())
+                    queue.add(run);
+            }
+            for (File runFile : runFiles)
+                runFile.delete();
+        }
+    }
+
+    /**
+     * a sorted run file of signatures, read through a mapped buffer
+     */
+    private static class SignatureRun {
+
+        private MappedByteBuffer buffer;
+        SignatureRecord current;
+
+        SignatureRun(File file) throws IOException {
+            this.buffer = map(file);
+        }
+
+        boolean next() {
+            if (!buffer.hasRemaining())
+                return false;
+            NeighbourhoodSignature neighbourhood = NeighbourhoodSignature.read(buffer);
+            current = new SignatureRecord(neighbourhood, buffer.getInt());
+            return true;
+        }
+    }
+
+
+    /**
+     * deletes all files of this grouping
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (this) {
+                edges.close();
+            }
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "relations spilled: " + edgeCount + ", sorted runs: " + runs + ", bytes sorted on disk: " + runBytes;
+    }
+}
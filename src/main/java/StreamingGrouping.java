@@ -0,0 +1,226 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The streaming mode (command line argument '--stream <s>'): the nodes are grouped while their relations are still
+ * being fetched, and the groups so far are published into neo4j every few seconds, so that the summary graph can be
+ * watched building up during a crawl of hours instead of only showing up at the very end.
+ *
+ * Each batch of fetched nodes goes into the grouping right away (see add): its outgoing relations are the incoming
+ * relations of their objects, so the neighbourhood of each fetched node which gets a new incoming relation changes,
+ * and the node moves into another group. The neighbourhoods of these nodes are calculated again once per batch. A node
+ * is only grouped once its own relations are fetched, and a relation only counts between two groups once both its
+ * nodes are fetched.
+ *
+ * Every few seconds the groups of all fetched nodes are put together (see snapshot) and published as micro-batch,
+ * see Neo4jWriter.publish: only what changed since the last micro-batch is written, new groups are created, groups
+ * which lost or gained nodes get the difference added to their size, empty groups are deleted, and the counts of the
+ * relations between groups are corrected. Once all nodes are fetched, the last micro-batch (see finish) leaves
+ * exactly the groups of the grouping of all nodes in neo4j, see Main.generateGroups.
+ *
+ * experimentable : the snapshot goes over all relations fetched so far, which takes a moment for millions of
+ * relations. The relations between the groups could be kept up to date with each move of a node instead, which is
+ * cheap for most nodes but expensive for the hubs, which move with every batch.
+ */
+public class StreamingGrouping {
+
+    private TermDictionary dictionary;
+    private AdjacencyStore store;
+
+    // the nodes which are grouped, i.e. whose relations are fetched, by node id
+    private boolean[] fetched = new boolean[0];
+
+    // the relation ids of the incoming relations of each node from the fetched nodes, by node id
+    private IntList[] incoming = new IntList[0];
+
+    // the current neighbourhood of each fetched node, by node id
+    private NeighbourhoodSignature[] neighbourhoods = new NeighbourhoodSignature[0];
+
+    private ScheduledExecutorService timer;
+    private Neo4jWriter writer;
+
+    // the first error of a micro-batch, which stops the publishing and fails the run at the end
+    private volatile Exception error;
+
+
+    /**
+     * @param dictionary : the dictionary of the node set, which may still grow
+     * @param store : the store the relations are fetched into
+     */
+    public StreamingGrouping(TermDictionary dictionary, AdjacencyStore store) {
+        this.dictionary = dictionary;
+        this.store = store;
+    }
+
+
+    /**
+     * Groups the nodes of a batch whose relations are in the store now, and moves the fetched nodes which they have
+     * relations to into their new groups. Called by the threads fetching the batches, one at a time
+     *
+     * @param from : the first node id of the batch
+     * @param to : the id after the last node of the batch
+     */
+    public synchronized void add(int from, int to) {
+
+        grow(dictionary.nodeCount());
+
+        // the nodes whose neighbourhood has changed
+        IntList changed = new IntList(to - from);
+        for (int node = from; node < to; node++) {
+            if (fetched[node])
+                continue;
+            fetched[node] = true;
+            changed.add(node);
+
+            NodeAdjacency adjacency = store.get(node);
+            for (int k = 0; k < adjacency.outgoingObjects.size(); k++) {
+                int object = adjacency.outgoingObjects.get(k);
+                incoming[object].add(adjacency.outgoingRelations.get(k));
+                if (fetched[object])
+                    changed.add(object);
+            }
+        }
+
+        // a node with several new incoming relations is in the list several times, but only calculated once
+        int[] nodes = changed.toArray();
+        Arrays.sort(nodes);
+        for (int k = 0; k < nodes.length; k++) {
+            if (k == 0 || nodes[k] != nodes[k - 1])
+                neighbourhoods[nodes[k]] = NeighbourhoodSignature.of(incoming[nodes[k]], store.get(nodes[k]).outgoingRelations);
+        }
+    }
+
+    /**
+     * makes room for the nodes up to the given count, the node set grows while the user query comes in page by page
+     */
+    private void grow(int nodeCount) {
+        int size = fetched.length;
+        if (nodeCount <= size)
+            return;
+        fetched = Arrays.copyOf(fetched, nodeCount);
+        incoming = Arrays.copyOf(incoming, nodeCount);
+        neighbourhoods = Arrays.copyOf(neighbourhoods, nodeCount);
+        for (int node = size; node < nodeCount; node++)
+            incoming[node] = new IntList();
+    }
+
+
+    /**
+     * @return HashSet<Group> : the groups of the fetched nodes, with their relations between fetched nodes, in the
+     * same form as Main.generateGroups
+     */
+    public synchronized HashSet<Group> snapshot() {
+
+        HashMap<NeighbourhoodSignature, Group> groups = new HashMap<NeighbourhoodSignature, Group>();
+        Group[] groupOf = new Group[fetched.length];
+        for (int node = 0; node < fetched.length; node++) {
+            if (!fetched[node])
+                continue;
+            Group group = groups.get(neighbourhoods[node]);
+            if (group == null) {
+                group = new Group(dictionary);
+                group.neighbourhood = neighbourhoods[node];
+                groups.put(neighbourhoods[node], group);
+            }
+            group.addNode(node);
+            groupOf[node] = group;
+        }
+
+        for (int node = 0; node < fetched.length; node++) {
+            if (!fetched[node])
+                continue;
+            NodeAdjacency adjacency = store.get(node);
+            for (int k = 0; k < adjacency.outgoingObjects.size(); k++) {
+                Group groupObject = groupOf[adjacency.outgoingObjects.get(k)];
+                if (groupObject != null)
+                    groupOf[node].addRelation(adjacency.outgoingRelations.get(k), groupObject, 1);
+            }
+        }
+
+        return new HashSet<Group>(groups.values());
+    }
+
+
+    /**
+     * Publishes a micro-batch every few seconds from now on, until finish
+     *
+     * @param writer : the writer which keeps track of what is published already
+     * @param seconds : the interval
+     */
+    public void start(Neo4jWriter writer, int seconds) {
+
+        this.writer = writer;
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "streaming");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // with a fixed delay, a slow neo4j gets its breath between the micro-batches. In the headless mode the lines
+        // go into the log of the job
+        timer.scheduleWithFixedDelay(BatchRunner.withJobLog(() -> {
+            if (error != null)
+                return;
+            try {
+                long startTime = System.currentTimeMillis();
+                HashSet<Group> groups = snapshot();
+                writer.publish(groups);
+                System.out.println("micro-batch published, number of groups: " + groups.size() + ", " + writer.getSummary() +
+                        ", time elapsed: " + (System.currentTimeMillis() - startTime));
+            } catch (Exception e) {
+                System.out.println("Could not publish the micro-batch, the groups are only written at the end: " + e);
+                error = e;
+            }
+        }), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops publishing, a micro-batch which is being published is finished first. Must be called before relations
+     * are added to the nodes in the store which are fetched already, see Main.fetchAdjacencies
+     */
+    public void stop() throws InterruptedException {
+        if (timer != null) {
+            timer.shutdown();
+            timer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops publishing and groups all nodes once more from the store, since relations may have been added there
+     * after their subject was grouped (see AdjacencyFetcher.resolvePending). Must be called once all nodes are
+     * fetched, the final groups are then published like the micro-batches, see Main.outputGroups
+     *
+     * @return HashSet<Group> : the groups of all nodes, the same as Main.generateGroups would give
+     */
+    public HashSet<Group> finish() throws InterruptedException {
+
+        stop();
+        synchronized (this) {
+            grow(dictionary.nodeCount());
+            Arrays.fill(fetched, false);
+            for (int node = 0; node < incoming.length; node++)
+                incoming[node] = new IntList();
+        }
+        add(0, dictionary.nodeCount());
+        return snapshot();
+    }
+
+    /**
+     * @return Neo4jWriter : the writer of the micro-batches, which also publishes the final groups
+     */
+    public Neo4jWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @return Exception : why the micro-batches stopped being published, or null
+     */
+    public Exception getError() {
+        return error;
+    }
+}
@@ -0,0 +1,97 @@
+import org.apache.jena.rdf.model.RDFNode;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Maps each rdf term to a dense int id, so that the grouping algorithm only needs to handle ints instead of RDFNode
+ * objects with their long IRI strings. The terms themselves are only kept once here and are only looked up again
+ * when the groups are put out (neo4j and console).
+ *
+ * There are two separate id spaces:
+ * - nodes : the rdf nodes of the node set (ids 0 .. nodeCount() - 1). Only nodes of the node set are ever encoded,
+ *   so a term is part of the node set exactly if lookupNode finds it.
+ * - relations : the predicates of the relations between these nodes
+ */
+public class TermDictionary {
+
+    private ConcurrentHashMap<RDFNode, Integer> nodeIds;
+    private ArrayList<RDFNode> nodes;
+
+    private ConcurrentHashMap<RDFNode, Integer> relationIds;
+    private ArrayList<RDFNode> relations;
+
+
+    public TermDictionary() {
+        this.nodeIds = new ConcurrentHashMap<RDFNode, Integer>();
+        this.nodes = new ArrayList<RDFNode>();
+        this.relationIds = new ConcurrentHashMap<RDFNode, Integer>();
+        this.relations = new ArrayList<RDFNode>();
+    }
+
+
+    /**
+     * @param node : a rdf node of the node set
+     * @return int : the id of the node, a new one if the node is encoded for the first time
+     */
+    public int encodeNode(RDFNode node) {
+        return encode(node, nodeIds, nodes);
+    }
+
+    /**
+     * @param node : any rdf node
+     * @return int : the id of the node, or -1 if the node is not part of the node set
+     */
+    public int lookupNode(RDFNode node) {
+        Integer id = nodeIds.get(node);
+        return id == null ? -1 : id;
+    }
+
+    public synchronized RDFNode decodeNode(int id) {
+        return nodes.get(id);
+    }
+
+    public synchronized int nodeCount() {
+        return nodes.size();
+    }
+
+
+    /**
+     * @param relation : the predicate of a relation
+     * @return int : the id of the relation, a new one if the relation is encoded for the first time
+     */
+    public int encodeRelation(RDFNode relation) {
+        return encode(relation, relationIds, relations);
+    }
+
+    public synchronized RDFNode decodeRelation(int id) {
+        return relations.get(id);
+    }
+
+    public synchronized int relationCount() {
+        return relations.size();
+    }
+
+
+    /**
+     * The lookup of known terms needs no lock, only new terms are added under the lock, so that each term gets
+     * exactly one id even if several threads encode it at the same time.
+     */
+    private int encode(RDFNode term, ConcurrentHashMap<RDFNode, Integer> ids, ArrayList<RDFNode> terms) {
+
+        Integer id = ids.get(term);
+        if (id != null)
+            return id;
+
+        synchronized (this) {
+            id = ids.get(term);
+            if (id == null) {
+                id = terms.size();
+                terms.add(term);
+                ids.put(term, id);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import org.apache.jena.query.QuerySolution;
+
+import java.util.function.Consumer;
+
+
+/**
+ * The place the rdf data is queried from. All sparql queries of the grouping (the user query and the queries for the
+ * relations, see AdjacencyFetcher) go through this, so the grouping does not care whether the data lies behind a
+ * remote endpoint (RemoteTripleSource) or within this process (DatasetTripleSource, either in memory or in a TDB2
+ * directory).
+ *
+ * Implementations must allow several threads to query at the same time.
+ */
+public interface TripleSource {
+
+    /**
+     * Executes a select query and hands each result row to the consumer, before the method returns
+     *
+     * @param queryString : the sparql select query
+     * @param statistics : counts the query and its result rows (and, for a remote source, the transfer)
+     * @param consumer : called once for each result row
+     */
+    void select(String queryString, FetchStatistics statistics, Consumer<QuerySolution> consumer);
+
+    /**
+     * @return String : a short description of the source for the console, e.g. the URL of the endpoint
+     */
+    String getName();
+
+    /**
+     * @return String : the current state of the source for the progress output, or null if there is nothing to tell
+     */
+    String getStatus();
+
+    /**
+     * releases the resources of the source, it must not be queried afterwards
+     */
+    void close();
+}
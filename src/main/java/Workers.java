@@ -0,0 +1,199 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Helper for running the phases of the grouping algorithm on several threads.
+ *
+ * The work is always split into chunks of ids (e.g. batches of rdf node ids, which are dense, see TermDictionary),
+ * each chunk is one task for the pool. Without a pool, the chunks are simply processed one after the other on the
+ * calling thread.
+ *
+ * In the headless mode the tasks print into the log of the job which handed them over, see BatchRunner.withJobLog.
+ */
+public class Workers {
+
+
+    /**
+     * A piece of work on the chunk of ids from (inclusive) to (exclusive), which unlike a Runnable may throw checked
+     * exceptions
+     */
+    public interface Task {
+        void run(int from, int to) throws Exception;
+    }
+
+
+    /**
+     * Creates a pool with a fixed number of threads. On JDKs which support virtual threads (21+), the threads of the
+     * pool are virtual ones, which are much cheaper while they are blocked on a http response. Otherwise ordinary
+     * platform threads are used.
+     *
+     * The virtual threads are looked up by reflection, since the project is still compiled for Java 8.
+     *
+     * @param threads : number of threads, i.e. how many tasks run at the same time at most
+     * @return ExecutorService : the pool, which needs to be shut down by the caller
+     */
+    public static ExecutorService newPool(int threads) {
+
+        ThreadFactory threadFactory = null;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            threadFactory = (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            // no virtual threads on this JDK
+        }
+
+        if (threadFactory != null)
+            return Executors.newFixedThreadPool(threads, threadFactory);
+
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /**
+     * Splits the ids 0 .. size - 1 into chunks and runs the task on each of them, either on the given pool or, if the
+     * pool is null, sequentially. Returns only when all chunks are done. If a task fails, its exception is rethrown.
+     *
+     * @param size : the number of ids to work on
+     * @param chunkSize : the number of ids per task
+     * @param pool : the pool to run the tasks on, or null
+     * @param task : the work to be done on each chunk
+     * @throws Exception
+     */
+    public static void forEachChunk(int size, int chunkSize, ExecutorService pool, Task task) throws Exception {
+
+        if (pool == null) {
+            for (int from = 0; from < size; from += chunkSize)
+                task.run(from, Math.min(from + chunkSize, size));
+            return;
+        }
+
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int from = 0; from < size; from += chunkSize) {
+            final int chunkFrom = from;
+            final int chunkTo = Math.min(from + chunkSize, size);
+            futures.add(pool.submit(BatchRunner.withJobLog(() -> {
+                task.run(chunkFrom, chunkTo);
+                return null;
+            })));
+        }
+
+        awaitAll(futures);
+    }
+
+    /**
+     * waits for all futures, if one of them fails the others are cancelled and its exception is rethrown
+     */
+    private static void awaitAll(ArrayList<Future<?>> futures) throws Exception {
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            for (Future<?> future : futures)
+                future.cancel(true);
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Like forEachChunk, but for ids which only become known bit by bit, e.g. the nodes of a user query which comes in
+     * page by page. Each time more ids are known (see advance), the complete chunks among them are handed to the pool
+     * right away, while the caller goes on producing ids. Without a pool the chunks are only processed once all ids
+     * are known, on the calling thread, so that they do not hold up the producing.
+     */
+    public static class Feed {
+
+        private int chunkSize;
+        private ExecutorService pool;
+        private Task task;
+
+        // the ids below this are handed over to a task already
+        private int submitted;
+
+        private ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+
+        /**
+         * @param chunkSize : the number of ids per task
+         * @param pool : the pool to run the tasks on, or null
+         * @param task : the work to be done on each chunk
+         */
+        public Feed(int chunkSize, ExecutorService pool, Task task) {
+            this.chunkSize = chunkSize;
+            this.pool = pool;
+            this.task = task;
+        }
+
+        /**
+         * @param size : the number of ids known so far
+         * @param complete : true if there are no more ids to come, then the last chunk is handed over even if it is
+         *                 not full
+         * @throws Exception
+         */
+        public void advance(int size, boolean complete) throws Exception {
+
+            if (pool == null) {
+                if (complete) {
+                    for (; submitted < size; submitted = Math.min(submitted + chunkSize, size))
+                        task.run(submitted, Math.min(submitted + chunkSize, size));
+                }
+                return;
+            }
+
+            while (size - submitted >= chunkSize || (complete && submitted < size)) {
+                final int chunkFrom = submitted;
+                final int chunkTo = Math.min(submitted + chunkSize, size);
+                futures.add(pool.submit(BatchRunner.withJobLog(() -> {
+                    task.run(chunkFrom, chunkTo);
+                    return null;
+                })));
+                submitted = chunkTo;
+            }
+        }
+
+        /**
+         * @return int : the number of ids handed over to a task so far
+         */
+        public int getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * Returns only when all chunks handed over so far are done. If a task fails, its exception is rethrown.
+         *
+         * @throws Exception
+         */
+        public void await() throws Exception {
+            awaitAll(futures);
+        }
+
+        /**
+         * cancels the chunks still running, e.g. when the producing failed
+         */
+        public void cancel() {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+    }
+
+
+    /**
+     * @return int : a chunk size which gives each thread a few chunks, so that the work is evenly distributed
+     */
+    public static int chunkSize(int items, int threads) {
+        return Math.max(1, items / (threads * 4));
+    }
+}
@@ -0,0 +1,110 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * GroupRelationCounts against a HashMap, with random relations to random groups, so that the table grows several times
+ * and has collisions
+ */
+public class GroupRelationCountsTest {
+
+    private static final int GROUPS = 300;
+    private static final int RELATIONS = 64;
+    private static final int ADDS = 50000;
+
+    private Random random;
+    private Group[] groups;
+
+    @Before
+    public void createGroups() {
+        random = new Random(TestGraph.SEED);
+        TermDictionary dictionary = new TermDictionary();
+        groups = new Group[GROUPS];
+        for (int g = 0; g < groups.length; g++)
+            groups[g] = new Group(dictionary);
+    }
+
+
+    @Test
+    public void countsLikeHashMapWhileGrowing() {
+
+        GroupRelationCounts counts = new GroupRelationCounts();
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+
+        int grown = 0;
+        for (int k = 0; k < ADDS; k++) {
+            int slots = counts.slots();
+            addRandom(counts, expected);
+            if (counts.slots() != slots) {
+                grown++;
+                assertCounts("after growing to " + counts.slots() + " slots", expected, counts);
+            }
+        }
+        assertTrue("the table only grew " + grown + " times", grown > 5);
+        assertCounts("after all relations", expected, counts);
+    }
+
+    @Test
+    public void addAllAddsUp() {
+
+        GroupRelationCounts counts = new GroupRelationCounts();
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+        GroupRelationCounts other = new GroupRelationCounts();
+        HashMap<String, Integer> otherExpected = new HashMap<String, Integer>();
+
+        // every fourth into the other table, so that both have relations of their own and relations in common
+        for (int k = 0; k < ADDS; k++) {
+            if (random.nextInt(4) == 0)
+                addRandom(other, otherExpected);
+            else
+                addRandom(counts, expected);
+        }
+
+        counts.addAll(other);
+        for (Map.Entry<String, Integer> entry : otherExpected.entrySet())
+            expected.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        assertCounts("after adding up two tables", expected, counts);
+        assertCounts("the table added", otherExpected, other);
+    }
+
+
+    private void addRandom(GroupRelationCounts counts, HashMap<String, Integer> expected) {
+        int relation = random.nextInt(RELATIONS);
+        Group object = groups[random.nextInt(groups.length)];
+        int count = 1 + random.nextInt(3);
+        counts.add(relation, object, count);
+        expected.merge(relation + " -> " + object.getNumber(), count, Integer::sum);
+    }
+
+    /**
+     * each used slot against the HashMap, and each entry of the HashMap by its relation and group
+     */
+    private void assertCounts(String when, HashMap<String, Integer> expected, GroupRelationCounts counts) {
+
+        assertEquals(when, expected.size(), counts.size());
+        int used = 0;
+        for (int slot = 0; slot < counts.slots(); slot++) {
+            if (!counts.isUsed(slot))
+                continue;
+            used++;
+            String key = counts.getRelation(slot) + " -> " + counts.getObject(slot).getNumber();
+            assertEquals(when + ": " + key, expected.get(key), Integer.valueOf(counts.getCount(slot)));
+        }
+        assertEquals(when + ": used slots", expected.size(), used);
+
+        for (Group object : groups) {
+            for (int relation = 0; relation < RELATIONS; relation++) {
+                Integer count = expected.get(relation + " -> " + object.getNumber());
+                assertEquals(when + ": " + relation + " -> " + object.getNumber(), count == null ? 0 : count.intValue(),
+                        counts.getCount(relation, object));
+            }
+        }
+    }
+}
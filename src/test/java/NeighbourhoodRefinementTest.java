@@ -0,0 +1,230 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The refinement of the groups (see NeighbourhoodRefinement) against a counting bisimulation which is recomputed here
+ * the plain way: each round every node gets its block and the sorted (direction, relation, block of the neighbour) of
+ * all its relations, straight from the generated relations instead of the store, and the nodes with the same of it
+ * form the new blocks. The refinement only looks at the blocks which may have split, so both have to come to the
+ * same blocks after each number of rounds.
+ */
+public class NeighbourhoodRefinementTest {
+
+    private TermDictionary dictionary;
+    private int[][] edges;
+    private AdjacencyStore store;
+    private int nodeCount;
+    private int chunkSize;
+
+    // the 1-hop groups the refinement starts from, see Main.refineGroups
+    private int[] block;
+    private ArrayList<String> ids;
+
+    private int savedRefineDepth;
+    private ExecutorService pool;
+
+    @Before
+    public void generate() throws Exception {
+        savedRefineDepth = Main.refineDepth;
+        Main.refineDepth = 0;
+
+        dictionary = new TermDictionary();
+        edges = TestGraph.generate(dictionary);
+        store = TestGraph.fillStore(dictionary, edges, null);
+        nodeCount = dictionary.nodeCount();
+        chunkSize = Math.max(1, nodeCount / 16);
+
+        ids = new ArrayList<String>();
+        block = blocksOf(Main.generateGroups(dictionary, store), ids);
+    }
+
+    @After
+    public void restoreMain() {
+        Main.refineDepth = savedRefineDepth;
+        if (pool != null)
+            pool.shutdownNow();
+    }
+
+
+    @Test
+    public void depthZeroKeepsTheGroups() throws Exception {
+
+        NeighbourhoodRefinement refinement = refinement(block, ids, null);
+        refinement.refine(0);
+
+        assertArrayEquals(block, refinement.getBlocks());
+        assertEquals(ids.size(), refinement.getBlockCount());
+        for (int b = 0; b < ids.size(); b++)
+            assertEquals(ids.get(b), refinement.getBlockId(b));
+    }
+
+    @Test
+    public void sameBlocksAsRecomputed() throws Exception {
+
+        for (int depth = 1; depth <= 4; depth++) {
+            NeighbourhoodRefinement refinement = refinement(block, ids, null);
+            refinement.refine(depth);
+            assertArrayEquals("depth " + depth, recompute(block, depth), refinement.getBlocks());
+        }
+    }
+
+    /**
+     * from a single block, until the refinement stops: the coarsest counting bisimulation of the whole graph
+     */
+    @Test
+    public void sameBisimulationFromOneBlock() throws Exception {
+
+        int[] single = new int[nodeCount];
+        ArrayList<String> singleId = new ArrayList<String>();
+        singleId.add("all");
+
+        NeighbourhoodRefinement refinement = refinement(single, singleId, null);
+        refinement.refine(nodeCount);
+        int[] expected = recompute(single, nodeCount);
+
+        assertArrayEquals(expected, refinement.getBlocks());
+        assertTrue("the generated graph gives " + refinement.getBlockCount() + " blocks, which checks nothing",
+                refinement.getBlockCount() > ids.size() && refinement.getBlockCount() < nodeCount);
+
+        // once it stops splitting, another round splits nothing either
+        NeighbourhoodRefinement again = refinement(refinement.getBlocks(), idsOf(refinement), null);
+        again.refine(1);
+        assertEquals(refinement.getBlockCount(), again.getBlockCount());
+    }
+
+    @Test
+    public void sameBlocksAndIdsWithThreads() throws Exception {
+
+        NeighbourhoodRefinement alone = refinement(block, ids, null);
+        alone.refine(3);
+
+        pool = Workers.newPool(4);
+        NeighbourhoodRefinement withThreads = refinement(block, ids, pool);
+        withThreads.refine(3);
+
+        assertArrayEquals(alone.getBlocks(), withThreads.getBlocks());
+        assertEquals(idsOf(alone), idsOf(withThreads));
+    }
+
+    /**
+     * through Main.generateGroups ('--refine <k>'): the refined groups are the recomputed blocks, and the relations
+     * between them add up to the same as between the 1-hop groups
+     */
+    @Test
+    public void refinedGroupsKeepAllRelations() throws Exception {
+
+        long relations = relationCount(Main.generateGroups(dictionary, store));
+        Main.refineDepth = 3;
+        Collection<Group> refinedGroups = Main.generateGroups(dictionary, store);
+
+        assertArrayEquals(recompute(block, 3), blocksOf(refinedGroups, new ArrayList<String>()));
+        assertEquals(relations, relationCount(refinedGroups));
+    }
+
+
+    private NeighbourhoodRefinement refinement(int[] start, ArrayList<String> startIds, ExecutorService pool) {
+        return new NeighbourhoodRefinement(store, dictionary, start.clone(), new ArrayList<String>(startIds), pool, chunkSize);
+    }
+
+    private static ArrayList<String> idsOf(NeighbourhoodRefinement refinement) {
+        ArrayList<String> ids = new ArrayList<String>();
+        for (int b = 0; b < refinement.getBlockCount(); b++)
+            ids.add(refinement.getBlockId(b));
+        return ids;
+    }
+
+    /**
+     * the plain refinement, every node in every round
+     *
+     * @return int[] : the block of each node after the given number of rounds, numbered in the order of their first
+     *                 node like NeighbourhoodRefinement
+     */
+    private int[] recompute(int[] start, int rounds) {
+
+        int[] current = start.clone();
+        for (int round = 0; round < rounds; round++) {
+
+            ArrayList<ArrayList<String>> relations = new ArrayList<ArrayList<String>>();
+            for (int n = 0; n < nodeCount; n++)
+                relations.add(new ArrayList<String>());
+            for (int[] edge : edges) {
+                relations.get(edge[0]).add("out " + edge[1] + " " + current[edge[2]]);
+                relations.get(edge[2]).add("in " + edge[1] + " " + current[edge[0]]);
+            }
+
+            HashMap<String, Integer> keyToBlock = new HashMap<String, Integer>();
+            int[] next = new int[nodeCount];
+            for (int n = 0; n < nodeCount; n++) {
+                ArrayList<String> key = relations.get(n);
+                key.sort(null);
+                key.add(0, "block " + current[n]);
+                next[n] = keyToBlock.computeIfAbsent(key.toString(), k -> keyToBlock.size());
+            }
+
+            // blocks are only split, so once none is, the blocks stay as they are
+            boolean stable = keyToBlock.size() == Arrays.stream(current).distinct().count();
+            current = next;
+            if (stable)
+                break;
+        }
+        return current;
+    }
+
+    /**
+     * numbers the groups in the order of their first node, like Main.refineGroups
+     *
+     * @param ids : the stable id of each group is added here, by its number
+     * @return int[] : the number of the group of each node
+     */
+    private int[] blocksOf(Collection<Group> groups, ArrayList<String> ids) {
+
+        Group[] nodeToGroup = new Group[nodeCount];
+        for (Group group : groups) {
+            for (int k = 0; k < group.nodes.size(); k++)
+                nodeToGroup[group.nodes.get(k)] = group;
+        }
+
+        IdentityHashMap<Group, Integer> numbers = new IdentityHashMap<Group, Integer>();
+        int[] block = new int[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            assertNotNull("node " + n + " is in no group", nodeToGroup[n]);
+            Integer number = numbers.get(nodeToGroup[n]);
+            if (number == null) {
+                number = ids.size();
+                numbers.put(nodeToGroup[n], number);
+                ids.add(nodeToGroup[n].getId());
+            }
+            block[n] = number;
+        }
+        return block;
+    }
+
+    /**
+     * @return long : the sum of the counts of all relations between the groups
+     */
+    private static long relationCount(Collection<Group> groups) {
+        long count = 0;
+        for (Group group : groups) {
+            GroupRelationCounts counts = group.getRelations();
+            for (int slot = 0; slot < counts.slots(); slot++) {
+                if (counts.isUsed(slot))
+                    count += counts.getCount(slot);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,73 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The grouping on disk (see SpillGrouping) gives the same groups with the same relations between them as the grouping
+ * in memory (see Main.generateGroups), also when the sorts on disk need several runs
+ */
+public class SpillGroupingTest {
+
+    // the memory for sorting on disk, small enough that the sorts need several runs on the generated graph
+    private static final long SPILL_MEMORY = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder spillDir = new TemporaryFolder();
+
+    private int savedRefineDepth;
+    private ExecutorService savedPool;
+
+    @Before
+    public void saveMain() {
+        savedRefineDepth = Main.refineDepth;
+        savedPool = Main.pool;
+        Main.refineDepth = 0;
+    }
+
+    @After
+    public void restoreMain() {
+        if (Main.pool != savedPool)
+            Main.pool.shutdownNow();
+        Main.refineDepth = savedRefineDepth;
+        Main.pool = savedPool;
+    }
+
+
+    @Test
+    public void sameGroupsAsInMemory() throws Exception {
+        Main.pool = null;
+        compareWithMemory();
+    }
+
+    @Test
+    public void sameGroupsAsInMemoryWithThreads() throws Exception {
+        Main.pool = Workers.newPool(4);
+        compareWithMemory();
+    }
+
+    private void compareWithMemory() throws Exception {
+
+        TermDictionary dictionary = new TermDictionary();
+        int[][] edges = TestGraph.generate(dictionary);
+
+        TreeMap<Integer, String> inMemory = TestGraph.describe(Main.generateGroups(dictionary,
+                TestGraph.fillStore(dictionary, edges, null)));
+
+        SpillGrouping spill = new SpillGrouping(spillDir.newFolder().getPath(), SPILL_MEMORY);
+        TreeMap<Integer, String> onDisk = TestGraph.describe(Main.generateGroups(dictionary,
+                TestGraph.fillStore(dictionary, edges, spill)));
+
+        assertTrue("the generated graph gives " + inMemory.size() + " groups, which checks nothing",
+                inMemory.size() > 1 && inMemory.size() < dictionary.nodeCount());
+        assertEquals(inMemory, onDisk);
+    }
+}
@@ -0,0 +1,121 @@
+import org.apache.jena.rdf.model.ResourceFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * The generated graph the tests group, without any triplestore: the same in every run (fixed seed), with a few hubs,
+ * nodes without any relations, relations to itself and the same relation twice between two nodes, so that there are
+ * groups of all sizes.
+ *
+ * experimentable : NODES and PREDICATES, larger graphs take longer but find more
+ */
+class TestGraph {
+
+    static final int NODES = 5000;
+    static final int PREDICATES = 4;
+    static final long SEED = 42;
+
+    private static final String NAMESPACE = "http://example.org/test/";
+
+
+    /**
+     * Generates the graph into the dictionary: the nodes 0 to NODES - 1, each with up to three outgoing relations,
+     * half of them to one of a few hubs
+     *
+     * @return int[][] : the relations as { subject, relation, object }
+     */
+    static int[][] generate(TermDictionary dictionary) {
+
+        Random random = new Random(SEED);
+
+        for (int n = 0; n < NODES; n++)
+            dictionary.encodeNode(ResourceFactory.createResource(NAMESPACE + "n" + n));
+        int[] relations = new int[PREDICATES];
+        for (int p = 0; p < PREDICATES; p++)
+            relations[p] = dictionary.encodeRelation(ResourceFactory.createProperty(NAMESPACE + "p" + p));
+
+        int hubs = Math.max(1, NODES / 500);
+        ArrayList<int[]> edges = new ArrayList<int[]>();
+        for (int subject = 0; subject < NODES; subject++) {
+            int degree = random.nextInt(4);
+            for (int k = 0; k < degree; k++) {
+                int object = random.nextBoolean() ? random.nextInt(hubs) : random.nextInt(NODES);
+                int relation = relations[random.nextInt(PREDICATES)];
+                edges.add(new int[] { subject, relation, object });
+
+                // now and then the same relation twice, which counts twice
+                if (random.nextInt(50) == 0)
+                    edges.add(new int[] { subject, relation, object });
+            }
+        }
+        return edges.toArray(new int[0][]);
+    }
+
+    /**
+     * @param spill : the grouping on disk the relations go to, or null for keeping them in the store
+     * @return AdjacencyStore : the store with the relations of the generated graph, like after fetching them
+     */
+    static AdjacencyStore fillStore(TermDictionary dictionary, int[][] edges, SpillGrouping spill) {
+
+        NodeAdjacency[] adjacencies = new NodeAdjacency[dictionary.nodeCount()];
+        for (int n = 0; n < adjacencies.length; n++)
+            adjacencies[n] = new NodeAdjacency();
+        for (int[] edge : edges)
+            adjacencies[edge[0]].addOutgoing(edge[1], edge[2]);
+
+        AdjacencyStore store = new AdjacencyStore(adjacencies.length, spill);
+        for (int n = 0; n < adjacencies.length; n++)
+            store.put(n, adjacencies[n]);
+        store.deriveIncoming();
+        return store;
+    }
+
+
+    /**
+     * Describes the groups independently of the order of their nodes and of the objects of the groups, so that the
+     * groups of different runs can be compared with assertEquals: each group by its smallest node id, with its sorted
+     * nodes and its relations to the other groups (again by their smallest node id) with their counts
+     *
+     * @return TreeMap<Integer, String> : the description of each group by its smallest node id
+     */
+    static TreeMap<Integer, String> describe(Collection<Group> groups) {
+
+        HashMap<Group, Integer> firstNodes = new HashMap<Group, Integer>();
+        for (Group group : groups) {
+            int[] nodes = group.nodes.toArray();
+            assertTrue("a group without nodes", nodes.length > 0);
+            Arrays.sort(nodes);
+            firstNodes.put(group, nodes[0]);
+        }
+
+        TreeMap<Integer, String> descriptions = new TreeMap<Integer, String>();
+        for (Group group : groups) {
+            int[] nodes = group.nodes.toArray();
+            Arrays.sort(nodes);
+
+            TreeMap<String, Integer> relations = new TreeMap<String, Integer>();
+            GroupRelationCounts counts = group.getRelations();
+            for (int slot = 0; slot < counts.slots(); slot++) {
+                if (counts.isUsed(slot)) {
+                    Integer object = firstNodes.get(counts.getObject(slot));
+                    assertNotNull("a relation to a group which is not in the result", object);
+                    relations.merge(counts.getRelation(slot) + " -> " + object, counts.getCount(slot), Integer::sum);
+                }
+            }
+
+            String previous = descriptions.put(nodes[0], "nodes " + Arrays.toString(nodes) + ", relations " + relations);
+            assertNull("node " + nodes[0] + " is in more than one group", previous);
+        }
+        return descriptions;
+    }
+}